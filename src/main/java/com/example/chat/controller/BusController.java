@@ -0,0 +1,65 @@
+package com.example.chat.controller;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.impl.HttpDeliveryBus;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Endpoint nội bộ giữa các node, chỉ có khi chat.bus.mode=http
+ */
+@RestController
+@RequestMapping("/internal/bus")
+@ConditionalOnProperty(name = "chat.bus.mode", havingValue = "http")
+@RequiredArgsConstructor
+@Slf4j
+public class BusController {
+
+    private final HttpDeliveryBus deliveryBus;
+
+    /**
+     * API nhận tin nhắn do node khác chuyển đến
+     * @param secret secret dùng chung giữa các node
+     * @param message tin nhắn chưa lưu DB
+     * @return ResponseEntity chứa trạng thái chuyển tin nhắn ở node này (ACCEPTED/OFFLINE)
+     */
+    @PostMapping("/deliver")
+    public ResponseEntity<?> deliver(@RequestHeader(value = "X-Bus-Secret", required = false) String secret,
+                                     @RequestBody Message message) {
+        if (!deliveryBus.isTrusted(secret)) {
+            log.warn("Rejected bus delivery with invalid secret");
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden"));
+        }
+        try {
+            return ResponseEntity.ok(Map.of("status", deliveryBus.acceptRemote(message).name()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * API nhận fan-out tin nhắn nhóm (đã lưu DB) do node khác chuyển đến
+     * @param secret secret dùng chung giữa các node
+     * @param fanout tin nhắn và danh sách người nhận chưa có hộp thư ở node gửi
+     * @return ResponseEntity chứa danh sách người nhận đã nhận tin nhắn ở node này
+     */
+    @PostMapping("/fanout")
+    public ResponseEntity<?> fanout(@RequestHeader(value = "X-Bus-Secret", required = false) String secret,
+                                    @RequestBody HttpDeliveryBus.Fanout fanout) {
+        if (!deliveryBus.isTrusted(secret)) {
+            log.warn("Rejected bus fan-out with invalid secret");
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Forbidden"));
+        }
+        try {
+            return ResponseEntity.ok(Map.of("accepted", deliveryBus.acceptFanout(fanout)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+}
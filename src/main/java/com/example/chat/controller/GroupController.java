@@ -0,0 +1,120 @@
+package com.example.chat.controller;
+
+import com.example.chat.service.GroupService;
+import com.example.chat.util.SendDeduplicator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/groups")
+@RequiredArgsConstructor
+@Slf4j
+public class GroupController {
+
+    private final GroupService groupService;
+
+    /**
+     * API tạo nhóm chat
+     * @param authHeader Header chứa Authorization token
+     * @param body JSON gồm name và members (danh sách username bạn bè)
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa thông tin nhóm vừa tạo
+     */
+    @PostMapping
+    @SuppressWarnings("unchecked")
+    public ResponseEntity<?> createGroup(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestBody Map<String, Object> body,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            String name = (String) body.get("name");
+            List<String> members = (List<String>) body.get("members");
+            log.info("Create group '{}' requested", name);
+            return ResponseEntity.ok(groupService.createGroup(authHeader, userAgent, name, members));
+        } catch (IllegalArgumentException | ClassCastException e) {
+            log.warn("Invalid create group request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (IOException e) {
+            log.error("Could not read friend list: {}", e.getMessage());
+            return ResponseEntity.status(500).body("Could not read friend list");
+        }
+    }
+
+    /**
+     * API lấy danh sách nhóm của người dùng
+     * @param authHeader Header chứa Authorization token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa danh sách nhóm
+     */
+    @GetMapping
+    public ResponseEntity<?> getGroups(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        return ResponseEntity.ok(groupService.getGroups(authHeader, userAgent));
+    }
+
+    /**
+     * API gửi tin nhắn nhóm: lưu một lần và gửi đến tất cả thành viên đang online
+     * @param authHeader Header chứa Authorization token
+     * @param groupId id nhóm
+     * @param message nội dung tin nhắn
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId Id do client sinh (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu, không lưu trùng
+     * @return ResponseEntity chứa status và id tin nhắn
+     */
+    @PostMapping("/{groupId}/send")
+    public ResponseEntity<?> sendGroupMessage(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable Long groupId,
+            @RequestPart("message") String message,
+            @RequestHeader("User-Agent") String userAgent,
+            @RequestPart(value = "clientMessageId", required = false) String clientMessageId
+    ) {
+        try {
+            log.info("Group message send requested for group {}", groupId);
+            return ResponseEntity.ok(groupService.sendGroupMessage(authHeader, userAgent, groupId, message, clientMessageId));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid group message request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SecurityException e) {
+            return ResponseEntity.status(403).body(e.getMessage());
+        } catch (SendDeduplicator.InProgressException e) {
+            return ResponseEntity.status(409).body(e.getMessage());
+        }
+    }
+
+    /**
+     * API lấy tin nhắn nhóm theo con trỏ đọc
+     * @param authHeader Header chứa Authorization token
+     * @param groupId id nhóm
+     * @param after id tin nhắn cuối cùng client đã có (bỏ trống: dùng con trỏ đọc đã lưu trên server)
+     * @param limit số tin nhắn tối đa trả về
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa danh sách tin nhắn và con trỏ tiếp theo
+     */
+    @GetMapping("/{groupId}/messages")
+    public ResponseEntity<?> getGroupMessages(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable Long groupId,
+            @RequestParam(value = "after", required = false) Long after,
+            @RequestParam(value = "limit", defaultValue = "100") int limit,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            return ResponseEntity.ok(groupService.getGroupMessages(authHeader, userAgent, groupId, after, limit));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid group messages request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SecurityException e) {
+            return ResponseEntity.status(403).body(e.getMessage());
+        }
+    }
+}
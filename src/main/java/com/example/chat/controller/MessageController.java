@@ -1,15 +1,28 @@
 package com.example.chat.controller;
 
+import com.example.chat.dto.MessageBatch;
+import com.example.chat.service.FileStorageService;
 import com.example.chat.service.MessageService;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.util.FileResponseWriter;
+import com.example.chat.util.SendDeduplicator;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 
@@ -20,6 +33,11 @@ import java.util.Map;
 public class MessageController {
 
     private final MessageService messageService;
+    private final FileResponseWriter fileResponseWriter;
+
+    // true: long polling bất đồng bộ (không giữ thread Tomcat); false: chờ đồng bộ trên thread xử lý request
+    @Value("${chat.polling.async:true}")
+    private boolean asyncPolling = true;
 
     /**
      * API gửi tin nhắn (text hoặc file)
@@ -28,6 +46,7 @@ public class MessageController {
      * @param message Nội dung tin nhắn (nếu có)
      * @param file Tệp đính kèm (nếu có)
      * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId Id do client sinh (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu, không lưu trùng
      * @return ResponseEntity kết quả gửi tin nhắn
      */
     @PostMapping("/send")
@@ -36,12 +55,13 @@ public class MessageController {
             @RequestPart("username") String username,
             @RequestPart(value = "message", required = false) String message,
             @RequestPart(value = "file", required = false) MultipartFile file,
-            @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
+            @RequestHeader("User-Agent") String userAgent, // Lấy userAgent từ header yêu cầu
+            @RequestPart(value = "clientMessageId", required = false) String clientMessageId
     ) {
         try {
             log.info("Received message send request from '{}'", username); // Log input
 
-            Map<String, Object> result = messageService.sendMessage(authHeader, username, message, file, userAgent); // Truyền thêm userAgent vào service
+            Map<String, Object> result = messageService.sendMessage(authHeader, username, message, file, userAgent, clientMessageId); // Truyền thêm userAgent vào service
             int status = (int) result.get("status");
 
             // Log kết quả trả về từ service
@@ -57,59 +77,203 @@ public class MessageController {
             }
 
             return ResponseEntity.ok(result);
+        } catch (FileStorageService.TooLargeException e) {
+            log.warn("File for '{}' rejected: {}", username, e.getMessage());
+            return ResponseEntity.status(413).body(e.getMessage());
         } catch (IllegalArgumentException e) {
             log.warn("Invalid message request: {}", e.getMessage());
             return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SendDeduplicator.InProgressException e) {
+            // Lần gửi đầu tiên với cùng client message id vẫn đang được xử lý
+            log.warn("Message send to '{}' still in progress: {}", username, e.getMessage());
+            return ResponseEntity.status(409).body(e.getMessage());
+        } catch (MessageWriteService.WriteTimeoutException e) {
+            // DB không xác nhận kịp: body cho client biết tin nhắn có thể đã được lưu hay không
+            log.warn("Timed out storing message to '{}': {}", username, e.getMessage());
+            return ResponseEntity.status(503).body(e.getMessage());
         } catch (IOException e) {
             log.error("File handling error while sending message to '{}': {}", username, e.getMessage());
             return ResponseEntity.status(500).body("File handling error");
         }
     }
 
+    /**
+     * API gửi file dạng stream: body của request là nội dung file (application/octet-stream),
+     * được ghi thẳng vào thư mục lưu trữ thay vì qua multipart và file tạm
+     * @param authHeader Header chứa Authorization token
+     * @param username Người nhận tin nhắn
+     * @param filename Tên file
+     * @param sha256 Mã băm SHA-256 của nội dung (tuỳ chọn): file đã có trên server thì không cần gửi lại nội dung
+     * @param clientMessageId Id do client sinh (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param request Request chứa nội dung file
+     * @return ResponseEntity kết quả gửi tin nhắn (kèm size và sha256 của file)
+     */
+    @PostMapping(value = "/send/file", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> sendFile(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestParam("username") String username,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "sha256", required = false) String sha256,
+            @RequestParam(value = "clientMessageId", required = false) String clientMessageId,
+            @RequestHeader("User-Agent") String userAgent, // Lấy userAgent từ header yêu cầu
+            HttpServletRequest request
+    ) {
+        try {
+            log.info("Received streamed file '{}' for '{}' ({} bytes declared)", filename, username, request.getContentLengthLong());
+
+            Map<String, Object> result = messageService.sendFile(authHeader, username, filename, sha256, request.getInputStream(),
+                    request.getContentLengthLong(), userAgent, clientMessageId);
+            int status = (int) result.get("status");
+            if (status == 404) {
+                return ResponseEntity.status(404).body(result.get("message"));
+            }
+            return ResponseEntity.ok(result);
+        } catch (FileStorageService.TooLargeException e) {
+            log.warn("Streamed file for '{}' rejected: {}", username, e.getMessage());
+            return ResponseEntity.status(413).body(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid file send request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SendDeduplicator.InProgressException e) {
+            log.warn("File send to '{}' still in progress: {}", username, e.getMessage());
+            return ResponseEntity.status(409).body(e.getMessage());
+        } catch (MessageWriteService.WriteTimeoutException e) {
+            // DB không xác nhận kịp: body cho client biết tin nhắn có thể đã được lưu hay không
+            log.warn("Timed out storing message to '{}': {}", username, e.getMessage());
+            return ResponseEntity.status(503).body(e.getMessage());
+        } catch (IOException e) {
+            log.error("File handling error while streaming file to '{}': {}", username, e.getMessage());
+            return ResponseEntity.status(500).body("File handling error");
+        }
+    }
+
     /**
      * API lấy tin nhắn mới (long polling 10s)
+     * Chế độ async: request được treo lại cho đến khi có tin nhắn hoặc hết thời gian chờ, thread được trả về pool ngay.
      * @param authHeader Header chứa Authorization token
      * @param userAgent Thông tin User-Agent từ header yêu cầu
-     * @return ResponseEntity danh sách tin nhắn
+     * @return DeferredResult chứa danh sách tin nhắn
      */
     @GetMapping("/messages")
-    public ResponseEntity<?> getMessages(
+    public DeferredResult<?> getMessages(
             @RequestHeader("Authorization") String authHeader,
             @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
     ) {
-        try {
-            log.info("Polling for new messages");
+        log.info("Polling for new messages");
+
+        if (asyncPolling) {
+            return messageService.getMessagesAsync(authHeader, userAgent);
+        }
 
-            List<Map<String, Object>> messages = messageService.getMessages(authHeader, userAgent); // Truyền thêm userAgent vào service
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>();
+        try {
+            MessageBatch messages = messageService.getMessages(authHeader, userAgent); // Truyền thêm userAgent vào service
             log.debug("Returned {} message(s)", messages.size());
 
-            return ResponseEntity.ok(messages);
+            result.setResult(ResponseEntity.ok(messages));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             log.error("Polling thread was interrupted", e);
-            return ResponseEntity.status(500).body("Interrupted");
+            result.setResult(ResponseEntity.status(500).body("Interrupted"));
         }
+        return result;
     }
 
     /**
-     * API tải file đính kèm từ tin nhắn
+     * API kênh push (Server-Sent Events): giữ kết nối và đẩy tin nhắn mới ngay khi có.
+     * Long polling /api/messages vẫn được giữ làm phương án dự phòng.
+     * @param authHeader Header chứa Authorization token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return SseEmitter phát sự kiện "messages" với cùng định dạng JSON như /api/messages
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
+    ) {
+        log.info("Opening push stream");
+        return messageService.openStream(authHeader, userAgent);
+    }
+
+    /**
+     * API đồng bộ tin nhắn theo con trỏ (id tin nhắn cuối cùng client đã nhận)
+     * @param authHeader Header chứa Authorization token
+     * @param after id tin nhắn cuối cùng client đã nhận (mặc định 0: từ đầu)
+     * @param limit số tin nhắn tối đa trả về
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa danh sách tin nhắn và con trỏ tiếp theo
+     */
+    @GetMapping("/sync")
+    public ResponseEntity<?> sync(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestParam(value = "after", defaultValue = "0") long after,
+            @RequestParam(value = "limit", defaultValue = "100") int limit,
+            @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
+    ) {
+        try {
+            log.info("Sync requested after cursor {}", after);
+            return ResponseEntity.ok(messageService.syncMessages(authHeader, userAgent, after, limit));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid sync request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * API lịch sử hội thoại với một người, phân trang theo keyset từ mới đến cũ
+     * @param authHeader Header chứa Authorization token
+     * @param peer người còn lại trong hội thoại
+     * @param beforeTime thời gian của tin nhắn cuối trang trước (bỏ trống để lấy trang mới nhất)
+     * @param beforeId id của tin nhắn cuối trang trước (bỏ trống để lấy trang mới nhất)
+     * @param size số tin nhắn mỗi trang
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa một trang lịch sử
+     */
+    @GetMapping("/history/{peer}")
+    public ResponseEntity<?> getHistory(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String peer,
+            @RequestParam(value = "beforeTime", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime beforeTime,
+            @RequestParam(value = "beforeId", required = false) Long beforeId,
+            @RequestParam(value = "size", defaultValue = "50") int size,
+            @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
+    ) {
+        try {
+            log.info("History requested with '{}' before ({}, {})", peer, beforeTime, beforeId);
+            return ResponseEntity.ok(messageService.getHistory(authHeader, userAgent, peer, beforeTime, beforeId, size));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid history request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * API tải file đính kèm từ tin nhắn, hỗ trợ tải tiếp bằng header Range (206 Partial Content)
+     * và cache phía client: ETag / Last-Modified, yêu cầu có điều kiện nhận 304 Not Modified
      * @param authHeader Header chứa Authorization token
      * @param filename Tên file cần tải
      * @param userAgent Thông tin User-Agent từ header yêu cầu
-     * @return ResponseEntity chứa file đính kèm
+     * @param request Request chứa header Range / If-Range / If-None-Match / If-Modified-Since
+     * @param response Response được ghi trực tiếp khi có quyền tải file
+     * @return ResponseEntity lỗi, hoặc null khi file đã được ghi vào response
      */
     @GetMapping("/file/{filename}")
     public ResponseEntity<?> getFile(
             @RequestHeader("Authorization") String authHeader,
             @PathVariable String filename,
-            @RequestHeader("User-Agent") String userAgent // Lấy userAgent từ header yêu cầu
+            @RequestHeader("User-Agent") String userAgent, // Lấy userAgent từ header yêu cầu
+            HttpServletRequest request,
+            HttpServletResponse response
     ) {
         try {
             log.info("User requested file: {}", filename);
 
             Resource resource = messageService.getFile(authHeader, filename, userAgent); // Truyền thêm userAgent vào service
-            log.debug("File '{}' successfully returned", filename);
-            return ResponseEntity.ok(resource);
+            fileResponseWriter.write(resource.getFile().toPath(), filename, request, response);
+            log.debug("File '{}' successfully returned with status {}", filename, response.getStatus());
+            return null; // Response đã được ghi (hoặc giao cho sendfile)
 
         } catch (SecurityException e) {
             log.warn("Access denied when requesting file '{}'", filename);
@@ -121,6 +285,10 @@ public class MessageController {
 
         } catch (IOException e) {
             log.error("Error while retrieving file '{}': {}", filename, e.getMessage());
+            if (response.isCommitted()) {
+                // Client ngắt kết nối giữa chừng: không thể trả về lỗi nữa
+                return null;
+            }
             return ResponseEntity.status(500).body("File error");
         }
     }
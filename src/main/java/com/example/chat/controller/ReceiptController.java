@@ -0,0 +1,67 @@
+package com.example.chat.controller;
+
+import com.example.chat.entity.ConversationReceipt;
+import com.example.chat.service.ReceiptService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+
+@RestController
+@RequestMapping("/api/receipts")
+@RequiredArgsConstructor
+@Slf4j
+public class ReceiptController {
+
+    private final ReceiptService receiptService;
+
+    /**
+     * API xác nhận đã nhận / đã đọc tin nhắn của một người đến id upTo (id lấy từ /api/sync hoặc lịch sử)
+     * @param authHeader Header chứa Authorization token
+     * @param peer người đã gửi các tin nhắn
+     * @param type DELIVERED hoặc READ
+     * @param upTo id tin nhắn lớn nhất được xác nhận
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return 202 khi xác nhận đã được ghi nhận (ghi DB và báo cho người gửi theo lô)
+     */
+    @PostMapping
+    public ResponseEntity<?> acknowledge(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestParam("peer") String peer,
+            @RequestParam("type") ConversationReceipt.Type type,
+            @RequestParam("upTo") long upTo,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            receiptService.acknowledge(authHeader, userAgent, peer, type, upTo);
+            return ResponseEntity.accepted().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid receipt: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SecurityException e) {
+            log.warn("Receipt for non-friend '{}' rejected", peer);
+            return ResponseEntity.status(403).body("Forbidden");
+        } catch (IOException e) {
+            log.error("Error while recording receipt: {}", e.getMessage());
+            return ResponseEntity.status(500).body("Receipt error");
+        }
+    }
+
+    /**
+     * API lấy mốc đã nhận / đã đọc của một người cho các tin nhắn mình đã gửi
+     * @param authHeader Header chứa Authorization token
+     * @param peer người nhận các tin nhắn
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa deliveredUpTo và readUpTo
+     */
+    @GetMapping("/{peer}")
+    public ResponseEntity<?> getReceipts(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String peer,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        return ResponseEntity.ok(receiptService.getReceipts(authHeader, userAgent, peer));
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.chat.controller;
+
+import com.example.chat.service.FileStorageService;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.UploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Tải lên file lớn theo từng đoạn:
+ * 1. POST /api/uploads → uploadId, chunkSize, chunkCount
+ * 2. PUT /api/uploads/{uploadId}/chunks/{index} cho từng đoạn (thứ tự bất kỳ, song song, gửi lại khi lỗi)
+ * 3. GET /api/uploads/{uploadId} → các đoạn còn thiếu (tiếp tục sau khi mất kết nối)
+ * 4. POST /api/uploads/{uploadId}/complete → gửi tin nhắn file như /api/send/file
+ */
+@RestController
+@RequestMapping("/api/uploads")
+@RequiredArgsConstructor
+@Slf4j
+public class UploadController {
+
+    private final UploadService uploadService;
+
+    /**
+     * API bắt đầu tải lên theo từng đoạn
+     * @param authHeader Header chứa Authorization token
+     * @param username Người nhận tin nhắn
+     * @param filename Tên file
+     * @param size Kích thước file (byte)
+     * @param sha256 Mã băm SHA-256 của nội dung (tuỳ chọn), kiểm tra khi hoàn tất
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa uploadId, chunkSize và chunkCount
+     */
+    @PostMapping
+    public ResponseEntity<?> create(
+            @RequestHeader("Authorization") String authHeader,
+            @RequestParam("username") String username,
+            @RequestParam("filename") String filename,
+            @RequestParam("size") long size,
+            @RequestParam(value = "sha256", required = false) String sha256,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            return ResponseEntity.ok(uploadService.create(authHeader, userAgent, username, filename, size, sha256));
+        } catch (FileStorageService.TooLargeException e) {
+            log.warn("Chunked upload for '{}' rejected: {}", username, e.getMessage());
+            return ResponseEntity.status(413).body(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid chunked upload request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (SecurityException e) {
+            log.warn("Chunked upload to non-friend '{}' rejected", username);
+            return ResponseEntity.status(403).body("Forbidden");
+        } catch (IllegalStateException e) {
+            log.warn("Chunked upload for '{}' rejected: {}", username, e.getMessage());
+            return ResponseEntity.status(503).body(e.getMessage());
+        } catch (IOException e) {
+            log.error("Error while starting chunked upload for '{}': {}", username, e.getMessage());
+            return ResponseEntity.status(500).body("File handling error");
+        }
+    }
+
+    /**
+     * API gửi một đoạn: body là nội dung đoạn (application/octet-stream), đủ chunkSize byte trừ đoạn cuối
+     * @param authHeader Header chứa Authorization token
+     * @param uploadId Id lượt tải lên
+     * @param index Số thứ tự đoạn, từ 0
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param request Request chứa nội dung đoạn
+     * @return ResponseEntity chứa index và số đoạn còn thiếu
+     */
+    @PutMapping(value = "/{uploadId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> writeChunk(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String uploadId,
+            @PathVariable int index,
+            @RequestHeader("User-Agent") String userAgent,
+            HttpServletRequest request
+    ) {
+        try {
+            return ResponseEntity.ok(uploadService.writeChunk(authHeader, userAgent, uploadId, index,
+                    request.getInputStream(), request.getContentLengthLong()));
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.status(404).body(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid chunk {} for upload {}: {}", index, uploadId, e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(409).body(e.getMessage());
+        } catch (IOException e) {
+            log.error("File handling error while writing chunk {} of upload {}: {}", index, uploadId, e.getMessage());
+            return ResponseEntity.status(500).body("File handling error");
+        }
+    }
+
+    /**
+     * API lấy trạng thái lượt tải lên
+     * @param authHeader Header chứa Authorization token
+     * @param uploadId Id lượt tải lên
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity chứa kích thước, các đoạn còn thiếu và trạng thái hoàn tất
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<?> status(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String uploadId,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            return ResponseEntity.ok(uploadService.status(authHeader, userAgent, uploadId));
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.status(404).body(e.getMessage());
+        }
+    }
+
+    /**
+     * API hoàn tất tải lên và gửi tin nhắn file
+     * @param authHeader Header chứa Authorization token
+     * @param uploadId Id lượt tải lên
+     * @param clientMessageId Id do client sinh (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return ResponseEntity kết quả gửi tin nhắn (kèm size và sha256 của file)
+     */
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<?> complete(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String uploadId,
+            @RequestParam(value = "clientMessageId", required = false) String clientMessageId,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            Map<String, Object> result = uploadService.complete(authHeader, userAgent, uploadId, clientMessageId);
+            int status = (int) result.get("status");
+            if (status == 404) {
+                return ResponseEntity.status(404).body(result.get("message"));
+            }
+            return ResponseEntity.ok(result);
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.status(404).body(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.warn("Chunked upload {} rejected: {}", uploadId, e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (MessageWriteService.WriteTimeoutException e) {
+            log.warn("Timed out storing message for upload {}: {}", uploadId, e.getMessage());
+            return ResponseEntity.status(503).body(e.getMessage());
+        } catch (IllegalStateException e) {
+            // Còn đoạn chưa nhận, hoặc lần gửi cùng clientMessageId đang được xử lý
+            log.warn("Chunked upload {} is not ready: {}", uploadId, e.getMessage());
+            return ResponseEntity.status(409).body(e.getMessage());
+        } catch (IOException e) {
+            log.error("File handling error while completing upload {}: {}", uploadId, e.getMessage());
+            return ResponseEntity.status(500).body("File handling error");
+        }
+    }
+
+    /**
+     * API huỷ lượt tải lên
+     * @param authHeader Header chứa Authorization token
+     * @param uploadId Id lượt tải lên
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return 204 khi đã huỷ
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<?> abort(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String uploadId,
+            @RequestHeader("User-Agent") String userAgent
+    ) {
+        try {
+            uploadService.abort(authHeader, userAgent, uploadId);
+            return ResponseEntity.noContent().build();
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.status(404).body(e.getMessage());
+        } catch (IOException e) {
+            log.error("Error while aborting upload {}: {}", uploadId, e.getMessage());
+            return ResponseEntity.status(500).body("File handling error");
+        }
+    }
+}
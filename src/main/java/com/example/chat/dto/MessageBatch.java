@@ -0,0 +1,27 @@
+package com.example.chat.dto;
+
+import com.example.chat.entity.Message;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.util.List;
+
+/**
+ * Lô tin nhắn trả về cho long polling và kênh push.
+ * Giữ nguyên danh sách entity, không tạo Map trung gian cho từng tin nhắn:
+ * MessageBatchSerializer gom nhóm theo người gửi và ghi thẳng JSON ra response.
+ * JSON: [{"sender": ..., "messages": [{"time": ..., "message": ..., "groupId"?, "id"?, "clientMessageId"?}]}]
+ * Thông báo xác nhận nằm cùng danh sách: {"time": ..., "receipt": "DELIVERED" | "READ", "upTo": ...}
+ */
+@JsonSerialize(using = MessageBatchSerializer.class)
+public record MessageBatch(List<Message> messages) {
+
+    public static final MessageBatch EMPTY = new MessageBatch(List.of());
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.chat.dto;
+
+import com.example.chat.entity.Message;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ghi MessageBatch bằng streaming JsonGenerator (ghi thẳng ra output stream của response).
+ * Gom nhóm theo người gửi trong một lượt: mỗi người gửi giữ vị trí tin nhắn đầu/cuối,
+ * các tin nhắn cùng người gửi được nối với nhau qua một mảng int, nên số object tạo ra chỉ phụ thuộc số người gửi.
+ */
+public class MessageBatchSerializer extends StdSerializer<MessageBatch> {
+
+    // Đủ cho mọi LocalDateTime, kể cả năm có dấu và 9 chữ số phần nano
+    private static final int TIME_BUFFER_SIZE = 40;
+
+    public MessageBatchSerializer() {
+        super(MessageBatch.class);
+    }
+
+    @Override
+    public void serialize(MessageBatch batch, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        List<Message> messages = batch.messages();
+        int[] next = new int[messages.size()];
+
+        // Key: người gửi (theo thứ tự xuất hiện); Value: {vị trí tin nhắn đầu tiên, vị trí tin nhắn cuối cùng}
+        Map<String, int[]> senders = new LinkedHashMap<>();
+        for (int i = 0; i < next.length; i++) {
+            next[i] = -1;
+            int[] ends = senders.get(messages.get(i).getSender());
+            if (ends == null) {
+                senders.put(messages.get(i).getSender(), new int[]{i, i});
+            } else {
+                next[ends[1]] = i;
+                ends[1] = i;
+            }
+        }
+
+        char[] timeBuffer = new char[TIME_BUFFER_SIZE];
+        gen.writeStartArray();
+        for (Map.Entry<String, int[]> sender : senders.entrySet()) {
+            gen.writeStartObject();
+            gen.writeStringField("sender", sender.getKey());
+            gen.writeArrayFieldStart("messages");
+            for (int i = sender.getValue()[0]; i >= 0; i = next[i]) {
+                writeMessage(gen, messages.get(i), timeBuffer);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    private void writeMessage(JsonGenerator gen, Message m, char[] timeBuffer) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName("time");
+        if (m.getTimestamp() == null) {
+            gen.writeNull();
+        } else {
+            gen.writeString(timeBuffer, 0, formatTime(m.getTimestamp(), timeBuffer));
+        }
+        if (m.getReceipt() != null) {
+            // Thông báo xác nhận: người gửi (sender của nhóm) đã nhận / đã đọc tin nhắn có id ≤ upTo
+            gen.writeStringField("receipt", m.getReceipt().name());
+            gen.writeNumberField("upTo", m.getReceiptUpTo());
+            gen.writeEndObject();
+            return;
+        }
+        gen.writeStringField("message", m.getContent());
+        if (m.getGroupId() != null) {
+            // Tin nhắn nhóm: kèm id để client bỏ trùng khi lấy lại theo con trỏ đọc của nhóm
+            gen.writeNumberField("groupId", m.getGroupId());
+            gen.writeFieldName("id");
+            if (m.getId() == null) {
+                gen.writeNull();
+            } else {
+                gen.writeNumber(m.getId());
+            }
+        }
+        if (m.getClientMessageId() != null) {
+            // Client bỏ trùng tin nhắn nhận được nhiều lần (ví dụ gửi lại sau khi hết cửa sổ chống trùng)
+            gen.writeStringField("clientMessageId", m.getClientMessageId());
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Ghi thời gian vào buffer đúng định dạng của LocalDateTime.toString() mà không tạo String
+     * @return số ký tự đã ghi
+     */
+    private static int formatTime(LocalDateTime time, char[] buf) {
+        int year = time.getYear();
+        if (year < 0 || year > 9999) {
+            // Năm ngoài khoảng 4 chữ số (không xảy ra với dữ liệu thực) → dùng định dạng chuẩn
+            String text = time.toString();
+            text.getChars(0, text.length(), buf, 0);
+            return text.length();
+        }
+        int pos = 0;
+        pos = digits(year, 4, buf, pos);
+        buf[pos++] = '-';
+        pos = digits(time.getMonthValue(), 2, buf, pos);
+        buf[pos++] = '-';
+        pos = digits(time.getDayOfMonth(), 2, buf, pos);
+        buf[pos++] = 'T';
+        pos = digits(time.getHour(), 2, buf, pos);
+        buf[pos++] = ':';
+        pos = digits(time.getMinute(), 2, buf, pos);
+
+        int second = time.getSecond();
+        int nano = time.getNano();
+        if (second > 0 || nano > 0) {
+            buf[pos++] = ':';
+            pos = digits(second, 2, buf, pos);
+            if (nano > 0) {
+                buf[pos++] = '.';
+                // Giống LocalTime.toString(): 3, 6 hoặc 9 chữ số tuỳ độ chính xác
+                if (nano % 1_000_000 == 0) {
+                    pos = digits(nano / 1_000_000, 3, buf, pos);
+                } else if (nano % 1000 == 0) {
+                    pos = digits(nano / 1000, 6, buf, pos);
+                } else {
+                    pos = digits(nano, 9, buf, pos);
+                }
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Ghi số không âm với đúng width chữ số (đệm số 0 bên trái)
+     */
+    private static int digits(int value, int width, char[] buf, int pos) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + width;
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Tin nhắn đã nhận và cũ hơn thời gian lưu giữ, được chuyển khỏi bảng message (xem MessageArchiveService).
+ * Giữ nguyên id và nội dung dạng lưu DB của tin nhắn gốc nên con trỏ đồng bộ và vị trí trang lịch sử vẫn dùng được.
+ */
+@Entity
+@Table(name = "message_archive", indexes = {
+        // Đồng bộ theo con trỏ: WHERE receiver = ? AND id > ? ORDER BY id
+        @Index(name = "idx_message_archive_receiver_id", columnList = "receiver, id"),
+        // Lịch sử hội thoại phân trang theo keyset (timestamp, id)
+        @Index(name = "idx_message_archive_conversation", columnList = "sender, receiver, timestamp, id")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ArchivedMessage {
+    // Id của tin nhắn trong bảng message (không tự sinh)
+    @Id
+    private Long id;
+
+    private String sender;
+    private String receiver;
+
+    // Nội dung dạng lưu DB, copy nguyên văn từ bảng message (có thể đã nén, xem ContentCodec)
+    @Column(name = "content", columnDefinition = "TEXT")
+    @ToString.Exclude
+    private String content;
+
+    private boolean isFile;
+    private LocalDateTime timestamp;
+    private boolean delivered;
+
+    @Column(name = "group_id")
+    private Long groupId;
+
+    @Column(name = "client_message_id", length = 64)
+    private String clientMessageId;
+
+    /**
+     * Dựng lại tin nhắn để trả về cùng định dạng với tin nhắn trong bảng message (nội dung được giải nén khi cần)
+     */
+    public Message toMessage() {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.restoreStoredContent(content);
+        message.setFile(isFile);
+        message.setTimestamp(timestamp);
+        message.setDelivered(delivered);
+        message.setGroupId(groupId);
+        message.setClientMessageId(clientMessageId);
+        return message;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "chat_group")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ChatGroup {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private String name;
+
+    // Người tạo nhóm
+    private String owner;
+
+    private LocalDateTime createdAt;
+}
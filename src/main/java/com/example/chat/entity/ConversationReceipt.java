@@ -0,0 +1,38 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+/**
+ * Xác nhận đã nhận / đã đọc của một hội thoại 1-1, lưu dạng mốc "đến id N" thay vì từng tin nhắn:
+ * reader đã nhận (đã đọc) mọi tin nhắn peer gửi cho mình có id ≤ mốc.
+ */
+@Entity
+@Table(name = "conversation_receipt",
+        uniqueConstraints = @UniqueConstraint(name = "uk_conversation_receipt", columnNames = {"reader", "peer"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ConversationReceipt {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Người nhận tin nhắn (người gửi xác nhận)
+    private String reader;
+
+    // Người gửi tin nhắn (người được báo xác nhận)
+    private String peer;
+
+    private long deliveredUpTo;
+    private long readUpTo;
+
+    /**
+     * Loại xác nhận
+     */
+    public enum Type {
+        DELIVERED, // Thiết bị của reader đã nhận
+        READ       // Reader đã đọc (bao gồm đã nhận)
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+/**
+ * Quyền tải một file đính kèm: mỗi dòng cho phép một user tải một nội dung file.
+ * Được ghi khi gửi tin nhắn file (cho người gửi và người nhận), kiểm tra bằng unique index (file_id, username).
+ */
+@Entity
+@Table(name = "file_access",
+        uniqueConstraints = @UniqueConstraint(name = "uk_file_access", columnNames = {"file_id", "username"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class FileAccess {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Mã băm nội dung (file dạng {sha256}_{tên}), hoặc tên file với file dạng cũ {uuid}_{tên}
+    @Column(name = "file_id", length = 320)
+    private String fileId;
+
+    private String username;
+}
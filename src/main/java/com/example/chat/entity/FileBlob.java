@@ -0,0 +1,30 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Nội dung file đính kèm lưu theo mã băm: mỗi nội dung chỉ có một file storage/{sha256},
+ * refCount đếm số tin nhắn đang trỏ đến nội dung này.
+ */
+@Entity
+@Table(name = "file_blob")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class FileBlob {
+    // SHA-256 (hex, chữ thường) của nội dung
+    @Id
+    @Column(length = 64)
+    private String sha256;
+
+    private long size;
+
+    // Số tin nhắn đang tham chiếu
+    private long refCount;
+
+    private LocalDateTime createdAt;
+}
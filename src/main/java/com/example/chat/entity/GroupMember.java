@@ -0,0 +1,26 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+@Entity
+@Table(name = "group_member",
+        uniqueConstraints = @UniqueConstraint(name = "uk_group_member", columnNames = {"group_id", "username"}),
+        indexes = @Index(name = "idx_group_member_username", columnList = "username"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class GroupMember {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "group_id")
+    private Long groupId;
+
+    private String username;
+
+    // Con trỏ đọc: id tin nhắn nhóm cuối cùng thành viên đã lấy về (tin nhắn có id lớn hơn là chưa đọc)
+    private long lastReadMessageId;
+}
@@ -1,15 +1,27 @@
 package com.example.chat.entity;
 
+import com.example.chat.util.ContentCodec;
 import jakarta.persistence.*;
 import lombok.*;
 
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "message")
+@Table(name = "message", indexes = {
+        // Đồng bộ theo con trỏ: WHERE receiver = ? AND id > ? ORDER BY id
+        @Index(name = "idx_message_receiver_id", columnList = "receiver, id"),
+        // Lịch sử hội thoại phân trang theo keyset (timestamp, id) cho từng chiều sender → receiver
+        @Index(name = "idx_message_conversation", columnList = "sender, receiver, timestamp, id"),
+        // Tin nhắn đã giao gần nhất của một hội thoại: WHERE receiver = ? AND sender = ? ORDER BY id DESC
+        @Index(name = "idx_message_receiver_sender_id", columnList = "receiver, sender, id"),
+        // Tin nhắn nhóm sau con trỏ đọc của thành viên: WHERE group_id = ? AND id > ? ORDER BY id
+        @Index(name = "idx_message_group_id", columnList = "group_id, id")
+}, uniqueConstraints = {
+        // Chống lưu trùng khi client gửi lại cùng một tin nhắn (MySQL cho phép nhiều dòng client_message_id = NULL)
+        @UniqueConstraint(name = "uk_message_sender_client_id", columnNames = {"sender", "client_message_id"})
+})
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
 @Getter
 @Setter
 public class Message {
@@ -20,10 +32,102 @@ public class Message {
     private String sender;
     private String receiver;
 
-    @Column(columnDefinition = "TEXT")
+    // Nội dung gốc: có khi tin nhắn được tạo trong process, null khi đọc từ DB (giải nén khi cần)
+    @Transient
     private String content;
 
+    // Nội dung dạng lưu DB, nội dung dài được nén (xem ContentCodec)
+    @Column(name = "content", columnDefinition = "TEXT")
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private String storedContent;
+
     private boolean isFile;
     private LocalDateTime timestamp;
     private boolean delivered;
+
+    // Tin nhắn nhóm: lưu một lần với receiver = null, mỗi thành viên theo dõi bằng con trỏ đọc riêng (GroupMember)
+    @Column(name = "group_id")
+    private Long groupId;
+
+    // Id do client sinh cho lần gửi (tuỳ chọn), dùng để bỏ qua các lần gửi lại
+    @Column(name = "client_message_id", length = 64)
+    private String clientMessageId;
+
+    // Thông báo xác nhận đẩy cho người gửi qua hộp thư (không lưu DB): loại và mốc id
+    @Transient
+    private ConversationReceipt.Type receipt;
+
+    @Transient
+    private Long receiptUpTo;
+
+    public Message(Long id, String sender, String receiver, String content, boolean isFile,
+                   LocalDateTime timestamp, boolean delivered, Long groupId, String clientMessageId) {
+        this.id = id;
+        this.sender = sender;
+        this.receiver = receiver;
+        setContent(content);
+        this.isFile = isFile;
+        this.timestamp = timestamp;
+        this.delivered = delivered;
+        this.groupId = groupId;
+        this.clientMessageId = clientMessageId;
+    }
+
+    /**
+     * Tin nhắn 1-1 (không thuộc nhóm)
+     */
+    public Message(Long id, String sender, String receiver, String content, boolean isFile,
+                   LocalDateTime timestamp, boolean delivered) {
+        this(id, sender, receiver, content, isFile, timestamp, delivered, null, null);
+    }
+
+    /**
+     * Tin nhắn nhóm (receiver = null)
+     */
+    public Message(Long id, String sender, String receiver, String content, boolean isFile,
+                   LocalDateTime timestamp, boolean delivered, Long groupId) {
+        this(id, sender, receiver, content, isFile, timestamp, delivered, groupId, null);
+    }
+
+    /**
+     * Thông báo xác nhận: reader đã nhận / đã đọc các tin nhắn gửi cho mình có id ≤ upTo
+     */
+    public static Message receiptNotice(String reader, String peer, ConversationReceipt.Type type, long upTo) {
+        Message notice = new Message();
+        notice.setSender(reader);
+        notice.setReceiver(peer);
+        notice.setTimestamp(LocalDateTime.now());
+        notice.setReceipt(type);
+        notice.setReceiptUpTo(upTo);
+        return notice;
+    }
+
+    /**
+     * Nội dung tin nhắn; tin nhắn đọc từ DB chỉ được giải nén khi gọi đến (thường là lúc ghi response)
+     */
+    public String getContent() {
+        return content != null ? content : ContentCodec.decode(storedContent);
+    }
+
+    public void setContent(String content) {
+        this.content = content;
+        this.storedContent = ContentCodec.encode(content);
+    }
+
+    /**
+     * Nội dung dạng lưu DB (dùng cho INSERT bằng JDBC)
+     */
+    public String storedContent() {
+        return storedContent;
+    }
+
+    /**
+     * Gán nội dung dạng lưu DB (dùng khi dựng lại tin nhắn từ bảng lưu trữ hoặc journal tin nhắn offline)
+     */
+    public void restoreStoredContent(String storedContent) {
+        this.content = null;
+        this.storedContent = storedContent;
+    }
 }
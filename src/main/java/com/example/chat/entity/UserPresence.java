@@ -0,0 +1,26 @@
+package com.example.chat.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Node đang giữ hộp thư của một user (chế độ bus http): ghi khi hộp thư được tạo, xoá khi hộp thư bị dọn.
+ * Node khác tra bảng này để chuyển tin nhắn thẳng đến đúng một node thay vì thử lần lượt từng node.
+ */
+@Entity
+@Table(name = "user_presence", indexes = @Index(name = "idx_user_presence_node", columnList = "node"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class UserPresence {
+    @Id
+    private String username;
+
+    // Địa chỉ của node giữ hộp thư, như trong chat.bus.peers của các node khác
+    private String node;
+
+    private LocalDateTime updatedAt;
+}
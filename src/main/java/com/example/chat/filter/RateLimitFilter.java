@@ -0,0 +1,178 @@
+package com.example.chat.filter;
+
+import com.example.chat.service.RateLimitService;
+import com.example.chat.service.RateLimitService.Endpoint;
+import com.example.chat.util.JwtUtil;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Giới hạn tần suất request trước mọi xử lý khác (Spring Security, JwtFilter, DB, BCrypt).
+ * Request vượt giới hạn bị trả về 429 ngay, kèm header Retry-After.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+@RequiredArgsConstructor
+@Slf4j
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private final RateLimitService rateLimitService;
+    private final JwtUtil jwtUtil;
+
+    @Value("${chat.ratelimit.enabled:true}")
+    private boolean enabled = true;
+
+    // true: lấy IP client từ X-Forwarded-For (chỉ bật khi chạy sau load balancer tin cậy)
+    @Value("${chat.ratelimit.trust-forwarded-for:false}")
+    private boolean trustForwardedFor = false;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || endpoint(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Endpoint endpoint = endpoint(request);
+        String clientIp = clientIp(request);
+        String username = endpoint == Endpoint.LOGIN ? null : username(request);
+
+        long waitMs = rateLimitService.tryAcquire(endpoint, clientIp, username);
+        if (waitMs > 0) {
+            log.debug("Rate limited {} request from {} (user '{}'), retry in {} ms", endpoint, clientIp, username, waitMs);
+            reject(response, waitMs);
+            return;
+        }
+        if (endpoint != Endpoint.POLL) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if (!rateLimitService.tryEnterPoll()) {
+            log.warn("Too many concurrent polls, rejected request from {}", clientIp);
+            reject(response, 1000);
+            return;
+        }
+        // Long polling async / SSE: request kết thúc khi async context complete, không phải khi filter trả về
+        AtomicBoolean released = new AtomicBoolean();
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new PollReleaseListener(released));
+                async = true;
+            }
+        } finally {
+            if (!async && released.compareAndSet(false, true)) {
+                rateLimitService.exitPoll();
+            }
+        }
+    }
+
+    /**
+     * Xác định nhóm giới hạn của request
+     * @return null nếu endpoint không bị giới hạn
+     */
+    private Endpoint endpoint(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String method = request.getMethod();
+        if (HttpMethod.POST.matches(method)) {
+            if (path.equals("/api/send") || path.equals("/api/send/file") || path.equals("/api/uploads")
+                    || path.equals("/api/receipts")
+                    || (path.startsWith("/api/groups/") && path.endsWith("/send"))) {
+                return Endpoint.SEND;
+            }
+            if (path.equals("/api/login") || path.equals("/api/refresh")) {
+                return Endpoint.LOGIN;
+            }
+        } else if (HttpMethod.GET.matches(method) && (path.equals("/api/messages") || path.equals("/api/stream"))) {
+            return Endpoint.POLL;
+        }
+        return null;
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        if (trustForwardedFor) {
+            String forwarded = request.getHeader("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isBlank()) {
+                int comma = forwarded.indexOf(',');
+                return (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Lấy user từ access token chỉ bằng kiểm tra chữ ký (không truy cập DB).
+     * Token hết hạn vẫn có chữ ký hợp lệ nên vẫn tính cho user đó; token sai thì chỉ áp dụng giới hạn theo IP.
+     */
+    private String username(HttpServletRequest request) {
+        String header = request.getHeader("Authorization");
+        String userAgent = request.getHeader("User-Agent");
+        if (header == null || !header.startsWith("Bearer ") || userAgent == null) {
+            return null;
+        }
+        try {
+            return jwtUtil.validateToken(header.substring(7), userAgent);
+        } catch (ExpiredJwtException e) {
+            return e.getClaims().getSubject();
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void reject(HttpServletResponse response, long waitMs) throws IOException {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader("Retry-After", String.valueOf((waitMs + 999) / 1000));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write("{\"error\":\"Too many requests\"}");
+    }
+
+    /**
+     * Trả lại chỗ long polling khi request async kết thúc (onComplete luôn được gọi, kể cả sau timeout/lỗi)
+     */
+    @RequiredArgsConstructor
+    private class PollReleaseListener implements AsyncListener {
+
+        private final AtomicBoolean released;
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            if (released.compareAndSet(false, true)) {
+                rateLimitService.exitPoll();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
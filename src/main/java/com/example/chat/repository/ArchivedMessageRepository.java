@@ -0,0 +1,35 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.ArchivedMessage;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface ArchivedMessageRepository extends JpaRepository<ArchivedMessage, Long> {
+
+    // Tin nhắn đã lưu trữ sau con trỏ của client (quét theo index receiver, id)
+    List<ArchivedMessage> findByReceiverAndIdGreaterThanOrderByIdAsc(String receiver, Long id, Limit limit);
+
+    // Một trang lịch sử đã lưu trữ theo một chiều hội thoại, trước vị trí (timestamp, id) của trang trước
+    @Query("SELECT a FROM ArchivedMessage a WHERE a.sender = :sender AND a.receiver = :receiver " +
+            "AND (a.timestamp < :beforeTime OR (a.timestamp = :beforeTime AND a.id < :beforeId)) " +
+            "ORDER BY a.timestamp DESC, a.id DESC")
+    List<ArchivedMessage> findConversationPage(@Param("sender") String sender,
+                                               @Param("receiver") String receiver,
+                                               @Param("beforeTime") LocalDateTime beforeTime,
+                                               @Param("beforeId") Long beforeId,
+                                               Pageable pageable);
+
+    // User có nhận tin nhắn file với nội dung (dạng lưu DB) này trong dữ liệu đã lưu trữ không
+    @Query("SELECT CASE WHEN COUNT(a) > 0 THEN true ELSE false END FROM ArchivedMessage a " +
+            "WHERE a.receiver = :receiver AND a.isFile = true AND a.content = :content")
+    boolean existsFileMessage(@Param("receiver") String receiver, @Param("content") String content);
+
+    // Tin nhắn file đã lưu trữ sau id cho trước theo thứ tự id (backfill bảng file_access)
+    List<ArchivedMessage> findByIsFileTrueAndIdGreaterThanOrderByIdAsc(Long id, Limit limit);
+}
@@ -0,0 +1,7 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.ChatGroup;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ChatGroupRepository extends JpaRepository<ChatGroup, Long> {
+}
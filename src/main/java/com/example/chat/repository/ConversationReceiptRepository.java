@@ -0,0 +1,10 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.ConversationReceipt;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.Optional;
+
+public interface ConversationReceiptRepository extends JpaRepository<ConversationReceipt, Long> {
+    Optional<ConversationReceipt> findByReaderAndPeer(String reader, String peer);
+}
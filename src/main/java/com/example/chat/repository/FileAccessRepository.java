@@ -0,0 +1,21 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.FileAccess;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface FileAccessRepository extends JpaRepository<FileAccess, Long> {
+
+    // Tra cứu theo unique index (file_id, username)
+    boolean existsByFileIdAndUsername(String fileId, String username);
+
+    // Cấp quyền, bỏ qua nếu đã có
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO file_access (file_id, username) VALUES (:fileId, :username) " +
+            "ON DUPLICATE KEY UPDATE username = username", nativeQuery = true)
+    int grant(@Param("fileId") String fileId, @Param("username") String username);
+}
@@ -0,0 +1,38 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.FileBlob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface FileBlobRepository extends JpaRepository<FileBlob, String> {
+
+    // Nội dung mới → tạo dòng với refCount = 1; đã có (tải lên trùng) → tăng refCount, trong một câu lệnh
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO file_blob (sha256, size, ref_count, created_at) VALUES (:sha256, :size, 1, :createdAt) " +
+            "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1", nativeQuery = true)
+    int insertOrAddReference(@Param("sha256") String sha256, @Param("size") long size,
+                             @Param("createdAt") LocalDateTime createdAt);
+
+    // Thêm một tin nhắn trỏ đến nội dung đã lưu (0 nếu không có)
+    @Transactional
+    @Modifying
+    @Query("UPDATE FileBlob b SET b.refCount = b.refCount + 1 WHERE b.sha256 = :sha256")
+    int addReference(@Param("sha256") String sha256);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE FileBlob b SET b.refCount = b.refCount - 1 WHERE b.sha256 = :sha256")
+    int removeReference(@Param("sha256") String sha256);
+
+    // Xoá nội dung không còn tin nhắn nào tham chiếu
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM FileBlob b WHERE b.sha256 = :sha256 AND b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("sha256") String sha256);
+}
@@ -0,0 +1,26 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.GroupMember;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface GroupMemberRepository extends JpaRepository<GroupMember, Long> {
+    List<GroupMember> findByGroupId(Long groupId);
+    List<GroupMember> findByUsername(String username);
+    Optional<GroupMember> findByGroupIdAndUsername(Long groupId, String username);
+
+    // Chỉ tiến con trỏ đọc về phía trước (hai request đồng thời không làm con trỏ lùi lại)
+    @Transactional
+    @Modifying
+    @Query("UPDATE GroupMember gm SET gm.lastReadMessageId = :messageId " +
+            "WHERE gm.groupId = :groupId AND gm.username = :username AND gm.lastReadMessageId < :messageId")
+    int advanceCursor(@Param("groupId") Long groupId,
+                      @Param("username") String username,
+                      @Param("messageId") long messageId);
+}
@@ -1,11 +1,52 @@
 package com.example.chat.repository;
 
 import com.example.chat.entity.Message;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Optional;
 
 public interface MessageRepository extends JpaRepository<Message, Long> {
     List<Message> findByReceiverAndDeliveredFalse(String receiver);
     List<Message> findByReceiver(String receiver);
+
+    // Tin nhắn sau con trỏ của client (quét theo index receiver, id)
+    List<Message> findByReceiverAndIdGreaterThanOrderByIdAsc(String receiver, Long id, Limit limit);
+
+    // Tin nhắn nhóm sau con trỏ đọc của thành viên (quét theo index group_id, id)
+    List<Message> findByGroupIdAndIdGreaterThanOrderByIdAsc(Long groupId, Long id, Limit limit);
+
+    // Tin nhắn đã lưu của một lần gửi (unique constraint sender, client_message_id)
+    Optional<Message> findBySenderAndClientMessageId(String sender, String clientMessageId);
+
+    // Một trang lịch sử theo một chiều hội thoại, trước vị trí (timestamp, id) của trang trước
+    @Query("SELECT m FROM Message m WHERE m.sender = :sender AND m.receiver = :receiver " +
+            "AND (m.timestamp < :beforeTime OR (m.timestamp = :beforeTime AND m.id < :beforeId)) " +
+            "ORDER BY m.timestamp DESC, m.id DESC")
+    List<Message> findConversationPage(@Param("sender") String sender,
+                                       @Param("receiver") String receiver,
+                                       @Param("beforeTime") LocalDateTime beforeTime,
+                                       @Param("beforeId") Long beforeId,
+                                       Pageable pageable);
+
+    // User có nhận tin nhắn file với nội dung (dạng lưu DB) này không (quét theo index receiver, id)
+    @Query("SELECT CASE WHEN COUNT(m) > 0 THEN true ELSE false END FROM Message m " +
+            "WHERE m.receiver = :receiver AND m.isFile = true AND m.storedContent = :content")
+    boolean existsFileMessage(@Param("receiver") String receiver, @Param("content") String content);
+
+    // Tin nhắn file sau id cho trước theo thứ tự id (backfill bảng file_access)
+    List<Message> findByIsFileTrueAndIdGreaterThanOrderByIdAsc(Long id, Limit limit);
+
+    // Đánh dấu đã nhận cho cả lô tin nhắn bằng một câu UPDATE
+    @Transactional
+    @Modifying
+    @Query("UPDATE Message m SET m.delivered = true WHERE m.id IN :ids")
+    int markDelivered(@Param("ids") List<Long> ids);
 }
@@ -0,0 +1,33 @@
+package com.example.chat.repository;
+
+import com.example.chat.entity.UserPresence;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface UserPresenceRepository extends JpaRepository<UserPresence, String> {
+
+    // Hộp thư của user vừa được tạo ở node này: ghi đè node cũ (thiết bị mới nhất quyết định)
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO user_presence (username, node, updated_at) VALUES (:username, :node, :updatedAt) " +
+            "ON DUPLICATE KEY UPDATE node = VALUES(node), updated_at = VALUES(updated_at)", nativeQuery = true)
+    int publish(@Param("username") String username, @Param("node") String node,
+                @Param("updatedAt") LocalDateTime updatedAt);
+
+    // Hộp thư bị dọn: chỉ xoá khi dòng vẫn trỏ đến node này (user có thể đã mở hộp thư ở node khác)
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM UserPresence p WHERE p.username = :username AND p.node = :node")
+    int withdraw(@Param("username") String username, @Param("node") String node);
+
+    // Node khởi động lại với registry rỗng: xoá các dòng còn sót từ lần chạy trước
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM UserPresence p WHERE p.node = :node")
+    int deleteByNode(@Param("node") String node);
+}
@@ -0,0 +1,30 @@
+package com.example.chat.service;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+
+import java.util.Collection;
+
+public interface DeliveryBus {
+
+    /**
+     * Chuyển tin nhắn đến node đang giữ thiết bị chờ của người nhận.
+     * Nếu một hộp thư (ở node này hoặc node khác) đã nhận tin nhắn thì hộp thư đó chịu trách nhiệm lưu DB.
+     * @param username tên người nhận
+     * @param message tin nhắn mới chưa lưu DB
+     * @return ACCEPTED nếu có hộp thư nhận tin nhắn; OFFLINE nếu người gửi cần tự lưu DB
+     */
+    DeliveryStatus deliver(String username, Message message);
+
+    /**
+     * Fan-out một tin nhắn đã lưu DB (tin nhắn nhóm) đến hộp thư của nhiều người nhận.
+     * Người nhận không online không cần xử lý thêm: họ lấy lại tin nhắn theo con trỏ đọc.
+     * @param usernames danh sách người nhận
+     * @param message tin nhắn đã có id
+     */
+    default void deliverAll(Collection<String> usernames, Message message) {
+        for (String username : usernames) {
+            deliver(username, message);
+        }
+    }
+}
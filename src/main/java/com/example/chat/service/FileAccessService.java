@@ -0,0 +1,26 @@
+package com.example.chat.service;
+
+public interface FileAccessService {
+
+    /**
+     * Cho phép các user tải một file
+     * @param fileId khoá nội dung file (FileStorageService.contentId)
+     * @param usernames các user được phép tải
+     */
+    void grant(String fileId, String... usernames);
+
+    /**
+     * Kiểm tra quyền tải file bằng một lần tra cứu theo index (kết quả được cache)
+     * @param username user yêu cầu tải
+     * @param fileId khoá nội dung file (FileStorageService.contentId)
+     * @return true nếu user đã gửi hoặc nhận file này
+     */
+    boolean canAccess(String username, String fileId);
+
+    /**
+     * Ghi quyền cho mọi tin nhắn file đã gửi trước khi có bảng file_access (kể cả tin nhắn đã lưu trữ).
+     * Chạy lại được: quyền đã có được bỏ qua
+     * @return số tin nhắn file đã xử lý
+     */
+    int backfill();
+}
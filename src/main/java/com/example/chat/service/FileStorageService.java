@@ -0,0 +1,99 @@
+package com.example.chat.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+public interface FileStorageService {
+
+    /**
+     * File đính kèm đã lưu
+     * @param name tên file trong link /api/file/{name}: {sha256}_{tên gốc}
+     * @param size số byte đã ghi
+     * @param sha256 mã băm SHA-256 (hex) của nội dung, tính trong lúc ghi
+     */
+    record StoredFile(String name, long size, String sha256) {
+    }
+
+    /**
+     * File vượt quá dung lượng cho phép
+     */
+    class TooLargeException extends IllegalArgumentException {
+        public TooLargeException(long maxBytes) {
+            super("File exceeds the maximum size of " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Ghi nội dung từ stream vào thư mục lưu trữ, tính kích thước và mã băm trong lúc ghi
+     * (không đệm toàn bộ file trong bộ nhớ). Nội dung đã có (cùng mã băm) không được lưu lần thứ hai,
+     * chỉ tăng số tham chiếu.
+     * @param in nội dung file
+     * @param originalName tên file do client gửi (chỉ giữ phần tên, bỏ đường dẫn)
+     * @param declaredSize kích thước client khai báo (Content-Length), -1 nếu không biết
+     * @return thông tin file đã lưu
+     * @throws TooLargeException nếu file vượt quá dung lượng cho phép (phần đã ghi bị xoá)
+     * @throws IllegalArgumentException nếu file rỗng
+     * @throws IOException lỗi đọc request hoặc ghi đĩa (phần đã ghi bị xoá)
+     */
+    StoredFile store(InputStream in, String originalName, long declaredSize) throws IOException;
+
+    /**
+     * Tạo file tạm rỗng có sẵn kích thước cho trước trong thư mục lưu trữ (cùng filesystem với nơi lưu),
+     * để ghi nội dung theo vị trí rồi đưa vào kho bằng {@link #adopt}
+     * @param size kích thước file
+     * @return đường dẫn file tạm
+     * @throws IOException lỗi tạo file
+     */
+    Path createTempFile(long size) throws IOException;
+
+    /**
+     * Xoá các file tạm không được ghi từ trước thời điểm cho trước: lượt tải lên mất khi node khởi động lại
+     * (trạng thái chỉ nằm trong bộ nhớ) hoặc request bị ngắt khi node dừng đột ngột
+     * @param modifiedBefore thời điểm (epoch ms); file sửa lần cuối trước thời điểm này bị xoá
+     * @return số file đã xoá
+     * @throws IOException lỗi đọc thư mục tạm
+     */
+    int deleteStaleTempFiles(long modifiedBefore) throws IOException;
+
+    /**
+     * Đưa file tạm đã ghi xong vào kho: tính kích thước và mã băm, đổi tên (không copy)
+     * hoặc xoá nếu nội dung đã có; file tạm luôn bị chuyển đi hoặc xoá kể cả khi lỗi
+     * @param tempFile file tạo bởi {@link #createTempFile}
+     * @param originalName tên file do client gửi
+     * @return thông tin file đã lưu
+     * @throws IllegalArgumentException nếu file rỗng
+     * @throws IOException lỗi đọc hoặc đổi tên file
+     */
+    StoredFile adopt(Path tempFile, String originalName) throws IOException;
+
+    /**
+     * Thêm một tham chiếu đến nội dung đã lưu theo mã băm mà không cần tải lên lại (chuyển tiếp file)
+     * @param sha256 mã băm SHA-256 (hex) của nội dung
+     * @param originalName tên file do client gửi
+     * @return thông tin file, rỗng nếu chưa có nội dung với mã băm này
+     * @throws IOException lỗi đọc thông tin file
+     */
+    Optional<StoredFile> reference(String sha256, String originalName) throws IOException;
+
+    /**
+     * Bỏ một tham chiếu (tin nhắn trỏ đến file không được tạo); nội dung bị xoá khi không còn tham chiếu nào
+     * @param name tên file trong link /api/file/{name}
+     */
+    void release(String name);
+
+    /**
+     * Khoá của nội dung file: mã băm với tên dạng {sha256}_{tên gốc}, chính tên file với tên dạng cũ
+     * @param name tên file trong link /api/file/{name}
+     * @return khoá nội dung (các tên cùng nội dung có cùng khoá)
+     */
+    String contentId(String name);
+
+    /**
+     * Đường dẫn của file đã lưu
+     * @param name tên file trong link /api/file/{name} (kể cả tên dạng cũ {uuid}_{tên gốc})
+     * @return đường dẫn file (có thể chưa tồn tại)
+     */
+    Path resolve(String name);
+}
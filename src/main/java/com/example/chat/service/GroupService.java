@@ -0,0 +1,16 @@
+package com.example.chat.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public interface GroupService {
+
+    Map<String, Object> createGroup(String authHeader, String userAgent, String name, List<String> members) throws IOException;
+
+    List<Map<String, Object>> getGroups(String authHeader, String userAgent);
+
+    Map<String, Object> sendGroupMessage(String authHeader, String userAgent, Long groupId, String message, String clientMessageId);
+
+    Map<String, Object> getGroupMessages(String authHeader, String userAgent, Long groupId, Long after, int limit);
+}
@@ -0,0 +1,12 @@
+package com.example.chat.service;
+
+public interface MessageArchiveService {
+
+    /**
+     * Chuyển các tin nhắn 1-1 đã nhận và cũ hơn thời gian lưu giữ từ bảng message sang bảng message_archive.
+     * Mỗi lô nhỏ là một transaction riêng (copy rồi xoá), để không khoá bảng message lâu.
+     * Lịch sử, đồng bộ theo con trỏ và quyền tải file vẫn đọc được dữ liệu đã lưu trữ.
+     * @return số tin nhắn đã chuyển
+     */
+    int compact();
+}
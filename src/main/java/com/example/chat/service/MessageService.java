@@ -1,9 +1,14 @@
 package com.example.chat.service;
 
+import com.example.chat.dto.MessageBatch;
 import org.springframework.core.io.Resource;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
@@ -17,10 +22,45 @@ public interface MessageService {
      * @param message Nội dung tin nhắn văn bản (nếu có)
      * @param file File đính kèm (nếu có)
      * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId Id do client sinh cho lần gửi (tuỳ chọn), dùng để bỏ qua các lần gửi lại
      * @return Map kết quả xử lý tin nhắn
      * @throws IOException lỗi xử lý file
      */
-    Map<String, Object> sendMessage(String authHeader, String username, String message, MultipartFile file, String userAgent) throws IOException;
+    Map<String, Object> sendMessage(String authHeader, String username, String message, MultipartFile file,
+                                    String userAgent, String clientMessageId) throws IOException;
+
+    /**
+     * Gửi file dạng stream: body của request được ghi thẳng vào thư mục lưu trữ,
+     * không qua bộ phân tích multipart (không có file tạm, mỗi byte chỉ ghi xuống đĩa một lần)
+     * @param authHeader Header chứa access token
+     * @param username Người nhận tin nhắn
+     * @param filename Tên file
+     * @param sha256 Mã băm SHA-256 (hex) của nội dung do client tính (tuỳ chọn): nếu người gửi đã gửi hoặc nhận
+     *               file có cùng nội dung thì tin nhắn dùng lại nội dung đã lưu và body không được đọc
+     * @param body Nội dung file
+     * @param contentLength Kích thước khai báo trong Content-Length (-1 nếu không có)
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId Id do client sinh cho lần gửi (tuỳ chọn), dùng để bỏ qua các lần gửi lại
+     * @return Map kết quả xử lý tin nhắn, kèm kích thước và mã băm SHA-256 của file
+     * @throws IOException lỗi đọc request hoặc ghi file
+     * @throws FileStorageService.TooLargeException nếu file vượt quá dung lượng cho phép
+     */
+    Map<String, Object> sendFile(String authHeader, String username, String filename, String sha256, InputStream body,
+                                 long contentLength, String userAgent, String clientMessageId) throws IOException;
+
+    /**
+     * Gửi tin nhắn trỏ đến file đã được đưa vào kho (ví dụ sau khi tải lên theo từng đoạn hoàn tất).
+     * Tin nhắn giữ tham chiếu đến file; tham chiếu được bỏ nếu tin nhắn không được tạo
+     * (người nhận không hợp lệ, lỗi, hoặc client message id đã được gửi trước đó)
+     * @param sender Người gửi (đã xác thực)
+     * @param username Người nhận tin nhắn
+     * @param stored File đã lưu, mang một tham chiếu chưa thuộc tin nhắn nào
+     * @param clientMessageId Id do client sinh cho lần gửi (tuỳ chọn), dùng để bỏ qua các lần gửi lại
+     * @return Map kết quả xử lý tin nhắn, kèm kích thước và mã băm SHA-256 của file
+     * @throws IOException lỗi đọc danh sách bạn bè
+     */
+    Map<String, Object> sendStoredFile(String sender, String username, FileStorageService.StoredFile stored,
+                                       String clientMessageId) throws IOException;
 
     /**
      * Lấy tin nhắn chờ từ người dùng bằng long polling tối đa 10 giây
@@ -29,7 +69,49 @@ public interface MessageService {
      * @return Danh sách tin nhắn
      * @throws InterruptedException nếu có lỗi khi polling
      */
-    List<Map<String, Object>> getMessages(String authHeader, String userAgent) throws InterruptedException;
+    MessageBatch getMessages(String authHeader, String userAgent) throws InterruptedException;
+
+    /**
+     * Lấy tin nhắn chờ bằng long polling bất đồng bộ, không giữ thread xử lý request trong lúc chờ
+     * @param authHeader Header chứa access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return DeferredResult được hoàn tất khi có tin nhắn mới hoặc hết thời gian chờ
+     */
+    DeferredResult<MessageBatch> getMessagesAsync(String authHeader, String userAgent);
+
+    /**
+     * Mở kênh push (Server-Sent Events): tin nhắn mới được đẩy ngay qua kết nối đang mở, không cần polling lại
+     * @param authHeader Header chứa access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return SseEmitter giữ kết nối với client
+     */
+    SseEmitter openStream(String authHeader, String userAgent);
+
+    /**
+     * Đồng bộ tăng dần theo con trỏ: trả về tin nhắn có id lớn hơn id cuối cùng client đã thấy.
+     * Không ghi gì vào DB nên nhiều thiết bị có thể đồng bộ độc lập.
+     * Tin nhắn vừa gửi (trong khoảng an toàn vài giây) chỉ được trả về ở lần đồng bộ sau, để con trỏ không bỏ qua
+     * tin nhắn có id nhỏ hơn nhưng commit muộn hơn.
+     * @param authHeader Header chứa access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param after id tin nhắn cuối cùng client đã nhận (0 nếu đồng bộ từ đầu)
+     * @param limit số tin nhắn tối đa trả về
+     * @return Map gồm danh sách tin nhắn và con trỏ tiếp theo
+     */
+    Map<String, Object> syncMessages(String authHeader, String userAgent, long after, int limit);
+
+    /**
+     * Lịch sử hội thoại giữa người dùng và một người khác, phân trang theo keyset (timestamp, id) từ mới đến cũ
+     * @param authHeader Header chứa access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param peer người còn lại trong hội thoại
+     * @param beforeTime thời gian của tin nhắn cuối trang trước (null nếu lấy trang đầu)
+     * @param beforeId id của tin nhắn cuối trang trước (null nếu lấy trang đầu)
+     * @param size số tin nhắn mỗi trang
+     * @return Map gồm danh sách tin nhắn và vị trí để lấy trang tiếp theo
+     */
+    Map<String, Object> getHistory(String authHeader, String userAgent, String peer,
+                                   LocalDateTime beforeTime, Long beforeId, int size);
 
     /**
      * Tải file đính kèm từ tin nhắn
@@ -0,0 +1,29 @@
+package com.example.chat.service;
+
+import com.example.chat.entity.Message;
+
+import java.util.List;
+
+/**
+ * Đại diện cho một thiết bị đang chờ tin nhắn.
+ * Có thể là một BlockingQueue (thread đang block chờ), một DeferredResult (request bất đồng bộ)
+ * hoặc một SseEmitter (kênh push giữ kết nối lâu dài).
+ */
+@FunctionalInterface
+public interface MessageWaiter {
+
+    /**
+     * Chuyển tin nhắn mới đến người đang chờ
+     * @param messages danh sách tin nhắn mới
+     * @return true nếu người chờ đã nhận tin nhắn; false nếu request đã kết thúc (timeout, ngắt kết nối...)
+     */
+    boolean offer(List<Message> messages);
+
+    /**
+     * Waiter một lần (long polling) bị gỡ sau khi nhận tin nhắn;
+     * waiter lâu dài (kênh push SSE) vẫn được giữ trong hộp thư cho đến khi kết nối đóng.
+     */
+    default boolean isPersistent() {
+        return false;
+    }
+}
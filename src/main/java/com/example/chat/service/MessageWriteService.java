@@ -0,0 +1,44 @@
+package com.example.chat.service;
+
+import com.example.chat.entity.Message;
+
+import java.util.List;
+
+public interface MessageWriteService {
+
+    /**
+     * Hết thời gian chờ xác nhận ghi (ack=durable).
+     * Tin nhắn chưa được writer nhận thì bị huỷ khỏi hàng đợi (chắc chắn chưa lưu, gửi lại an toàn);
+     * tin nhắn writer đã nhận vẫn có thể được lưu sau đó.
+     */
+    class WriteTimeoutException extends IllegalStateException {
+        private final boolean mayBeStored;
+
+        public WriteTimeoutException(boolean mayBeStored) {
+            super(mayBeStored
+                    ? "Message was not confirmed in time and may still be stored; retry with the same clientMessageId"
+                    : "Message was not stored in time; it is safe to retry");
+            this.mayBeStored = mayBeStored;
+        }
+
+        public boolean mayBeStored() {
+            return mayBeStored;
+        }
+    }
+
+    /**
+     * Lưu một tin nhắn mới.
+     * Chế độ sync: INSERT ngay qua JPA. Chế độ write-behind: đưa vào hàng đợi để ghi theo lô,
+     * chờ lô được commit hay không tuỳ theo chế độ xác nhận (ack).
+     * @param message tin nhắn chưa có id
+     * @throws WriteTimeoutException nếu hết thời gian chờ xác nhận ghi
+     */
+    void save(Message message);
+
+    /**
+     * Lưu một lô tin nhắn mới
+     * @param messages các tin nhắn chưa có id
+     * @throws WriteTimeoutException nếu hết thời gian chờ xác nhận ghi
+     */
+    void saveAll(List<Message> messages);
+}
@@ -0,0 +1,47 @@
+package com.example.chat.service;
+
+import com.example.chat.entity.Message;
+
+import java.util.List;
+
+/**
+ * Hàng đợi tin nhắn 1-1 cho người nhận đang offline.
+ * Mặc định là bảng message (JPA); khi chạy một node có thể dùng journal append-only trên file (chat.offline.store=journal).
+ */
+public interface OfflineMessageStore {
+
+    /**
+     * Tin nhắn chờ của một user. Tin nhắn chỉ rời hàng đợi khi gọi markDelivered, tức là sau khi đã gửi được cho client.
+     */
+    record Pending(List<Message> messages, Runnable onDelivered) {
+
+        public static final Pending EMPTY = new Pending(List.of(), () -> { });
+
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        public void markDelivered() {
+            onDelivered.run();
+        }
+    }
+
+    /**
+     * Lưu một tin nhắn cho người nhận offline
+     * @param message tin nhắn chưa có id, delivered = false
+     */
+    void store(Message message);
+
+    /**
+     * Lưu một lô tin nhắn cho người nhận offline (tin nhắn hộp thư không giao được)
+     * @param messages các tin nhắn chưa có id, delivered = false
+     */
+    void storeAll(List<Message> messages);
+
+    /**
+     * Lấy các tin nhắn đang chờ của user (chưa xoá khỏi hàng đợi)
+     * @param receiver người nhận
+     * @return tin nhắn chờ theo thứ tự gửi
+     */
+    Pending pending(String receiver);
+}
@@ -2,10 +2,40 @@ package com.example.chat.service;
 
 import com.example.chat.entity.Message;
 
-import java.util.concurrent.BlockingQueue;
-
 public interface OnlineUserService {
-    void waitForMessages(String username, BlockingQueue<Message> queue);
-    BlockingQueue<Message> getWaitingQueue(String username);
-    void removeWaitingQueue(String username);
+
+    /**
+     * Kết quả chuyển tin nhắn cho người nhận
+     */
+    enum DeliveryStatus {
+        ACCEPTED, // Hộp thư đã nhận tin nhắn: gửi ngay cho thiết bị đang chờ hoặc giữ đến lần polling kế tiếp; hộp thư chịu trách nhiệm lưu DB
+        OFFLINE   // Người nhận offline hoặc hộp thư đầy → người gửi cần lưu DB
+    }
+
+    /**
+     * Đăng ký một thiết bị chờ tin nhắn.
+     * Nếu hộp thư đang giữ sẵn tin nhắn thì chúng được gửi ngay cho waiter (có thể ngay trong lần gọi này).
+     */
+    void waitForMessages(String username, MessageWaiter waiter);
+
+    /**
+     * Chuyển tin nhắn đến tất cả thiết bị đang chờ của người nhận
+     */
+    DeliveryStatus deliver(String username, Message message);
+
+    void removeWaiter(String username, MessageWaiter waiter);
+
+    /**
+     * Nhận thông báo khi hộp thư của một user được tạo hoặc bị dọn ở node này
+     */
+    interface MailboxListener {
+        void opened(String username);
+
+        void closed(String username);
+    }
+
+    /**
+     * Đăng ký listener hộp thư (bus nhiều node dùng để ghi bảng presence); thay thế listener trước đó
+     */
+    void setMailboxListener(MailboxListener listener);
 }
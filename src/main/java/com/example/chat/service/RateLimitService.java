@@ -0,0 +1,33 @@
+package com.example.chat.service;
+
+public interface RateLimitService {
+
+    /**
+     * Nhóm endpoint được giới hạn, mỗi nhóm có bucket riêng
+     */
+    enum Endpoint {
+        SEND,  // Gửi tin nhắn (1-1 và nhóm) và xác nhận đã nhận / đã đọc: giới hạn theo user và theo IP
+        POLL,  // Long polling /api/messages và SSE /api/stream: giới hạn theo user, theo IP và số kết nối treo đồng thời
+        LOGIN  // Đăng nhập / refresh token (BCrypt, DB): giới hạn theo IP
+    }
+
+    /**
+     * Lấy một lượt từ các token bucket áp dụng cho request.
+     * @param endpoint nhóm endpoint của request
+     * @param clientIp địa chỉ IP của client
+     * @param username người dùng đã xác thực chữ ký JWT, null nếu chưa biết
+     * @return 0 nếu request được phép; ngược lại số ms client nên chờ trước khi thử lại
+     */
+    long tryAcquire(Endpoint endpoint, String clientIp, String username);
+
+    /**
+     * Giữ một chỗ trong giới hạn số long polling / SSE đang treo trên toàn node
+     * @return false nếu đã đủ số kết nối tối đa
+     */
+    boolean tryEnterPoll();
+
+    /**
+     * Trả lại chỗ đã giữ bằng tryEnterPoll khi request kết thúc
+     */
+    void exitPoll();
+}
@@ -0,0 +1,36 @@
+package com.example.chat.service;
+
+import com.example.chat.entity.ConversationReceipt;
+
+import java.io.IOException;
+import java.util.Map;
+
+public interface ReceiptService {
+
+    /**
+     * Ghi nhận xác nhận đã nhận / đã đọc các tin nhắn peer gửi cho user có id ≤ upTo.
+     * Xác nhận được gộp thành mốc theo hội thoại trong bộ nhớ, ghi DB theo lô và báo cho peer qua hộp thư.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param peer người đã gửi các tin nhắn
+     * @param type loại xác nhận
+     * @param upTo id tin nhắn lớn nhất được xác nhận
+     * @throws IOException lỗi đọc danh sách bạn bè
+     */
+    void acknowledge(String authHeader, String userAgent, String peer, ConversationReceipt.Type type, long upTo) throws IOException;
+
+    /**
+     * Mốc xác nhận của peer cho các tin nhắn user đã gửi cho peer
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param peer người nhận các tin nhắn
+     * @return Map gồm "peer", "deliveredUpTo" và "readUpTo"
+     */
+    Map<String, Object> getReceipts(String authHeader, String userAgent, String peer);
+
+    /**
+     * Ghi các mốc đang chờ xuống DB bằng một lô và báo cho người gửi
+     * @return số hội thoại đã ghi
+     */
+    int flush();
+}
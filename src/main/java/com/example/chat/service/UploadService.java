@@ -0,0 +1,80 @@
+package com.example.chat.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public interface UploadService {
+
+    /**
+     * Bắt đầu tải lên một file lớn theo từng đoạn: file tạm được cấp phát trước đủ kích thước,
+     * các đoạn có thể gửi theo thứ tự bất kỳ, song song, và gửi lại khi mất kết nối
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param username người nhận tin nhắn
+     * @param filename tên file
+     * @param size kích thước file (byte)
+     * @param sha256 mã băm SHA-256 (hex) của nội dung do client tính (tuỳ chọn), kiểm tra khi hoàn tất
+     * @return Map gồm "uploadId", "chunkSize" và "chunkCount"
+     * @throws IllegalArgumentException kích thước / mã băm không hợp lệ, người nhận không tồn tại hoặc quá số lượt tải lên
+     * @throws SecurityException người gửi không phải bạn bè của người nhận
+     * @throws IllegalStateException node đã cấp phát hết dung lượng dành cho file tạm
+     * @throws FileStorageService.TooLargeException nếu file vượt quá dung lượng cho phép
+     * @throws IOException lỗi tạo file tạm hoặc đọc danh sách bạn bè
+     */
+    Map<String, Object> create(String authHeader, String userAgent, String username, String filename, long size,
+                               String sha256) throws IOException;
+
+    /**
+     * Ghi một đoạn vào đúng vị trí của nó trong file tạm; gửi lại một đoạn đã nhận chỉ ghi đè cùng nội dung
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param uploadId id lượt tải lên
+     * @param index số thứ tự đoạn, từ 0
+     * @param body nội dung đoạn (đủ chunkSize byte, trừ đoạn cuối)
+     * @param contentLength kích thước khai báo trong Content-Length, -1 nếu không có
+     * @return Map gồm "index" và "remaining" (số đoạn chưa nhận)
+     * @throws NoSuchElementException lượt tải lên không tồn tại hoặc đã hết hạn
+     * @throws IllegalArgumentException số thứ tự hoặc kích thước đoạn không hợp lệ
+     * @throws IllegalStateException lượt tải lên đã hoàn tất
+     * @throws IOException lỗi đọc request hoặc ghi file
+     */
+    Map<String, Object> writeChunk(String authHeader, String userAgent, String uploadId, int index, InputStream body,
+                                   long contentLength) throws IOException;
+
+    /**
+     * Trạng thái lượt tải lên, để client tiếp tục gửi các đoạn còn thiếu sau khi mất kết nối
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param uploadId id lượt tải lên
+     * @return Map gồm "uploadId", "size", "chunkSize", "chunkCount", "missing" (các đoạn chưa nhận) và "completed"
+     * @throws NoSuchElementException lượt tải lên không tồn tại hoặc đã hết hạn
+     */
+    Map<String, Object> status(String authHeader, String userAgent, String uploadId);
+
+    /**
+     * Hoàn tất: đưa file vào kho và gửi tin nhắn cho người nhận. Gọi lại sau khi đã hoàn tất trả về kết quả lần đầu
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param uploadId id lượt tải lên
+     * @param clientMessageId id do client sinh cho lần gửi (tuỳ chọn)
+     * @return Map kết quả xử lý tin nhắn, kèm kích thước và mã băm SHA-256 của file
+     * @throws NoSuchElementException lượt tải lên không tồn tại hoặc đã hết hạn
+     * @throws IllegalStateException còn đoạn chưa nhận
+     * @throws IllegalArgumentException nội dung không khớp mã băm khai báo (lượt tải lên bị huỷ)
+     * @throws IOException lỗi đọc file
+     */
+    Map<String, Object> complete(String authHeader, String userAgent, String uploadId, String clientMessageId)
+            throws IOException;
+
+    /**
+     * Huỷ lượt tải lên và xoá file tạm
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param uploadId id lượt tải lên
+     * @throws NoSuchElementException lượt tải lên không tồn tại hoặc đã hết hạn
+     * @throws IOException lỗi xoá file tạm
+     */
+    void abort(String authHeader, String userAgent, String uploadId) throws IOException;
+}
@@ -0,0 +1,61 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Các hội thoại 1:1 mà node này vừa giao tin nhắn cho một thiết bị (long polling, stream hoặc tin nhắn chờ).
+ * Tin nhắn 1:1 được giao trước khi có id nên client không tự xác nhận đã nhận được;
+ * ReceiptServiceImpl lấy các hội thoại này và tự đẩy mốc DELIVERED theo id lớn nhất đã giao trong DB.
+ */
+@Component
+public class DeliveryTracker {
+
+    /**
+     * Hội thoại: reader đã nhận tin nhắn của peer
+     */
+    record Conversation(String reader, String peer) {
+    }
+
+    /**
+     * Key: hội thoại
+     * Value: thời điểm giao gần nhất (mốc chỉ được tính sau khi lần ghi lịch sử của lần giao đó đã xong)
+     */
+    private final Map<Conversation, Long> delivered = new ConcurrentHashMap<>();
+
+    /**
+     * Ghi nhận một lô vừa giao cho thiết bị; tin nhắn nhóm (client xác nhận theo id) và thông báo xác nhận bị bỏ qua
+     */
+    void delivered(List<Message> messages, long now) {
+        for (Message m : messages) {
+            if (m.getGroupId() == null && m.getReceipt() == null) {
+                delivered.merge(new Conversation(m.getReceiver(), m.getSender()), now, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Lấy ra các hội thoại không có lần giao nào sau settledBefore
+     */
+    List<Conversation> takeSettled(long settledBefore) {
+        List<Conversation> settled = new ArrayList<>();
+        delivered.forEach((conversation, at) -> {
+            if (at <= settledBefore && delivered.remove(conversation, at)) {
+                settled.add(conversation);
+            }
+        });
+        return settled;
+    }
+
+    /**
+     * Trả lại các hội thoại chưa xử lý được (lỗi DB) cho lần sau
+     */
+    void restore(List<Conversation> conversations, long at) {
+        conversations.forEach(conversation -> delivered.merge(conversation, at, Math::max));
+    }
+}
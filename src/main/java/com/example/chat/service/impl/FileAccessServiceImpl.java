@@ -0,0 +1,159 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ArchivedMessage;
+import com.example.chat.entity.Message;
+import com.example.chat.repository.ArchivedMessageRepository;
+import com.example.chat.repository.FileAccessRepository;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.service.FileAccessService;
+import com.example.chat.service.FileStorageService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Quyền tải file đính kèm lưu trong bảng file_access, tra cứu theo unique index (file_id, username):
+ * chi phí kiểm tra không phụ thuộc số tin nhắn user đã nhận.
+ * Các quyền đã xác nhận được giữ trong cache LRU nhỏ (quyền không bị thu hồi nên không cần làm mới);
+ * kết quả từ chối không được cache vì quyền có thể được cấp ngay sau đó.
+ * Quyền của các tin nhắn file gửi trước khi có bảng được ghi bù một lần bằng backfill (chat.file-access.backfill-on-startup).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class FileAccessServiceImpl implements FileAccessService {
+
+    /**
+     * Cấp quyền, bỏ qua nếu đã có (giống FileAccessRepository.grant, dùng cho JDBC batch)
+     */
+    static final String GRANT_SQL =
+            "INSERT INTO file_access (file_id, username) VALUES (?, ?) ON DUPLICATE KEY UPDATE username = username";
+
+    private static final String FILE_LINK_PREFIX = "/api/file/";
+
+    // Số tin nhắn file đọc mỗi lần khi backfill
+    private static final int BACKFILL_PAGE_SIZE = 1000;
+
+    private final FileAccessRepository fileAccessRepository;
+    private final MessageRepository messageRepository;
+    private final ArchivedMessageRepository archivedMessageRepository;
+    private final FileStorageService fileStorageService;
+    private final JdbcTemplate jdbcTemplate;
+
+    // true: ghi quyền cho các tin nhắn file cũ khi khởi động (chạy một lần khi nâng cấp rồi tắt)
+    @Value("${chat.file-access.backfill-on-startup:false}")
+    private boolean backfillOnStartup = false;
+
+    // Số cặp (user, file) đã xác nhận giữ trong bộ nhớ
+    @Value("${chat.file-access.cache-size:10000}")
+    private int cacheSize = 10000;
+
+    // Key: username + '\n' + fileId (theo thứ tự truy cập gần nhất)
+    private final Map<String, Boolean> granted = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+
+    @Override
+    public void grant(String fileId, String... usernames) {
+        for (String username : usernames) {
+            fileAccessRepository.grant(fileId, username);
+            granted.put(key(username, fileId), Boolean.TRUE);
+        }
+        log.debug("Granted access to file '{}' for {} user(s)", fileId, usernames.length);
+    }
+
+    @Override
+    public boolean canAccess(String username, String fileId) {
+        String key = key(username, fileId);
+        if (granted.get(key) != null) { // get() (không phải containsKey) để cập nhật thứ tự LRU
+            return true;
+        }
+        if (!fileAccessRepository.existsByFileIdAndUsername(fileId, username)) {
+            return false;
+        }
+        granted.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Chạy sau khi server đã nhận request, như chat.storage.migrate-on-startup
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillIfEnabled() {
+        if (backfillOnStartup) {
+            backfill();
+        }
+    }
+
+    @Override
+    public int backfill() {
+        int processed = 0;
+        long afterId = 0;
+        List<Message> page;
+        do {
+            page = messageRepository.findByIsFileTrueAndIdGreaterThanOrderByIdAsc(afterId, Limit.of(BACKFILL_PAGE_SIZE));
+            grantAll(page);
+            processed += page.size();
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == BACKFILL_PAGE_SIZE);
+
+        afterId = 0;
+        List<ArchivedMessage> archived;
+        do {
+            archived = archivedMessageRepository.findByIsFileTrueAndIdGreaterThanOrderByIdAsc(afterId, Limit.of(BACKFILL_PAGE_SIZE));
+            grantAll(archived.stream().map(ArchivedMessage::toMessage).toList());
+            processed += archived.size();
+            if (!archived.isEmpty()) {
+                afterId = archived.get(archived.size() - 1).getId();
+            }
+        } while (archived.size() == BACKFILL_PAGE_SIZE);
+
+        log.info("Backfilled file access for {} file message(s)", processed);
+        return processed;
+    }
+
+    /**
+     * Ghi quyền cho người gửi và người nhận của một trang tin nhắn file bằng một JDBC batch
+     */
+    private void grantAll(List<Message> messages) {
+        List<String[]> rows = new ArrayList<>(messages.size() * 2);
+        for (Message m : messages) {
+            String link = m.getContent();
+            if (link == null || !link.startsWith(FILE_LINK_PREFIX)) {
+                continue;
+            }
+            String fileId = fileStorageService.contentId(link.substring(FILE_LINK_PREFIX.length()));
+            rows.add(new String[]{fileId, m.getSender()});
+            if (m.getReceiver() != null) {
+                rows.add(new String[]{fileId, m.getReceiver()});
+            }
+        }
+        if (!rows.isEmpty()) {
+            jdbcTemplate.batchUpdate(GRANT_SQL, rows, rows.size(), (ps, row) -> {
+                ps.setString(1, row[0]);
+                ps.setString(2, row[1]);
+            });
+        }
+    }
+
+    private static String key(String username, String fileId) {
+        return username + '\n' + fileId;
+    }
+}
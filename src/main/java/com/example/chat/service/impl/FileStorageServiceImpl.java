@@ -0,0 +1,398 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.repository.FileBlobRepository;
+import com.example.chat.service.FileStorageService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Lưu file đính kèm trong thư mục storage.path theo mã băm nội dung (content-addressed):
+ * nội dung được lưu một lần, bảng file_blob đếm số tin nhắn tham chiếu.
+ * Link trong tin nhắn là /api/file/{sha256}_{tên gốc} để giữ tên (và kiểu) file cho người nhận.
+ * Nội dung được đọc theo từng đoạn vào một buffer, cập nhật SHA-256 rồi ghi bằng FileChannel vào file tạm
+ * cùng thư mục; sau khi có mã băm file tạm được đổi tên (không copy) hoặc xoá nếu nội dung đã có.
+ * Bố cục thư mục chia 2 cấp theo 4 ký tự hex đầu của khoá: storage/ab/cd/abcd... (cả file dạng cũ {uuid}_{tên gốc}),
+ * để mỗi thư mục chỉ chứa một phần nhỏ số file. File chưa chuyển sang bố cục này vẫn được đọc tại storage/{khoá}.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class FileStorageServiceImpl implements FileStorageService {
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+    // Khoá bắt đầu bằng 4 ký tự hex (mã băm, uuid của tên dạng cũ) được chia vào thư mục con
+    private static final Pattern SHARDED = Pattern.compile("^[0-9a-f]{4}.*");
+    // File đang tải lên, cùng filesystem với nơi lưu để đổi tên thay vì copy
+    private static final String TMP_DIR = ".tmp";
+
+    private final FileBlobRepository fileBlobRepository;
+
+    // Khoá theo mã băm: tạo/xoá file nội dung và cập nhật số tham chiếu không chen nhau
+    private final Object[] locks = Stream.generate(Object::new).limit(64).toArray();
+
+    @Value("${storage.path:storage}")
+    private String storagePath = "storage";
+
+    // Dung lượng tối đa của một file đính kèm
+    @Value("${chat.upload.max-size-mb:20}")
+    private long maxSizeMb = 20;
+
+    @Value("${chat.upload.buffer-size-kb:64}")
+    private int bufferSizeKb = 64;
+
+    // none: để hệ điều hành tự ghi xuống đĩa; sync: fsync trước khi trả kết quả; async: fsync theo lô trên thread nền
+    @Value("${chat.storage.fsync:none}")
+    private String fsync = "none";
+
+    @Value("${chat.storage.fsync-interval-ms:100}")
+    private long fsyncIntervalMs = 100;
+
+    @Value("${chat.storage.fsync-queue-capacity:10000}")
+    private int fsyncQueueCapacity = 10000;
+
+    // Chuyển các file trong thư mục gốc sang bố cục chia thư mục khi khởi động
+    @Value("${chat.storage.migrate-on-startup:false}")
+    private boolean migrateOnStartup = false;
+
+    private FileSyncer syncer;
+
+    @PostConstruct
+    public void start() {
+        if ("async".equals(fsync)) {
+            syncer = new FileSyncer(fsyncQueueCapacity, fsyncIntervalMs);
+            syncer.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (syncer != null) {
+            syncer.stop();
+        }
+    }
+
+    /**
+     * Chạy sau khi server đã nhận request: file chưa chuyển vẫn đọc được trong lúc chuyển
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateIfEnabled() throws IOException {
+        if (migrateOnStartup) {
+            migrateLayout();
+        }
+    }
+
+    @Override
+    public StoredFile store(InputStream in, String originalName, long declaredSize) throws IOException {
+        long maxBytes = maxSizeMb * 1024 * 1024;
+        if (declaredSize > maxBytes) {
+            // Từ chối trước khi đọc byte nào của request
+            throw new TooLargeException(maxBytes);
+        }
+
+        Path tmp = newTempPath();
+
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[bufferSizeKb * 1024];
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        long size = 0;
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    size += n;
+                    if (size > maxBytes) {
+                        throw new TooLargeException(maxBytes);
+                    }
+                    digest.update(buffer, 0, n);
+                    chunk.clear().limit(n);
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+                if ("sync".equals(fsync) && size > 0) {
+                    out.force(true);
+                }
+            }
+            if (size == 0) {
+                throw new IllegalArgumentException("File is empty");
+            }
+
+            return commit(tmp, HexFormat.of().formatHex(digest.digest()), size, originalName);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    @Override
+    public Path createTempFile(long size) throws IOException {
+        Path tmp = newTempPath();
+        try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+            // Cấp phát trước toàn bộ kích thước: các đoạn ghi theo vị trí không làm file lớn dần
+            file.setLength(size);
+        }
+        return tmp;
+    }
+
+    @Override
+    public int deleteStaleTempFiles(long modifiedBefore) throws IOException {
+        Path tmpDir = Paths.get(storagePath, TMP_DIR);
+        if (!Files.isDirectory(tmpDir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmpDir)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < modifiedBefore && Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // File vừa được đưa vào kho hoặc xoá bởi request khác
+                }
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public StoredFile adopt(Path tempFile, String originalName) throws IOException {
+        try {
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSizeKb * 1024);
+            long size = 0;
+            try (FileChannel in = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+                int n;
+                while ((n = in.read(buffer.clear())) != -1) {
+                    size += n;
+                    digest.update(buffer.flip());
+                }
+                if ("sync".equals(fsync) && size > 0) {
+                    in.force(true);
+                }
+            }
+            if (size == 0) {
+                throw new IllegalArgumentException("File is empty");
+            }
+            return commit(tempFile, HexFormat.of().formatHex(digest.digest()), size, originalName);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<StoredFile> reference(String sha256, String originalName) throws IOException {
+        if (sha256 == null || !SHA256.matcher(sha256).matches()) {
+            return Optional.empty();
+        }
+        synchronized (lockFor(sha256)) {
+            Path blob = locate(sha256);
+            if (blob == null || fileBlobRepository.addReference(sha256) == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(new StoredFile(sha256 + "_" + baseName(originalName), Files.size(blob), sha256));
+        }
+    }
+
+    @Override
+    public void release(String name) {
+        String sha256 = blobHash(name);
+        if (sha256 == null) {
+            return;
+        }
+        synchronized (lockFor(sha256)) {
+            try {
+                fileBlobRepository.removeReference(sha256);
+                Path blob = locate(sha256);
+                if (fileBlobRepository.deleteIfUnreferenced(sha256) > 0 && blob != null) {
+                    Files.deleteIfExists(blob);
+                    log.debug("Deleted unreferenced file content {}", sha256);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to release file '{}': {}", name, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String contentId(String name) {
+        String sha256 = blobHash(name);
+        return sha256 != null ? sha256 : name;
+    }
+
+    @Override
+    public Path resolve(String name) {
+        String key = contentId(name);
+        Path path = locate(key);
+        return path != null ? path : shardedPath(key);
+    }
+
+    /**
+     * Chuyển các file đang nằm trực tiếp trong thư mục gốc sang bố cục chia thư mục (đổi tên, không copy).
+     * Duyệt thư mục bằng DirectoryStream nên không tải danh sách hàng triệu file vào bộ nhớ;
+     * chạy lại được nhiều lần, file đã chuyển không bị ảnh hưởng.
+     * @return số file đã chuyển
+     * @throws IOException lỗi đọc thư mục gốc
+     */
+    public int migrateLayout() throws IOException {
+        Path root = Paths.get(storagePath);
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        int moved = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root)) {
+            for (Path file : files) {
+                String key = file.getFileName().toString();
+                if (!Files.isRegularFile(file) || !SHARDED.matcher(key).matches()) {
+                    continue;
+                }
+                synchronized (lockFor(key)) {
+                    try {
+                        Path target = shardedPath(key);
+                        if (Files.exists(target)) {
+                            // Cùng nội dung đã có ở vị trí mới
+                            Files.delete(file);
+                        } else {
+                            Files.createDirectories(target.getParent());
+                            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                            synced(target);
+                        }
+                        moved++;
+                    } catch (IOException e) {
+                        log.error("Failed to migrate stored file '{}': {}", key, e.getMessage());
+                    }
+                }
+                if (moved > 0 && moved % 10000 == 0) {
+                    log.info("Migrated {} stored file(s) to the sharded layout", moved);
+                }
+            }
+        }
+        log.info("Storage layout migration finished: {} file(s) moved", moved);
+        return moved;
+    }
+
+    /**
+     * Đặt file tạm đã ghi xong vào vị trí của nội dung (hoặc xoá nếu nội dung đã có) và thêm một tham chiếu
+     */
+    private StoredFile commit(Path tmp, String sha256, long size, String originalName) throws IOException {
+        synchronized (lockFor(sha256)) {
+            if (locate(sha256) != null) {
+                // Nội dung đã có (ví dụ file được chuyển tiếp): chỉ tăng số tham chiếu
+                Files.delete(tmp);
+                log.debug("File content {} already stored, added a reference", sha256);
+            } else {
+                Path blob = shardedPath(sha256);
+                Files.createDirectories(blob.getParent());
+                Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+                synced(blob);
+            }
+            fileBlobRepository.insertOrAddReference(sha256, size, LocalDateTime.now());
+        }
+        String name = sha256 + "_" + baseName(originalName);
+        log.debug("Stored file '{}' ({} bytes)", name, size);
+        return new StoredFile(name, size, sha256);
+    }
+
+    private Path newTempPath() throws IOException {
+        Path tmpDir = Paths.get(storagePath, TMP_DIR);
+        Files.createDirectories(tmpDir);
+        return tmpDir.resolve(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Vị trí hiện tại của file: thư mục chia theo khoá, hoặc thư mục gốc nếu chưa chuyển
+     * @return null nếu không có file
+     */
+    private Path locate(String key) {
+        Path sharded = shardedPath(key);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
+        Path flat = Paths.get(storagePath, key);
+        return !flat.equals(sharded) && Files.exists(flat) ? flat : null;
+    }
+
+    /**
+     * storage/ab/cd/{khoá} với khoá bắt đầu bằng 4 ký tự hex, các khoá khác nằm trực tiếp trong thư mục gốc
+     */
+    private Path shardedPath(String key) {
+        if (!SHARDED.matcher(key).matches()) {
+            return Paths.get(storagePath, key);
+        }
+        return Paths.get(storagePath, key.substring(0, 2), key.substring(2, 4), key);
+    }
+
+    /**
+     * File vừa được đặt vào vị trí cuối cùng: fsync thư mục ngay (sync) hoặc giao cho thread nền (async)
+     */
+    private void synced(Path file) {
+        if ("sync".equals(fsync)) {
+            FileSyncer.forceDirectory(file.getParent());
+        } else if (syncer != null) {
+            syncer.submit(file);
+        }
+    }
+
+    /**
+     * Mã băm nội dung trong tên file dạng {sha256}_{tên gốc}
+     * @return null nếu là tên dạng cũ
+     */
+    private static String blobHash(String name) {
+        if (name == null || name.length() <= 64 || name.charAt(64) != '_') {
+            return null;
+        }
+        String sha256 = name.substring(0, 64);
+        return SHA256.matcher(sha256).matches() ? sha256 : null;
+    }
+
+    private Object lockFor(String key) {
+        return locks[Math.floorMod(key.hashCode(), locks.length)];
+    }
+
+    /**
+     * Chỉ giữ phần tên của file do client gửi, không cho phép đường dẫn thoát khỏi thư mục lưu trữ
+     */
+    private static String baseName(String originalName) {
+        if (originalName == null) {
+            return "file";
+        }
+        String name = originalName.substring(Math.max(originalName.lastIndexOf('/'), originalName.lastIndexOf('\\')) + 1);
+        return name.isBlank() || name.equals("..") ? "file" : name;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
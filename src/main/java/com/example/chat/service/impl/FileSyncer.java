@@ -0,0 +1,121 @@
+package com.example.chat.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fsync file đính kèm theo lô trên một thread nền: request tải lên không chờ đĩa,
+ * mỗi chu kỳ các file mới và thư mục chứa chúng được ghi xuống đĩa một lần.
+ * Hàng đợi đầy → file được fsync ngay trên thread gọi (không bỏ qua).
+ */
+@Slf4j
+class FileSyncer {
+
+    private final BlockingQueue<Path> queue;
+    private final long intervalMs;
+    private Thread thread;
+    private volatile boolean running;
+
+    FileSyncer(int capacity, long intervalMs) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.intervalMs = intervalMs;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "file-storage-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Dừng thread nền sau khi fsync các file còn trong hàng đợi
+     */
+    void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * Đưa file vừa ghi vào lô fsync kế tiếp
+     */
+    void submit(Path file) {
+        if (!queue.offer(file)) {
+            syncAll(List.of(file));
+        }
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            drain();
+        }
+        drain();
+    }
+
+    private void drain() {
+        List<Path> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            syncAll(batch);
+        }
+    }
+
+    private static void syncAll(List<Path> files) {
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : files) {
+            forceFile(file);
+            directories.add(file.getParent());
+        }
+        directories.forEach(FileSyncer::forceDirectory);
+        log.debug("Synced {} stored file(s) to disk", files.size());
+    }
+
+    /**
+     * Fsync nội dung một file đã đóng
+     */
+    static void forceFile(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // File đã bị xoá (không còn tham chiếu) trước khi đến lượt fsync
+        } catch (IOException e) {
+            log.error("Failed to sync stored file '{}': {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Fsync thư mục để tên file vừa tạo / đổi tên được ghi xuống đĩa (không hỗ trợ trên một số hệ điều hành)
+     */
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Directory sync is not available for '{}': {}", directory, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ChatGroup;
+import com.example.chat.entity.GroupMember;
+import com.example.chat.entity.Message;
+import com.example.chat.entity.User;
+import com.example.chat.repository.ChatGroupRepository;
+import com.example.chat.repository.GroupMemberRepository;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.service.GroupService;
+import com.example.chat.util.JwtUtil;
+import com.example.chat.util.SendDeduplicator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class GroupServiceImpl implements GroupService {
+
+    private final JwtUtil jwtUtil;
+    private final UserRepository userRepository;
+    private final ChatGroupRepository chatGroupRepository;
+    private final GroupMemberRepository groupMemberRepository;
+    private final MessageRepository messageRepository;
+    private final DeliveryBus deliveryBus;
+    private final ObjectMapper objectMapper;
+    private final SendDeduplicator sendDeduplicator;
+
+    // Số thành viên tối đa của một nhóm (tính cả người tạo)
+    @Value("${chat.group.max-members:500}")
+    private int maxMembers = 500;
+
+    // Số tin nhắn tối đa cho một lần lấy tin nhắn nhóm theo con trỏ
+    @Value("${chat.group.max-page-size:200}")
+    private int maxPageSize = 200;
+
+    // Tin nhắn nhóm mới hơn khoảng này được giữ lại cho lần lấy sau (id có thể commit không theo thứ tự)
+    @Value("${chat.sync.safe-horizon-ms:2000}")
+    private long safeHorizonMs = 2000;
+
+    /**
+     * Trích xuất username từ Authorization header và kiểm tra token với userAgent
+     */
+    private String extractUsername(String authHeader, String userAgent) {
+        return jwtUtil.validateToken(authHeader.replace("Bearer ", "").trim(), userAgent);
+    }
+
+    /**
+     * Tạo nhóm mới. Người tạo chỉ được thêm những người đang là bạn bè của mình.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param name tên nhóm
+     * @param members các thành viên (không cần gồm người tạo)
+     * @return Map thông tin nhóm vừa tạo
+     * @throws IOException lỗi đọc danh sách bạn bè
+     */
+    @Override
+    @Transactional
+    public Map<String, Object> createGroup(String authHeader, String userAgent, String name, List<String> members) throws IOException {
+        String owner = extractUsername(authHeader, userAgent);
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("Group name is required");
+        }
+
+        Set<String> invited = new LinkedHashSet<>(members == null ? List.of() : members);
+        invited.remove(owner);
+        if (invited.isEmpty() || invited.size() + 1 > maxMembers) {
+            throw new IllegalArgumentException("A group needs between 2 and " + maxMembers + " members");
+        }
+
+        User user = userRepository.findById(owner)
+                .orElseThrow(() -> new IllegalArgumentException("User not found"));
+        List<String> friends = objectMapper.readValue(user.getFriendsJson(), new TypeReference<>() {});
+        List<String> strangers = invited.stream().filter(member -> !friends.contains(member)).toList();
+        if (!strangers.isEmpty()) {
+            log.warn("User '{}' tried to add non-friends {} to a group", owner, strangers);
+            throw new IllegalArgumentException("Only friends can be added to a group: " + strangers);
+        }
+
+        ChatGroup group = chatGroupRepository.save(ChatGroup.builder()
+                .name(name.trim())
+                .owner(owner)
+                .createdAt(LocalDateTime.now())
+                .build());
+
+        List<GroupMember> rows = new ArrayList<>();
+        rows.add(GroupMember.builder().groupId(group.getId()).username(owner).build());
+        invited.forEach(member -> rows.add(GroupMember.builder().groupId(group.getId()).username(member).build()));
+        groupMemberRepository.saveAll(rows);
+        log.info("User '{}' created group {} with {} member(s)", owner, group.getId(), rows.size());
+
+        List<String> memberNames = rows.stream().map(GroupMember::getUsername).toList();
+        return Map.of("id", group.getId(), "name", group.getName(), "owner", owner, "members", memberNames);
+    }
+
+    /**
+     * Danh sách nhóm của người dùng kèm con trỏ đọc của họ trong từng nhóm
+     */
+    @Override
+    public List<Map<String, Object>> getGroups(String authHeader, String userAgent) {
+        String username = extractUsername(authHeader, userAgent);
+        List<GroupMember> memberships = groupMemberRepository.findByUsername(username);
+
+        Map<Long, ChatGroup> groups = new HashMap<>();
+        chatGroupRepository.findAllById(memberships.stream().map(GroupMember::getGroupId).toList())
+                .forEach(group -> groups.put(group.getId(), group));
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (GroupMember membership : memberships) {
+            ChatGroup group = groups.get(membership.getGroupId());
+            if (group == null) {
+                continue;
+            }
+            Map<String, Object> item = new HashMap<>();
+            item.put("id", group.getId());
+            item.put("name", group.getName());
+            item.put("owner", group.getOwner());
+            item.put("lastReadMessageId", membership.getLastReadMessageId());
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * Gửi tin nhắn nhóm: lưu DB đúng một lần, sau đó fan-out đến hộp thư của các thành viên đang online.
+     * Thành viên offline không cần thêm bản ghi nào: họ lấy tin nhắn theo con trỏ đọc của mình.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param groupId id nhóm
+     * @param message nội dung văn bản
+     * @param clientMessageId id do client sinh cho lần gửi (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu
+     * @return Map kết quả status và id tin nhắn
+     */
+    @Override
+    public Map<String, Object> sendGroupMessage(String authHeader, String userAgent, Long groupId, String message,
+                                                String clientMessageId) {
+        String sender = extractUsername(authHeader, userAgent);
+        return sendDeduplicator.execute(sender, clientMessageId,
+                () -> send(sender, groupId, message, clientMessageId));
+    }
+
+    private Map<String, Object> send(String sender, Long groupId, String message, String clientMessageId) {
+        if (message == null || message.isBlank()) {
+            throw new IllegalArgumentException("Message content is required");
+        }
+
+        List<GroupMember> members = groupMemberRepository.findByGroupId(groupId);
+        if (members.stream().noneMatch(member -> member.getUsername().equals(sender))) {
+            log.warn("User '{}' is not a member of group {}", sender, groupId);
+            throw new SecurityException("Not a group member");
+        }
+
+        Message saved;
+        try {
+            saved = messageRepository.save(new Message(
+                    null, sender, null, message, false, LocalDateTime.now(), false, groupId, clientMessageId));
+        } catch (DataIntegrityViolationException e) {
+            // Gửi lại sau khi hết cửa sổ chống trùng: tin nhắn đã lưu và đã fan-out ở lần gửi trước
+            Message existing = clientMessageId == null ? null
+                    : messageRepository.findBySenderAndClientMessageId(sender, clientMessageId).orElse(null);
+            if (existing == null) {
+                throw e;
+            }
+            log.info("Group message '{}' from '{}' was already stored as {}", clientMessageId, sender, existing.getId());
+            return Map.of("status", 1, "id", existing.getId());
+        }
+
+        List<String> receivers = members.stream()
+                .map(GroupMember::getUsername)
+                .filter(username -> !username.equals(sender))
+                .toList();
+        deliveryBus.deliverAll(receivers, saved);
+        log.info("Fanned out group message {} from '{}' to {} member(s) of group {}", saved.getId(), sender, receivers.size(), groupId);
+
+        return Map.of("status", 1, "id", saved.getId());
+    }
+
+    /**
+     * Lấy tin nhắn nhóm sau con trỏ và tiến con trỏ đọc của thành viên đến tin nhắn cuối cùng trả về.
+     * Tin nhắn mới hơn chat.sync.safe-horizon-ms được giữ lại cho lần sau, như /api/sync.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param groupId id nhóm
+     * @param after id tin nhắn cuối cùng client đã có (bỏ trống: dùng con trỏ đọc đã lưu)
+     * @param limit số tin nhắn tối đa
+     * @return Map gồm messages, nextCursor, hasMore
+     */
+    @Override
+    public Map<String, Object> getGroupMessages(String authHeader, String userAgent, Long groupId, Long after, int limit) {
+        String username = extractUsername(authHeader, userAgent);
+        if ((after != null && after < 0) || limit <= 0) {
+            throw new IllegalArgumentException("Cursor must be >= 0 and limit must be > 0");
+        }
+        GroupMember membership = groupMemberRepository.findByGroupIdAndUsername(groupId, username)
+                .orElseThrow(() -> new SecurityException("Not a group member"));
+
+        long cursor = after != null ? after : membership.getLastReadMessageId();
+        int pageSize = Math.min(limit, maxPageSize);
+        List<Message> messages = messageRepository.findByGroupIdAndIdGreaterThanOrderByIdAsc(
+                groupId, cursor, Limit.of(pageSize));
+        boolean hasMore = messages.size() == pageSize;
+        // Dừng ở tin nhắn đầu tiên còn trong khoảng an toàn: con trỏ đọc không vượt qua id có thể chưa commit
+        LocalDateTime horizon = LocalDateTime.now().minusNanos(safeHorizonMs * 1_000_000);
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).getTimestamp().isAfter(horizon)) {
+                messages = messages.subList(0, i);
+                break;
+            }
+        }
+
+        long nextCursor = messages.isEmpty() ? cursor : messages.get(messages.size() - 1).getId();
+        if (nextCursor > membership.getLastReadMessageId()) {
+            groupMemberRepository.advanceCursor(groupId, username, nextCursor);
+        }
+        log.info("Returned {} group message(s) of group {} after cursor {} to '{}'", messages.size(), groupId, cursor, username);
+
+        return Map.of(
+                "messages", messages.stream().map(this::toItem).toList(),
+                "nextCursor", nextCursor,
+                "hasMore", hasMore
+        );
+    }
+
+    private Map<String, Object> toItem(Message m) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("id", m.getId());
+        item.put("groupId", m.getGroupId());
+        item.put("sender", m.getSender());
+        item.put("time", m.getTimestamp().toString());
+        item.put("message", m.getContent());
+        if (m.getClientMessageId() != null) {
+            item.put("clientMessageId", m.getClientMessageId());
+        }
+        return item;
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.entity.UserPresence;
+import com.example.chat.repository.UserPresenceRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.service.OnlineUserService;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientException;
+
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bus nhiều node qua HTTP nội bộ.
+ * - Người nhận có hộp thư ở node này → chuyển trực tiếp như LoopbackDeliveryBus.
+ * - Mỗi node ghi vào bảng user_presence những user nó đang giữ hộp thư (khi tạo / dọn hộp thư),
+ *   nên tin nhắn cho user ở node khác được chuyển thẳng đến đúng node đó qua POST /internal/bus/deliver
+ *   (kèm secret dùng chung): tối đa một lần chuyển, không có dòng presence → OFFLINE để người gửi lưu DB.
+ * - Kết quả tra presence được giữ ngắn hạn trong một LRU cache để không đọc DB cho mỗi tin nhắn của cùng hội thoại.
+ * - Node vừa lỗi (timeout, lỗi kết nối) bị bỏ qua trong một khoảng backoff, người gửi không phải chờ timeout lặp lại.
+ * - Tin nhắn nhóm (đã lưu DB) được fan-out bằng một request cho mỗi node đang giữ hộp thư của người nhận còn lại.
+ * Node nhận chỉ chuyển vào hộp thư của chính nó, không chuyển tiếp thêm nên không có vòng lặp giữa các node.
+ */
+@Service
+@ConditionalOnProperty(name = "chat.bus.mode", havingValue = "http")
+@RequiredArgsConstructor
+@Slf4j
+public class HttpDeliveryBus implements DeliveryBus, OnlineUserService.MailboxListener {
+
+    static final String DELIVER_PATH = "/internal/bus/deliver";
+    static final String FANOUT_PATH = "/internal/bus/fanout";
+    static final String SECRET_HEADER = "X-Bus-Secret";
+
+    private final OnlineUserService onlineUserService;
+    private final UserPresenceRepository userPresenceRepository;
+    private final RestClient.Builder restClientBuilder;
+
+    // Địa chỉ các node khác, phân tách bằng dấu phẩy (ví dụ: http://chat-2:8080,http://chat-3:8080)
+    @Value("${chat.bus.peers:}")
+    private String peerList = "";
+
+    // Địa chỉ của chính node này như trong chat.bus.peers của các node khác, bắt buộc ở chế độ http
+    @Value("${chat.bus.self-url:}")
+    private String selfUrl = "";
+
+    // Secret dùng chung giữa các node, bắt buộc ở chế độ http
+    @Value("${chat.bus.secret:}")
+    private String secret = "";
+
+    // Thời gian chờ tối đa cho mỗi lần chuyển tin nhắn đến một node
+    @Value("${chat.bus.timeout-ms:500}")
+    private long timeoutMs = 500;
+
+    // Node chuyển tin nhắn lỗi bị bỏ qua trong khoảng này (tin nhắn cho user ở node đó được lưu DB)
+    @Value("${chat.bus.peer-backoff-ms:5000}")
+    private long peerBackoffMs = 5000;
+
+    // Thời gian giữ kết quả tra presence của một user trong cache
+    @Value("${chat.bus.route-cache-ms:1000}")
+    private long routeCacheMs = 1000;
+
+    // Số user tối đa trong route cache; vượt quá thì bỏ user ít được dùng nhất
+    @Value("${chat.bus.route-cache-size:100000}")
+    private int routeCacheSize = 100000;
+
+    /**
+     * Một lần fan-out tin nhắn nhóm gửi sang node khác: các người nhận chưa có hộp thư ở node gửi
+     */
+    public record Fanout(List<String> usernames, Message message) {
+    }
+
+    /**
+     * Node giữ hộp thư của một user theo bảng presence, và thời điểm tra
+     */
+    private record Route(String node, long at) {
+    }
+
+    private List<String> peers = List.of();
+    private RestClient restClient;
+
+    /**
+     * Key: tên người nhận
+     * Value: node giữ hộp thư theo lần tra presence gần nhất (LRU)
+     */
+    private final Map<String, Route> routes = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+            return size() > routeCacheSize;
+        }
+    });
+
+    /**
+     * Key: địa chỉ node
+     * Value: thời điểm chuyển tin nhắn lỗi gần nhất
+     */
+    private final Map<String, Long> failedAt = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (secret.isBlank()) {
+            throw new IllegalStateException("chat.bus.secret is required when chat.bus.mode=http");
+        }
+        if (selfUrl.isBlank()) {
+            throw new IllegalStateException("chat.bus.self-url is required when chat.bus.mode=http");
+        }
+        selfUrl = normalize(selfUrl.trim());
+        peers = Arrays.stream(peerList.split(","))
+                .map(String::trim)
+                .filter(peer -> !peer.isEmpty())
+                .map(HttpDeliveryBus::normalize)
+                .filter(peer -> !peer.equals(selfUrl))
+                .toList();
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+        requestFactory.setReadTimeout(Duration.ofMillis(timeoutMs));
+        restClient = restClientBuilder.requestFactory(requestFactory).build();
+
+        // Registry của node vừa khởi động còn rỗng: các dòng presence cũ của node này không còn đúng
+        try {
+            userPresenceRepository.deleteByNode(selfUrl);
+        } catch (DataAccessException e) {
+            log.warn("Could not clear stale presence of {}: {}", selfUrl, e.getMessage());
+        }
+        onlineUserService.setMailboxListener(this);
+        log.info("HTTP delivery bus started on {} with {} peer(s)", selfUrl, peers.size());
+    }
+
+    private static String normalize(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @Override
+    public DeliveryStatus deliver(String username, Message message) {
+        DeliveryStatus local = onlineUserService.deliver(username, message);
+        if (local == DeliveryStatus.ACCEPTED || peers.isEmpty()) {
+            return local;
+        }
+
+        // Chỉ chuyển đến node giữ hộp thư theo bảng presence, tối đa một lần
+        String node = locate(username, System.currentTimeMillis());
+        if (node == null || isBackingOff(node)) {
+            return DeliveryStatus.OFFLINE;
+        }
+        if (forward(node, message)) {
+            return DeliveryStatus.ACCEPTED;
+        }
+        // Hộp thư không còn ở node đó (hoặc node lỗi) → tin nhắn sau tra lại presence
+        routes.remove(username);
+        return DeliveryStatus.OFFLINE;
+    }
+
+    /**
+     * Tìm node khác đang giữ hộp thư của user: route cache còn hạn, sau đó bảng presence
+     * @return địa chỉ node trong chat.bus.peers, null nếu user không có hộp thư ở node nào khác
+     */
+    private String locate(String username, long now) {
+        Route cached = routes.get(username);
+        if (cached != null && now - cached.at() < routeCacheMs) {
+            return cached.node();
+        }
+        String node;
+        try {
+            node = userPresenceRepository.findById(username)
+                    .map(UserPresence::getNode)
+                    .filter(peers::contains)
+                    .orElse(null);
+        } catch (DataAccessException e) {
+            log.warn("Could not look up presence of '{}': {}", username, e.getMessage());
+            return null;
+        }
+        // Chỉ cache node tìm thấy: user vừa online ở node khác phải được thấy ngay ở tin nhắn tiếp theo
+        if (node != null) {
+            routes.put(username, new Route(node, now));
+        } else {
+            routes.remove(username);
+        }
+        return node;
+    }
+
+    /**
+     * Fan-out tin nhắn nhóm: người nhận có hộp thư ở node này được chuyển trực tiếp,
+     * những người còn lại được gom theo node giữ hộp thư (bảng presence), một request cho mỗi node.
+     */
+    @Override
+    public void deliverAll(Collection<String> usernames, Message message) {
+        List<String> remaining = new ArrayList<>();
+        for (String username : usernames) {
+            if (onlineUserService.deliver(username, message) != DeliveryStatus.ACCEPTED) {
+                remaining.add(username);
+            }
+        }
+        if (remaining.isEmpty() || peers.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<String>> byNode = new LinkedHashMap<>();
+        try {
+            for (UserPresence presence : userPresenceRepository.findAllById(remaining)) {
+                if (peers.contains(presence.getNode()) && !isBackingOff(presence.getNode())) {
+                    byNode.computeIfAbsent(presence.getNode(), k -> new ArrayList<>()).add(presence.getUsername());
+                }
+            }
+        } catch (DataAccessException e) {
+            log.warn("Could not look up presence for group message {}: {}", message.getId(), e.getMessage());
+            return;
+        }
+        byNode.forEach((peer, receivers) -> forwardAll(peer, receivers, message));
+    }
+
+    /**
+     * Gửi tin nhắn nhóm đến một node cho nhiều người nhận.
+     * Người nhận không còn hộp thư ở node đó đọc tin nhắn từ DB theo con trỏ đọc của nhóm.
+     */
+    private void forwardAll(String peer, List<String> usernames, Message message) {
+        try {
+            restClient.post()
+                    .uri(peer + FANOUT_PATH)
+                    .header(SECRET_HEADER, secret)
+                    .body(new Fanout(usernames, message))
+                    .retrieve()
+                    .toBodilessEntity();
+            failedAt.remove(peer);
+        } catch (RestClientException e) {
+            markFailed(peer);
+            log.warn("Could not fan out group message {} to {}: {}", message.getId(), peer, e.getMessage());
+        }
+    }
+
+    /**
+     * Gửi tin nhắn đến một node
+     * @return true nếu hộp thư của người nhận ở node đó đã nhận tin nhắn
+     */
+    private boolean forward(String peer, Message message) {
+        try {
+            Map<?, ?> response = restClient.post()
+                    .uri(peer + DELIVER_PATH)
+                    .header(SECRET_HEADER, secret)
+                    .body(message)
+                    .retrieve()
+                    .body(Map.class);
+            failedAt.remove(peer);
+            return response != null && DeliveryStatus.ACCEPTED.name().equals(response.get("status"));
+        } catch (RestClientException e) {
+            markFailed(peer);
+            log.warn("Could not forward message for '{}' to {}: {}", message.getReceiver(), peer, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isBackingOff(String peer) {
+        Long at = failedAt.get(peer);
+        return at != null && System.currentTimeMillis() - at < peerBackoffMs;
+    }
+
+    private void markFailed(String peer) {
+        failedAt.put(peer, System.currentTimeMillis());
+    }
+
+    /**
+     * Hộp thư của user vừa được tạo ở node này → ghi presence để các node khác chuyển tin nhắn đến đây
+     */
+    @Override
+    public void opened(String username) {
+        try {
+            userPresenceRepository.publish(username, selfUrl, LocalDateTime.now());
+        } catch (DataAccessException e) {
+            log.warn("Could not publish presence of '{}': {}", username, e.getMessage());
+        }
+    }
+
+    /**
+     * Hộp thư của user bị dọn ở node này → xoá presence nếu vẫn trỏ đến node này
+     */
+    @Override
+    public void closed(String username) {
+        try {
+            userPresenceRepository.withdraw(username, selfUrl);
+        } catch (DataAccessException e) {
+            log.warn("Could not withdraw presence of '{}': {}", username, e.getMessage());
+        }
+    }
+
+    /**
+     * Kiểm tra secret của request đến từ node khác (so sánh thời gian hằng)
+     */
+    public boolean isTrusted(String presentedSecret) {
+        return presentedSecret != null && MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), presentedSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Nhận tin nhắn do node khác chuyển đến: chỉ chuyển vào hộp thư của node này
+     * @return trạng thái chuyển tin nhắn cục bộ
+     */
+    public DeliveryStatus acceptRemote(Message message) {
+        if (message.getReceiver() == null) {
+            throw new IllegalArgumentException("Receiver is required");
+        }
+        // Tin nhắn chưa có id: hộp thư ở node này sẽ lưu DB khi giao
+        message.setDelivered(false);
+        return onlineUserService.deliver(message.getReceiver(), message);
+    }
+
+    /**
+     * Nhận fan-out tin nhắn nhóm do node khác chuyển đến
+     * @return những người nhận có hộp thư ở node này đã nhận tin nhắn
+     */
+    public List<String> acceptFanout(Fanout fanout) {
+        if (fanout.message() == null || fanout.message().getId() == null || fanout.usernames() == null) {
+            throw new IllegalArgumentException("A stored message and its receivers are required");
+        }
+        return fanout.usernames().stream()
+                .filter(username -> onlineUserService.deliver(username, fanout.message()) == DeliveryStatus.ACCEPTED)
+                .toList();
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tin nhắn offline nằm trong journal append-only ánh xạ bộ nhớ (OfflineJournal) thay vì bảng message:
+ * gửi cho user offline và lấy tin nhắn chờ không cần truy vấn DB.
+ * Tin nhắn chỉ được ghi vào bảng message (delivered = true, để có trong lịch sử) khi đã giao cho người nhận.
+ * - Gửi lại cùng clientMessageId khi tin nhắn trước còn trong journal không tạo bản ghi thứ hai (OfflineJournal).
+ * - Ghi lịch sử lỗi: tin nhắn đã giao vẫn được giữ (claim) trên journal, không giao lại cho thiết bị,
+ *   và được ghi lại định kỳ. Nếu node khởi động lại trước khi ghi được, chúng được giao lại một lần nữa.
+ * Journal nằm trên đĩa của node nên chỉ dùng khi chạy một node (chat.bus.mode=loopback).
+ */
+@Service
+@ConditionalOnProperty(name = "chat.offline.store", havingValue = "journal")
+@RequiredArgsConstructor
+@Slf4j
+public class JournalOfflineMessageStore implements OfflineMessageStore {
+
+    private final MessageWriteService messageWriteService;
+
+    @Value("${chat.offline.journal.path:journal}")
+    private String path = "journal";
+
+    @Value("${chat.offline.journal.shards:16}")
+    private int shards = 16;
+
+    @Value("${chat.offline.journal.segment-size-mb:16}")
+    private int segmentSizeMb = 16;
+
+    // Số segment rỗng giữ lại mỗi shard để tái sử dụng thay vì tạo file mới
+    @Value("${chat.offline.journal.spare-segments:2}")
+    private int spareSegments = 2;
+
+    // Chu kỳ fsync: các tin nhắn ghi trong một chu kỳ được ghi xuống đĩa cùng một lần
+    @Value("${chat.offline.journal.fsync-interval-ms:10}")
+    private long fsyncIntervalMs = 10;
+
+    // accepted: trả về ngay khi tin nhắn đã vào page cache; durable: chờ lần fsync kế tiếp
+    @Value("${chat.offline.journal.ack:accepted}")
+    private String ack = "accepted";
+
+    @Value("${chat.persistence.ack-timeout-ms:5000}")
+    private long ackTimeoutMs = 5000;
+
+    @Value("${chat.bus.mode:loopback}")
+    private String busMode = "loopback";
+
+    /**
+     * Tin nhắn đã giao cho thiết bị nhưng chưa ghi được vào lịch sử: vẫn claim trên journal đến khi ghi xong
+     */
+    private record HistoryWrite(String receiver, List<OfflineJournal.Entry> claimed) {
+    }
+
+    private final Queue<HistoryWrite> failedHistoryWrites = new ConcurrentLinkedQueue<>();
+
+    private OfflineJournal journal;
+    private Thread syncer;
+    private volatile boolean running;
+    // Hoàn tất khi lần fsync kế tiếp xong
+    private final AtomicReference<CompletableFuture<Void>> nextSync = new AtomicReference<>(new CompletableFuture<>());
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!"loopback".equals(busMode)) {
+            throw new IllegalStateException("chat.offline.store=journal requires chat.bus.mode=loopback (single node)");
+        }
+        journal = new OfflineJournal(Paths.get(path), shards, segmentSizeMb * 1024 * 1024, spareSegments);
+        running = true;
+        syncer = new Thread(this::runSyncer, "offline-journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        log.info("Offline message journal opened at '{}' with {} pending message(s)", path, journal.pendingCount());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (syncer == null) {
+            return;
+        }
+        running = false;
+        syncer.join(TimeUnit.SECONDS.toMillis(10));
+        log.info("Offline message journal closed");
+    }
+
+    @Override
+    public void store(Message message) {
+        if (!journal.append(message)) {
+            // Tin nhắn lớn hơn một segment → lưu DB như chế độ jpa
+            log.debug("Message from '{}' is too large for the journal, storing it in the database", message.getSender());
+            messageWriteService.save(message);
+            return;
+        }
+        awaitSync();
+    }
+
+    @Override
+    public void storeAll(List<Message> messages) {
+        List<Message> tooLarge = new ArrayList<>();
+        for (Message message : messages) {
+            if (!journal.append(message)) {
+                tooLarge.add(message);
+            }
+        }
+        if (!tooLarge.isEmpty()) {
+            messageWriteService.saveAll(tooLarge);
+        }
+        awaitSync();
+    }
+
+    @Override
+    public Pending pending(String receiver) {
+        List<OfflineJournal.Entry> entries = journal.pending(receiver);
+        if (entries.isEmpty()) {
+            return Pending.EMPTY;
+        }
+        List<Message> messages = entries.stream().map(OfflineJournal.Entry::message).toList();
+        return new Pending(messages, () -> {
+            // Chỉ thiết bị nhận trước ghi tin nhắn vào lịch sử; trạng thái trên journal chỉ đổi sau khi ghi xong
+            List<OfflineJournal.Entry> claimed = journal.claim(receiver, entries);
+            if (claimed.isEmpty()) {
+                return;
+            }
+            claimed.forEach(entry -> entry.message().setDelivered(true));
+            if (!writeHistory(receiver, claimed)) {
+                // Tin nhắn đã đến thiết bị: không giao lại, chỉ ghi lại lịch sử
+                failedHistoryWrites.add(new HistoryWrite(receiver, claimed));
+            }
+        });
+    }
+
+    /**
+     * Ghi lại vào lịch sử các tin nhắn đã giao mà lần ghi trước lỗi; dừng ở lần lỗi đầu tiên (DB có thể chưa sẵn sàng)
+     */
+    @Scheduled(fixedDelayString = "${chat.offline.journal.history-retry-ms:1000}")
+    public void retryHistoryWrites() {
+        for (int remaining = failedHistoryWrites.size(); remaining > 0; remaining--) {
+            HistoryWrite write = failedHistoryWrites.poll();
+            if (write == null) {
+                return;
+            }
+            if (!writeHistory(write.receiver(), write.claimed())) {
+                failedHistoryWrites.add(write);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ghi các tin nhắn đã claim vào bảng message rồi đánh dấu đã nhận trên journal
+     * @return false nếu ghi lỗi (các bản ghi vẫn đang claim)
+     */
+    private boolean writeHistory(String receiver, List<OfflineJournal.Entry> claimed) {
+        List<Message> delivered = claimed.stream().map(OfflineJournal.Entry::message).toList();
+        try {
+            messageWriteService.saveAll(delivered);
+        } catch (RuntimeException e) {
+            // Lô bị rollback: id đã gán không còn hợp lệ
+            delivered.forEach(m -> m.setId(null));
+            log.error("Failed to store {} delivered message(s) of '{}' in history, will retry: {}",
+                    delivered.size(), receiver, e.getMessage());
+            return false;
+        }
+        journal.commit(receiver, claimed);
+        return true;
+    }
+
+    private void awaitSync() {
+        if (!"durable".equals(ack)) {
+            return;
+        }
+        try {
+            nextSync.get().get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for journal sync", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("Message could not be stored", e);
+        }
+    }
+
+    /**
+     * Fsync theo lô: mỗi chu kỳ ghi xuống đĩa các segment có thay đổi rồi báo cho các lần ghi đang chờ
+     */
+    private void runSyncer() {
+        while (running) {
+            try {
+                Thread.sleep(fsyncIntervalMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            CompletableFuture<Void> done = nextSync.getAndSet(new CompletableFuture<>());
+            try {
+                journal.force();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                log.error("Offline journal sync failed: {}", e.getMessage(), e);
+                done.completeExceptionally(e);
+            }
+        }
+        journal.force();
+        nextSync.get().complete(null);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Tin nhắn offline nằm trong bảng message với delivered = false:
+ * lưu bằng MessageWriteService, lấy bằng một SELECT và đánh dấu đã nhận bằng một câu UPDATE
+ */
+@Service
+@ConditionalOnProperty(name = "chat.offline.store", havingValue = "jpa", matchIfMissing = true)
+@RequiredArgsConstructor
+public class JpaOfflineMessageStore implements OfflineMessageStore {
+
+    private final MessageRepository messageRepository;
+    private final MessageWriteService messageWriteService;
+
+    @Override
+    public void store(Message message) {
+        messageWriteService.save(message);
+    }
+
+    @Override
+    public void storeAll(List<Message> messages) {
+        messageWriteService.saveAll(messages);
+    }
+
+    @Override
+    public Pending pending(String receiver) {
+        List<Message> messages = messageRepository.findByReceiverAndDeliveredFalse(receiver);
+        if (messages.isEmpty()) {
+            return Pending.EMPTY;
+        }
+        return new Pending(messages, () -> {
+            messages.forEach(m -> m.setDelivered(true));
+            messageRepository.markDelivered(messages.stream().map(Message::getId).toList());
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.service.OnlineUserService;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Bus một node: chỉ chuyển tin nhắn đến hộp thư trong chính process này
+ */
+@Service
+@ConditionalOnProperty(name = "chat.bus.mode", havingValue = "loopback", matchIfMissing = true)
+@RequiredArgsConstructor
+public class LoopbackDeliveryBus implements DeliveryBus {
+
+    private final OnlineUserService onlineUserService;
+
+    @Override
+    public DeliveryStatus deliver(String username, Message message) {
+        return onlineUserService.deliver(username, message);
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.service.MessageArchiveService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MessageArchiveServiceImpl implements MessageArchiveService {
+
+    /**
+     * Lô tiếp theo: tin nhắn 1-1 đã nhận, cũ hơn mốc lưu giữ, theo thứ tự id (quét theo khoá chính).
+     * Tin nhắn nhóm (group_id khác null) được đọc theo con trỏ của từng thành viên nên không được lưu trữ.
+     */
+    static final String SELECT_BATCH_SQL =
+            "SELECT id FROM message WHERE delivered = TRUE AND group_id IS NULL AND timestamp < ? ORDER BY id LIMIT ?";
+
+    static final String COPY_SQL =
+            "INSERT INTO message_archive (id, sender, receiver, content, is_file, timestamp, delivered, group_id, client_message_id) " +
+            "SELECT id, sender, receiver, content, is_file, timestamp, delivered, group_id, client_message_id " +
+            "FROM message WHERE id IN (%s)";
+
+    static final String DELETE_SQL = "DELETE FROM message WHERE id IN (%s)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+
+    @Value("${chat.archive.enabled:true}")
+    private boolean enabled = true;
+
+    // Tin nhắn đã nhận cũ hơn số ngày này được chuyển sang bảng lưu trữ
+    @Value("${chat.archive.retention-days:30}")
+    private int retentionDays = 30;
+
+    // Số tin nhắn mỗi transaction
+    @Value("${chat.archive.batch-size:500}")
+    private int batchSize = 500;
+
+    // Số lô tối đa mỗi lần chạy, phần còn lại để lần chạy sau
+    @Value("${chat.archive.max-batches-per-run:200}")
+    private int maxBatchesPerRun = 200;
+
+    /**
+     * Chạy định kỳ; lỗi DB chỉ được ghi log, lần chạy sau tiếp tục từ các tin nhắn còn lại
+     */
+    @Scheduled(initialDelayString = "${chat.archive.interval-ms:600000}", fixedDelayString = "${chat.archive.interval-ms:600000}")
+    public void scheduledCompact() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            compact();
+        } catch (DataAccessException | IllegalStateException e) {
+            log.warn("Message archival failed, will retry on next run: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public int compact() {
+        return compact(LocalDateTime.now().minusDays(retentionDays));
+    }
+
+    int compact(LocalDateTime cutoff) {
+        int total = 0;
+        for (int i = 0; i < maxBatchesPerRun; i++) {
+            int moved = archiveBatch(cutoff);
+            total += moved;
+            if (moved < batchSize) {
+                break;
+            }
+        }
+        if (total > 0) {
+            log.info("Archived {} delivered message(s) older than {}", total, cutoff);
+        }
+        return total;
+    }
+
+    /**
+     * Chuyển một lô trong một transaction: copy sang bảng lưu trữ rồi xoá khỏi bảng message.
+     * Số dòng copy và xoá khác nhau (dòng đã bị node khác chuyển trong lúc chạy) → rollback cả lô.
+     * @return số tin nhắn đã chuyển
+     */
+    int archiveBatch(LocalDateTime cutoff) {
+        Integer moved = new TransactionTemplate(transactionManager).execute(status -> {
+            List<Long> ids = jdbcTemplate.queryForList(SELECT_BATCH_SQL, Long.class, cutoff, batchSize);
+            if (ids.isEmpty()) {
+                return 0;
+            }
+            String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+            Object[] args = ids.toArray();
+            int copied = jdbcTemplate.update(COPY_SQL.formatted(placeholders), args);
+            int deleted = jdbcTemplate.update(DELETE_SQL.formatted(placeholders), args);
+            if (copied != deleted) {
+                throw new IllegalStateException("Archived " + copied + " message(s) but deleted " + deleted);
+            }
+            return deleted;
+        });
+        return moved != null ? moved : 0;
+    }
+}
@@ -1,27 +1,53 @@
 package com.example.chat.service.impl;
 
+import com.example.chat.dto.MessageBatch;
+import com.example.chat.entity.ArchivedMessage;
 import com.example.chat.entity.Message;
 import com.example.chat.entity.User;
+import com.example.chat.repository.ArchivedMessageRepository;
 import com.example.chat.repository.MessageRepository;
 import com.example.chat.repository.UserRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.service.FileAccessService;
+import com.example.chat.service.FileStorageService;
+import com.example.chat.service.FileStorageService.StoredFile;
 import com.example.chat.service.MessageService;
+import com.example.chat.service.MessageWaiter;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore;
+import com.example.chat.service.OfflineMessageStore.Pending;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+import com.example.chat.util.ContentCodec;
 import com.example.chat.util.JwtUtil;
+import com.example.chat.util.SendDeduplicator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 @Service
 @RequiredArgsConstructor
@@ -31,9 +57,72 @@ public class MessageServiceImpl implements MessageService {
     private final JwtUtil jwtUtil;
     private final UserRepository userRepository;
     private final MessageRepository messageRepository;
+    private final ArchivedMessageRepository archivedMessageRepository;
     private final OnlineUserServiceImpl onlineUserServiceImpl;
+    private final OfflineMessageStore offlineMessageStore;
+    private final DeliveryBus deliveryBus;
+    private final SendDeduplicator sendDeduplicator;
+    private final FileStorageService fileStorageService;
+    private final FileAccessService fileAccessService;
+    private final DeliveryTracker deliveryTracker;
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private final String storagePath = "storage";
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    // Tên file dạng cũ {uuid}_{tên gốc}, đặt trước khi có bảng file_access
+    private static final Pattern LEGACY_FILE_NAME = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}_.+");
+
+    // Số kết quả từ chối của tên file dạng cũ giữ trong bộ nhớ
+    private static final int LEGACY_DENIED_CACHE_SIZE = 10000;
+
+    // Vị trí bắt đầu khi lấy trang lịch sử đầu tiên (lớn hơn mọi timestamp hợp lệ trong DB)
+    private static final LocalDateTime HISTORY_START = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    // Thời gian chờ tối đa của một lần long polling (ms)
+    @Value("${chat.polling.timeout-ms:10000}")
+    private long pollTimeoutMs = 10000;
+
+    // Thời gian sống của một kết nối push, bằng thời hạn access token để client kết nối lại với token mới
+    @Value("${chat.stream.timeout-ms:600000}")
+    private long streamTimeoutMs = 600000;
+
+    // Số tin nhắn tối đa cho một lần đồng bộ theo con trỏ
+    @Value("${chat.sync.max-limit:500}")
+    private int syncMaxLimit = 500;
+
+    // Tin nhắn mới hơn khoảng này chưa được trả về khi đồng bộ: id IDENTITY được cấp lúc INSERT nhưng các transaction
+    // có thể commit không theo thứ tự, con trỏ vượt qua một id nhỏ hơn chưa commit sẽ bỏ sót tin nhắn đó
+    @Value("${chat.sync.safe-horizon-ms:2000}")
+    private long syncSafeHorizonMs = 2000;
+
+    // Số tin nhắn tối đa cho một trang lịch sử hội thoại
+    @Value("${chat.history.max-page-size:200}")
+    private int historyMaxPageSize = 200;
+
+    // File dạng cũ {uuid}_{tên} chưa có trong file_access: kiểm tra quyền theo tin nhắn (một lần, sau đó ghi vào bảng).
+    // Tắt sau khi đã chạy backfill để request không có quyền không phải tra cứu tin nhắn
+    @Value("${chat.file-access.legacy-fallback:true}")
+    private boolean legacyFileAccessFallback = true;
+
+    // Thời gian nhớ kết quả từ chối của tên file dạng cũ (link không đổi nên quyền không xuất hiện thêm)
+    @Value("${chat.file-access.legacy-denied-cache-ms:60000}")
+    private long legacyDeniedCacheMs = 60000;
+
+    /**
+     * Key: username + '\n' + tên file dạng cũ
+     * Value: thời điểm hết hạn của kết quả từ chối
+     */
+    private final Map<String, Long> legacyDenied = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > LEGACY_DENIED_CACHE_SIZE;
+                }
+            });
+
+    // Các kết nối push đang mở, dùng để gửi heartbeat
+    private final Set<SseEmitter> streams = ConcurrentHashMap.newKeySet();
 
     /**
      * Trích xuất username từ Authorization header và kiểm tra token với userAgent
@@ -49,14 +138,145 @@ public class MessageServiceImpl implements MessageService {
      * @param message nội dung văn bản (nếu có)
      * @param file file đính kèm (nếu có)
      * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId id do client sinh cho lần gửi (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu
      * @return Map kết quả status
      * @throws IOException lỗi xử lý file
      */
     @Override
-    public Map<String, Object> sendMessage(String authHeader, String username, String message, MultipartFile file, String userAgent) throws IOException {
+    public Map<String, Object> sendMessage(String authHeader, String username, String message, MultipartFile file,
+                                           String userAgent, String clientMessageId) throws IOException {
+        String sender = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        return sendDeduplicator.execute(sender, clientMessageId,
+                () -> send(sender, username, message, file, clientMessageId));
+    }
+
+    /**
+     * Gửi file bằng cách ghi thẳng body của request vào thư mục lưu trữ (không qua multipart).
+     * Nếu client gửi kèm mã băm của một file mà người gửi đã gửi hoặc nhận trước đó (chuyển tiếp file),
+     * tin nhắn trỏ đến nội dung đã lưu và body không được đọc.
+     * @param authHeader access token
+     * @param username người nhận
+     * @param filename tên file
+     * @param sha256 mã băm SHA-256 (hex) của nội dung do client tính (tuỳ chọn)
+     * @param body nội dung file (body của request)
+     * @param contentLength kích thước khai báo trong Content-Length, -1 nếu không có
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param clientMessageId id do client sinh cho lần gửi (tuỳ chọn): gửi lại cùng id nhận lại kết quả lần đầu
+     * @return Map kết quả status, kèm kích thước và mã băm SHA-256 của file đã lưu
+     * @throws IOException lỗi đọc request hoặc ghi file
+     */
+    @Override
+    public Map<String, Object> sendFile(String authHeader, String username, String filename, String sha256, InputStream body,
+                                        long contentLength, String userAgent, String clientMessageId) throws IOException {
         String sender = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        String expectedHash = sha256 != null ? sha256.toLowerCase(Locale.ROOT) : null;
+        if (expectedHash != null && !SHA256.matcher(expectedHash).matches()) {
+            throw new IllegalArgumentException("sha256 must be 64 hex characters");
+        }
+        return sendDeduplicator.execute(sender, clientMessageId, () -> {
+            // Kiểm tra người nhận trước khi đọc body: request bị từ chối không ghi gì xuống đĩa
+            Map<String, Object> rejected = checkReceiver(sender, username);
+            if (rejected != null) {
+                return rejected;
+            }
+
+            StoredFile stored = null;
+            // Link của tin nhắn mới sẽ là {sha256}_{tên}: cùng nội dung với file người gửi có thể đã gửi/nhận
+            if (expectedHash != null && hasFileAccess(sender, expectedHash + "_" + filename)) {
+                stored = fileStorageService.reference(expectedHash, filename).orElse(null);
+            }
+            if (stored != null) {
+                log.info("Reused stored file content {} from '{}' to '{}' without reading the upload", expectedHash, sender, username);
+            } else {
+                stored = fileStorageService.store(body, filename, contentLength);
+                log.info("Saved streamed file from '{}' to '{}' at '{}' ({} bytes)", sender, username, stored.name(), stored.size());
+                if (expectedHash != null && !expectedHash.equals(stored.sha256())) {
+                    fileStorageService.release(stored.name());
+                    throw new IllegalArgumentException("File content does not match sha256");
+                }
+            }
+
+            return withFileInfo(dispatchFile(sender, username, stored, clientMessageId), stored);
+        });
+    }
+
+    @Override
+    public Map<String, Object> sendStoredFile(String sender, String username, StoredFile stored, String clientMessageId)
+            throws IOException {
+        AtomicBoolean handedOver = new AtomicBoolean();
+        try {
+            return sendDeduplicator.execute(sender, clientMessageId, () -> {
+                Map<String, Object> rejected = checkReceiver(sender, username);
+                if (rejected != null) {
+                    return rejected;
+                }
+                // Từ đây tham chiếu thuộc về tin nhắn (dispatchFile tự bỏ nếu tin nhắn không được lưu)
+                handedOver.set(true);
+                log.info("Sending stored file '{}' from '{}' to '{}' ({} bytes)", stored.name(), sender, username, stored.size());
+                return withFileInfo(dispatchFile(sender, username, stored, clientMessageId), stored);
+            });
+        } finally {
+            if (!handedOver.get()) {
+                fileStorageService.release(stored.name());
+            }
+        }
+    }
+
+    private static Map<String, Object> withFileInfo(Map<String, Object> dispatched, StoredFile stored) {
+        Map<String, Object> result = new HashMap<>(dispatched);
+        result.put("size", stored.size());
+        result.put("sha256", stored.sha256());
+        return result;
+    }
+
+    /**
+     * Gửi tin nhắn sau khi đã xác thực người gửi (mỗi client message id chỉ chạy một lần trong cửa sổ chống trùng)
+     */
+    private Map<String, Object> send(String sender, String username, String message, MultipartFile file,
+                                     String clientMessageId) throws IOException {
         log.info("Sending message from '{}' to '{}'", sender, username);
 
+        Map<String, Object> rejected = checkReceiver(sender, username);
+        if (rejected != null) {
+            return rejected;
+        }
+
+        // Xử lý tin nhắn file hoặc text
+        if (file != null && !file.isEmpty()) {
+            StoredFile stored = fileStorageService.store(file.getInputStream(), file.getOriginalFilename(), file.getSize());
+            log.info("Saved file message from '{}' to '{}' at '{}'", sender, username, stored.name());
+            return dispatchFile(sender, username, stored, clientMessageId);
+        } else if (message != null && !message.isBlank()) {
+            log.info("Saved text message from '{}' to '{}'", sender, username);
+            return dispatch(newMessage(sender, username, message, false, clientMessageId));
+        } else {
+            log.warn("Empty message or file from '{}'", sender);
+            throw new IllegalArgumentException("Message content or file is required");
+        }
+    }
+
+    /**
+     * Gửi tin nhắn trỏ đến file đã lưu; tham chiếu đến file được bỏ nếu tin nhắn không gửi/lưu được
+     */
+    private Map<String, Object> dispatchFile(String sender, String username, StoredFile stored, String clientMessageId) {
+        // Cấp quyền trước khi chuyển tin nhắn: người nhận có thể tải file ngay khi nhận được link
+        fileAccessService.grant(fileStorageService.contentId(stored.name()), sender, username);
+        try {
+            return dispatch(newMessage(sender, username, "/api/file/" + stored.name(), true, clientMessageId));
+        } catch (RuntimeException e) {
+            // Tin nhắn có thể vẫn được lưu sau khi hết thời gian chờ: giữ tham chiếu để link không bị hỏng
+            if (!(e instanceof MessageWriteService.WriteTimeoutException timeout && timeout.mayBeStored())) {
+                fileStorageService.release(stored.name());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Kiểm tra người nhận tồn tại và người gửi nằm trong danh sách bạn bè của người nhận
+     * @return null nếu được phép gửi, ngược lại là kết quả trả về cho client
+     */
+    private Map<String, Object> checkReceiver(String sender, String username) throws IOException {
         Optional<User> optionalReceiver = userRepository.findById(username);
         if (optionalReceiver.isEmpty()) {
             log.warn("Receiver '{}' not found", username);
@@ -71,43 +291,54 @@ public class MessageServiceImpl implements MessageService {
             log.warn("Sender '{}' is not a friend of '{}'", sender, username);
             return Map.of("status", 3);
         }
+        return null;
+    }
 
-        boolean isFile = false;
-        String content;
-
-        // Xử lý tin nhắn file hoặc text
-        if (file != null && !file.isEmpty()) {
-            isFile = true;
-            Files.createDirectories(Paths.get(storagePath));
-            String fileName = UUID.randomUUID() + "_" + file.getOriginalFilename();
-            Path path = Paths.get(storagePath, fileName);
-            Files.copy(file.getInputStream(), path, StandardCopyOption.REPLACE_EXISTING);
-            content = "/api/file/" + fileName;
-            log.info("Saved file message from '{}' to '{}' at '{}'", sender, username, fileName);
-        } else if (message != null && !message.isBlank()) {
-            content = message;
-            log.info("Saved text message from '{}' to '{}'", sender, username);
-        } else {
-            log.warn("Empty message or file from '{}'", sender);
-            throw new IllegalArgumentException("Message content or file is required");
-        }
-
+    private Message newMessage(String sender, String username, String content, boolean isFile, String clientMessageId) {
         Message msg = new Message(null, sender, username, content, isFile, LocalDateTime.now(), false);
+        msg.setClientMessageId(clientMessageId);
+        return msg;
+    }
+
+    /**
+     * Chuyển tin nhắn cho người nhận đang online hoặc lưu vào hàng đợi tin nhắn offline
+     */
+    private Map<String, Object> dispatch(Message msg) {
+        String username = msg.getReceiver();
 
-        // Kiểm tra người nhận đang online để gửi ngay
-        BlockingQueue<Message> queue = onlineUserServiceImpl.getWaitingQueue(username);
-        if (queue != null) {
-            queue.offer(msg);
-            log.info("Delivered message to '{}' immediately", username);
+        // Kiểm tra người nhận đang online (ở node này hoặc node khác) để gửi ngay
+        if (deliveryBus.deliver(username, msg) == DeliveryStatus.ACCEPTED) {
+            // Hộp thư gửi đến các thiết bị đang chờ (hoặc giữ đến lần polling kế tiếp) và tự lưu DB
+            log.info("Handed message to mailbox of online user '{}'", username);
             return Map.of("status", 1);
         }
 
-        // Nếu offline thì lưu DB
-        messageRepository.save(msg);
+        // Nếu offline (hoặc hộp thư đầy) thì đưa vào hàng đợi tin nhắn offline
+        offlineMessageStore.store(msg);
         log.info("Stored message for offline user '{}'", username);
         return Map.of("status", 2);
     }
 
+    /**
+     * Lấy các tin nhắn offline đang chờ và đánh dấu đã nhận
+     */
+    private List<Message> takePending(String username) {
+        Pending pending = offlineMessageStore.pending(username);
+        if (!pending.isEmpty()) {
+            markPendingDelivered(username, pending);
+        }
+        return pending.messages();
+    }
+
+    /**
+     * Đánh dấu đã nhận cho cả lô tin nhắn offline (một câu UPDATE hoặc một lần đổi trạng thái trong journal)
+     */
+    private void markPendingDelivered(String username, Pending pending) {
+        pending.markDelivered();
+        deliveryTracker.delivered(pending.messages(), System.currentTimeMillis());
+        log.info("Returned {} pending message(s) to '{}'", pending.messages().size(), username);
+    }
+
     /**
      * Trả về tin nhắn chờ bằng long polling tối đa 10s
      * @param authHeader access token
@@ -116,37 +347,246 @@ public class MessageServiceImpl implements MessageService {
      * @throws InterruptedException nếu polling bị gián đoạn
      */
     @Override
-    public List<Map<String, Object>> getMessages(String authHeader, String userAgent) throws InterruptedException {
+    public MessageBatch getMessages(String authHeader, String userAgent) throws InterruptedException {
         String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
         log.info("User '{}' is polling for new messages", username);
 
         // Trả ngay nếu có message chưa nhận
-        List<Message> pending = messageRepository.findByReceiverAndDeliveredFalse(username);
+        List<Message> pending = takePending(username);
         if (!pending.isEmpty()) {
-            pending.forEach(m -> m.setDelivered(true));
-            messageRepository.saveAll(pending);
-            log.info("Returned {} pending message(s) to '{}'", pending.size(), username);
-            return toResponse(pending); // Trả tin nhắn đang chờ ngay lập tức
+            return new MessageBatch(pending); // Trả tin nhắn đang chờ ngay lập tức
         }
 
         // Nếu không có tin nhắn chờ, chờ tối đa 10s để lấy tin nhắn mới
-        BlockingQueue<Message> queue = new ArrayBlockingQueue<>(1);
-        onlineUserServiceImpl.waitForMessages(username, queue);
-
-        Message newMessage = queue.poll(10, TimeUnit.SECONDS);
-        onlineUserServiceImpl.removeWaitingQueue(username);
+        CompletableFuture<List<Message>> slot = new CompletableFuture<>();
+        MessageWaiter waiter = slot::complete;
+        onlineUserServiceImpl.waitForMessages(username, waiter);
+        try {
+            slot.get(pollTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            log.debug("Polling of '{}' timed out", username);
+        } finally {
+            // Đóng slot trước khi gỡ waiter: hộp thư gửi đến sau thời điểm này sẽ bị từ chối và lưu DB
+            slot.complete(Collections.emptyList());
+            onlineUserServiceImpl.removeWaiter(username, waiter);
+        }
 
-        if (newMessage != null) {
-            newMessage.setDelivered(true);
-            messageRepository.save(newMessage);
+        List<Message> newMessages = slot.join();
+        if (!newMessages.isEmpty()) {
+            // Hộp thư đã lưu tin nhắn với trạng thái đã nhận
             log.info("Delivered real-time message to '{}'", username);
-            return toResponse(List.of(newMessage)); // Trả tin nhắn mới
+            return new MessageBatch(newMessages); // Trả tin nhắn mới
         }
 
         log.info("No new message for '{}'", username);
-        return Collections.emptyList(); // Không có tin nhắn mới trong 10 giây
+        return MessageBatch.EMPTY; // Không có tin nhắn mới trong 10 giây
+    }
+
+    /**
+     * Long polling bất đồng bộ: request được treo lại mà không giữ thread của Tomcat.
+     * DeferredResult được hoàn tất khi sendMessage chuyển tin nhắn đến hoặc khi hết thời gian chờ.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return DeferredResult chứa danh sách tin nhắn
+     */
+    @Override
+    public DeferredResult<MessageBatch> getMessagesAsync(String authHeader, String userAgent) {
+        String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        log.info("User '{}' is polling (async) for new messages", username);
+
+        // Hết thời gian chờ → trả về danh sách rỗng như long polling đồng bộ
+        DeferredResult<MessageBatch> result = new DeferredResult<>(pollTimeoutMs, MessageBatch.EMPTY);
+
+        // Waiter chỉ nhận tin nhắn nếu request vẫn còn đang treo; hộp thư chịu trách nhiệm lưu DB
+        MessageWaiter waiter = messages -> result.setResult(new MessageBatch(messages));
+        result.onCompletion(() -> onlineUserServiceImpl.removeWaiter(username, waiter));
+
+        // Đăng ký waiter trước khi kiểm tra hàng đợi offline để không bỏ lỡ tin nhắn gửi đến trong lúc truy vấn
+        onlineUserServiceImpl.waitForMessages(username, waiter);
+        if (result.hasResult()) {
+            return result;
+        }
+
+        Pending pending = offlineMessageStore.pending(username);
+        if (!pending.isEmpty() && result.setResult(new MessageBatch(pending.messages()))) {
+            markPendingDelivered(username, pending);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Mở kênh push SSE: dùng chung hộp thư trong OnlineUserService với long polling,
+     * nhưng waiter được giữ lại sau mỗi lần nhận nên không phải xác thực và truy vấn DB lại cho từng tin nhắn.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @return SseEmitter giữ kết nối với client
+     */
+    @Override
+    public SseEmitter openStream(String authHeader, String userAgent) {
+        String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        log.info("User '{}' opened a push stream", username);
+
+        SseEmitter emitter = new SseEmitter(streamTimeoutMs);
+        MessageWaiter waiter = new MessageWaiter() {
+            @Override
+            public boolean offer(List<Message> messages) {
+                return sendEvent(emitter, messages);
+            }
+
+            @Override
+            public boolean isPersistent() {
+                return true;
+            }
+        };
+
+        streams.add(emitter);
+        Runnable close = () -> {
+            streams.remove(emitter);
+            onlineUserServiceImpl.removeWaiter(username, waiter);
+            log.info("Push stream of '{}' closed", username);
+        };
+        emitter.onCompletion(close);
+        emitter.onTimeout(emitter::complete);
+
+        // Đăng ký trước (tin nhắn đang giữ trong hộp thư được gửi ngay), sau đó gửi tin nhắn offline đang chờ
+        onlineUserServiceImpl.waitForMessages(username, waiter);
+        Pending pending = offlineMessageStore.pending(username);
+        if (!pending.isEmpty() && sendEvent(emitter, pending.messages())) {
+            markPendingDelivered(username, pending);
+        }
+
+        return emitter;
+    }
+
+    /**
+     * Gửi một lô tin nhắn qua kênh push
+     * @return false nếu kết nối đã đóng
+     */
+    private boolean sendEvent(SseEmitter emitter, List<Message> messages) {
+        try {
+            emitter.send(SseEmitter.event().name("messages").data(new MessageBatch(messages), MediaType.APPLICATION_JSON));
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Push stream is no longer writable: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gửi heartbeat định kỳ để giữ kết nối qua proxy và phát hiện sớm client đã ngắt kết nối
+     */
+    @Scheduled(fixedDelayString = "${chat.stream.heartbeat-ms:15000}")
+    public void sendHeartbeats() {
+        for (SseEmitter emitter : streams) {
+            try {
+                emitter.send(SseEmitter.event().comment("ping"));
+            } catch (IOException | IllegalStateException e) {
+                streams.remove(emitter);
+                emitter.completeWithError(e);
+            }
+        }
     }
 
+    /**
+     * Đồng bộ theo con trỏ: một lần quét theo index (receiver, id) trên bảng message và bảng lưu trữ,
+     * không đánh dấu đã nhận từng tin nhắn. Tin nhắn mới hơn chat.sync.safe-horizon-ms được giữ lại cho lần sau.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param after id tin nhắn cuối cùng client đã nhận
+     * @param limit số tin nhắn tối đa trả về
+     * @return Map gồm "messages" và "nextCursor"
+     */
+    @Override
+    public Map<String, Object> syncMessages(String authHeader, String userAgent, long after, int limit) {
+        String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        if (after < 0 || limit <= 0) {
+            throw new IllegalArgumentException("Cursor must be >= 0 and limit must be > 0");
+        }
+        int pageSize = Math.min(limit, syncMaxLimit);
+
+        List<Message> messages = messageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(
+                username, after, Limit.of(pageSize));
+        // Con trỏ cũ (thiết bị lâu không đồng bộ) có thể còn tin nhắn đã chuyển sang bảng lưu trữ
+        List<ArchivedMessage> archived = archivedMessageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(
+                username, after, Limit.of(pageSize));
+        if (!archived.isEmpty()) {
+            List<Message> merged = new ArrayList<>(messages);
+            archived.forEach(a -> merged.add(a.toMessage()));
+            merged.sort(Comparator.comparing(Message::getId));
+            messages = merged.size() > pageSize ? merged.subList(0, pageSize) : merged;
+        }
+        boolean hasMore = messages.size() == pageSize;
+        // Dừng ở tin nhắn đầu tiên còn trong khoảng an toàn: con trỏ không vượt qua id có thể chưa commit,
+        // tin nhắn bị giữ lại được trả về ở lần đồng bộ sau (kênh polling / push vẫn giao ngay)
+        LocalDateTime horizon = LocalDateTime.now().minusNanos(syncSafeHorizonMs * 1_000_000);
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).getTimestamp().isAfter(horizon)) {
+                messages = messages.subList(0, i);
+                hasMore = false;
+                break;
+            }
+        }
+        log.info("Synced {} message(s) after cursor {} for '{}'", messages.size(), after, username);
+
+        List<Map<String, Object>> items = messages.stream().map(this::toItem).toList();
+
+        long nextCursor = messages.isEmpty() ? after : messages.get(messages.size() - 1).getId();
+        return Map.of(
+                "messages", items,
+                "nextCursor", nextCursor,
+                "hasMore", hasMore
+        );
+    }
+
+    /**
+     * Lịch sử hội thoại phân trang theo keyset: mỗi chiều hội thoại là một lần quét theo index
+     * (sender, receiver, timestamp, id) giới hạn size dòng trên bảng message và bảng lưu trữ, sau đó trộn các kết quả.
+     * Chi phí mỗi trang không phụ thuộc vào độ dài lịch sử.
+     * @param authHeader access token
+     * @param userAgent Thông tin User-Agent từ header yêu cầu
+     * @param peer người còn lại trong hội thoại
+     * @param beforeTime thời gian của tin nhắn cuối trang trước
+     * @param beforeId id của tin nhắn cuối trang trước
+     * @param size số tin nhắn mỗi trang
+     * @return Map gồm "messages" (mới → cũ), "nextBeforeTime", "nextBeforeId" và "hasMore"
+     */
+    @Override
+    public Map<String, Object> getHistory(String authHeader, String userAgent, String peer,
+                                          LocalDateTime beforeTime, Long beforeId, int size) {
+        String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
+        if (size <= 0 || (beforeTime == null) != (beforeId == null)) {
+            throw new IllegalArgumentException("Page size must be > 0 and beforeTime/beforeId must be given together");
+        }
+        int pageSize = Math.min(size, historyMaxPageSize);
+        LocalDateTime fromTime = beforeTime != null ? beforeTime : HISTORY_START;
+        long fromId = beforeId != null ? beforeId : Long.MAX_VALUE;
+
+        // Lấy dư một dòng để biết còn trang tiếp theo hay không
+        PageRequest page = PageRequest.of(0, pageSize + 1);
+        List<Message> merged = new ArrayList<>(messageRepository.findConversationPage(username, peer, fromTime, fromId, page));
+        merged.addAll(messageRepository.findConversationPage(peer, username, fromTime, fromId, page));
+        archivedMessageRepository.findConversationPage(username, peer, fromTime, fromId, page)
+                .forEach(a -> merged.add(a.toMessage()));
+        archivedMessageRepository.findConversationPage(peer, username, fromTime, fromId, page)
+                .forEach(a -> merged.add(a.toMessage()));
+        merged.sort(Comparator.comparing(Message::getTimestamp).thenComparing(Message::getId).reversed());
+
+        boolean hasMore = merged.size() > pageSize;
+        List<Message> messages = hasMore ? merged.subList(0, pageSize) : merged;
+        log.info("Returned {} history message(s) between '{}' and '{}'", messages.size(), username, peer);
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("messages", messages.stream().map(this::toItem).toList());
+        result.put("hasMore", hasMore);
+        if (!messages.isEmpty()) {
+            Message last = messages.get(messages.size() - 1);
+            result.put("nextBeforeTime", last.getTimestamp().toString());
+            result.put("nextBeforeId", last.getId());
+        }
+        return result;
+    }
 
     /**
      * Trả về file nếu user có quyền
@@ -161,16 +601,12 @@ public class MessageServiceImpl implements MessageService {
         String username = extractUsername(authHeader, userAgent); // Kiểm tra token với userAgent
         log.info("User '{}' requests file '{}'", username, filename);
 
-        List<Message> messages = messageRepository.findByReceiver(username);
-        boolean authorized = messages.stream()
-                .anyMatch(msg -> msg.getContent().contains(filename) && msg.isFile());
-
-        if (!authorized) {
+        if (!hasFileAccess(username, filename)) {
             log.warn("Unauthorized file access attempt by '{}'", username);
             throw new SecurityException("Access denied");
         }
 
-        Path filePath = Paths.get(storagePath, filename);
+        Path filePath = fileStorageService.resolve(filename);
         if (!Files.exists(filePath)) {
             log.error("File '{}' not found", filename);
             throw new NoSuchFileException("File not found");
@@ -180,35 +616,57 @@ public class MessageServiceImpl implements MessageService {
     }
 
     /**
-     * Chuyển danh sách tin nhắn thành Map trả về JSON
+     * Quyền tải file: một lần tra cứu bảng file_access theo index (có cache).
+     * Chỉ file dạng cũ {uuid}_{tên} mới được kiểm tra lại theo tin nhắn file (kể cả đã lưu trữ) rồi ghi quyền vào bảng;
+     * file {sha256}_{tên} luôn có quyền trong bảng (ghi khi gửi, hoặc bằng backfill) nên không tra cứu tin nhắn.
+     * @param username user yêu cầu
+     * @param filename tên file trong link /api/file/{filename}
      */
-    private List<Map<String, Object>> toResponse(List<Message> messages) {
-        List<Map<String, Object>> result = new ArrayList<>();
-
-        // Nhóm tin nhắn theo người gửi
-        Map<String, List<Map<String, Object>>> messagesBySender = new HashMap<>();
-
-        for (Message m : messages) {
-            // Tạo map cho mỗi tin nhắn kèm thời gian và nội dung
-            Map<String, Object> messageDetail = new HashMap<>();
-            messageDetail.put("time", m.getTimestamp().toString());  // Thời gian tin nhắn
-            messageDetail.put("message", m.getContent()); // Nội dung tin nhắn
-
-            // Nhóm tin nhắn theo người gửi
-            messagesBySender
-                    .computeIfAbsent(m.getSender(), k -> new ArrayList<>())  // Tạo danh sách cho người gửi nếu chưa có
-                    .add(messageDetail);
+    private boolean hasFileAccess(String username, String filename) {
+        String fileId = fileStorageService.contentId(filename);
+        if (fileAccessService.canAccess(username, fileId)) {
+            return true;
+        }
+        if (!legacyFileAccessFallback || !LEGACY_FILE_NAME.matcher(filename).matches()) {
+            return false;
+        }
+        String key = username + '\n' + filename;
+        long now = System.currentTimeMillis();
+        Long deniedUntil = legacyDenied.get(key);
+        if (deniedUntil != null && deniedUntil > now) {
+            return false;
         }
+        if (!hasLegacyFileMessage(username, filename)) {
+            legacyDenied.put(key, now + legacyDeniedCacheMs);
+            return false;
+        }
+        fileAccessService.grant(fileId, username);
+        log.debug("Backfilled access to file '{}' for '{}'", fileId, username);
+        return true;
+    }
 
-        // Duyệt qua các nhóm người gửi và tạo kết quả trả về
-        for (Map.Entry<String, List<Map<String, Object>>> entry : messagesBySender.entrySet()) {
-            Map<String, Object> senderDetail = new HashMap<>();
-            senderDetail.put("sender", entry.getKey()); // Người gửi
-            senderDetail.put("messages", entry.getValue()); // Danh sách tin nhắn của người gửi
+    /**
+     * User có nhận tin nhắn file dạng cũ này không (cách kiểm tra trước khi có bảng file_access)
+     */
+    private boolean hasLegacyFileMessage(String username, String filename) {
+        String storedLink = ContentCodec.encode("/api/file/" + filename);
+        return messageRepository.existsFileMessage(username, storedLink)
+                || archivedMessageRepository.existsFileMessage(username, storedLink);
+    }
 
-            result.add(senderDetail);
+    /**
+     * Chuyển một tin nhắn thành Map kèm id (dùng cho đồng bộ và lịch sử)
+     */
+    private Map<String, Object> toItem(Message m) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("id", m.getId());
+        item.put("sender", m.getSender());
+        item.put("time", m.getTimestamp().toString());
+        item.put("message", m.getContent());
+        item.put("isFile", m.isFile());
+        if (m.getClientMessageId() != null) {
+            item.put("clientMessageId", m.getClientMessageId());
         }
-
-        return result;
+        return item;
     }
 }
@@ -0,0 +1,293 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.MessageWriteService.WriteTimeoutException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MessageWriteServiceImpl implements MessageWriteService {
+
+    /**
+     * Câu INSERT dùng cho ghi theo lô bằng JDBC.
+     * Message dùng GenerationType.IDENTITY nên Hibernate không gộp INSERT thành batch được.
+     * Ghi đủ mọi cột của Message (kể cả group_id) để tin nhắn nhóm đi qua writer không bị lưu thành tin nhắn 1-1.
+     */
+    static final String INSERT_SQL =
+            "INSERT INTO message (sender, receiver, content, is_file, timestamp, delivered, client_message_id, group_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final MessageRepository messageRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+
+    // sync: INSERT từng tin nhắn trên thread của request; write-behind: ghi theo lô trên thread riêng
+    @Value("${chat.persistence.mode:sync}")
+    private String mode = "sync";
+
+    // durable: request chờ đến khi lô chứa tin nhắn được commit; accepted: trả về ngay khi vào hàng đợi
+    @Value("${chat.persistence.ack:durable}")
+    private String ack = "durable";
+
+    @Value("${chat.persistence.batch-size:200}")
+    private int batchSize = 200;
+
+    // Thời gian tối đa chờ gom đủ lô kể từ tin nhắn đầu tiên của lô
+    @Value("${chat.persistence.flush-interval-ms:10}")
+    private long flushIntervalMs = 10;
+
+    @Value("${chat.persistence.queue-capacity:10000}")
+    private int queueCapacity = 10000;
+
+    // Thời gian tối đa request chờ xác nhận ghi ở chế độ durable
+    @Value("${chat.persistence.ack-timeout-ms:5000}")
+    private long ackTimeoutMs = 5000;
+
+    /**
+     * Một tin nhắn đang chờ ghi và future được hoàn tất khi lô của nó đã commit.
+     * taken: writer nhận tin nhắn để ghi, hoặc request hết thời gian chờ huỷ nó — chỉ một bên thắng
+     */
+    private record PendingWrite(Message message, CompletableFuture<Void> done, AtomicBoolean taken) {
+        PendingWrite(Message message) {
+            this(message, new CompletableFuture<>(), new AtomicBoolean());
+        }
+
+        boolean take() {
+            return taken.compareAndSet(false, true);
+        }
+    }
+
+    private BlockingQueue<PendingWrite> queue;
+    private Thread writer;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        if (!isWriteBehind()) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::runWriter, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Write-behind message persistence started (batch {}, flush {} ms, ack {})", batchSize, flushIntervalMs, ack);
+    }
+
+    /**
+     * Dừng writer sau khi đã ghi hết các tin nhắn còn trong hàng đợi
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        log.info("Write-behind message persistence stopped");
+    }
+
+    private boolean isWriteBehind() {
+        return "write-behind".equals(mode);
+    }
+
+    @Override
+    public void save(Message message) {
+        if (!isWriteBehind()) {
+            insert(message);
+            return;
+        }
+        await(List.of(enqueue(message)));
+    }
+
+    @Override
+    public void saveAll(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (!isWriteBehind()) {
+            try {
+                messageRepository.saveAll(messages);
+            } catch (DataIntegrityViolationException e) {
+                // Lô bị rollback (thường do một tin nhắn gửi lại đã có trong DB) → ghi lại từng tin nhắn
+                log.warn("Saving {} message(s) failed, retrying one by one: {}", messages.size(), e.getMessage());
+                for (Message message : messages) {
+                    message.setId(null);
+                    insert(message);
+                }
+            }
+            return;
+        }
+        List<PendingWrite> writes = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            writes.add(enqueue(message));
+        }
+        await(writes);
+    }
+
+    /**
+     * Đưa tin nhắn vào hàng đợi; hàng đợi đầy → ghi đồng bộ ngay trên thread gọi (backpressure)
+     */
+    private PendingWrite enqueue(Message message) {
+        PendingWrite write = new PendingWrite(message);
+        if (!running || !queue.offer(write)) {
+            log.debug("Write-behind queue unavailable or full, storing message synchronously");
+            write.take();
+            insert(message);
+            write.done().complete(null);
+        }
+        return write;
+    }
+
+    /**
+     * INSERT một tin nhắn qua JPA.
+     * Tin nhắn gửi lại (cùng sender và client message id) đã có trong DB thì bỏ qua thay vì báo lỗi.
+     */
+    private void insert(Message message) {
+        try {
+            messageRepository.save(message);
+        } catch (DataIntegrityViolationException e) {
+            if (message.getClientMessageId() == null || messageRepository
+                    .findBySenderAndClientMessageId(message.getSender(), message.getClientMessageId()).isEmpty()) {
+                throw e;
+            }
+            log.info("Skipped duplicate message '{}' from '{}'", message.getClientMessageId(), message.getSender());
+        }
+    }
+
+    /**
+     * Chờ các tin nhắn được commit (ack=durable). Hết thời gian chờ → huỷ các tin nhắn writer chưa nhận
+     * để request lỗi không để lại tin nhắn được ghi sau đó (client gửi lại sẽ tạo bản trùng)
+     */
+    private void await(List<PendingWrite> writes) {
+        if (!"durable".equals(ack)) {
+            return;
+        }
+        CompletableFuture<Void> done = writes.size() == 1 ? writes.get(0).done()
+                : CompletableFuture.allOf(writes.stream().map(PendingWrite::done).toArray(CompletableFuture[]::new));
+        try {
+            done.get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw timedOut(writes);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Message could not be stored", e.getCause());
+        } catch (TimeoutException e) {
+            throw timedOut(writes);
+        }
+    }
+
+    private WriteTimeoutException timedOut(List<PendingWrite> writes) {
+        int taken = 0;
+        for (PendingWrite write : writes) {
+            if (!write.take()) {
+                // Writer đã nhận (đang ghi hoặc đã ghi xong)
+                taken++;
+            }
+        }
+        log.warn("Timed out waiting for {} message(s) to be stored, {} cancelled before being written",
+                writes.size(), writes.size() - taken);
+        return new WriteTimeoutException(taken > 0);
+    }
+
+    /**
+     * Vòng lặp của writer: lấy tin nhắn đầu tiên, gom thêm đến khi đủ lô hoặc hết flush interval rồi ghi một lần
+     */
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // Bị ngắt → ghi nốt những gì còn trong hàng đợi rồi dừng
+                running = false;
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in message writer: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Ghi một lô bằng JDBC batch trong một transaction.
+     * Nếu lô lỗi thì ghi lại từng dòng để một tin nhắn lỗi không làm mất cả lô.
+     */
+    private void writeBatch(List<PendingWrite> batch) {
+        // Bỏ các tin nhắn mà request đã huỷ do hết thời gian chờ
+        batch.removeIf(p -> !p.take());
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Message> messages = batch.stream().map(PendingWrite::message).toList();
+        try {
+            new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+                    jdbcTemplate.batchUpdate(INSERT_SQL, messages, messages.size(), (ps, m) -> {
+                        ps.setString(1, m.getSender());
+                        ps.setString(2, m.getReceiver());
+                        ps.setString(3, m.storedContent());
+                        ps.setBoolean(4, m.isFile());
+                        ps.setObject(5, m.getTimestamp());
+                        ps.setBoolean(6, m.isDelivered());
+                        ps.setString(7, m.getClientMessageId());
+                        ps.setObject(8, m.getGroupId(), Types.BIGINT);
+                    }));
+            batch.forEach(p -> p.done().complete(null));
+            log.debug("Stored batch of {} message(s)", batch.size());
+        } catch (RuntimeException e) {
+            log.warn("Batch insert of {} message(s) failed, retrying one by one: {}", batch.size(), e.getMessage());
+            for (PendingWrite p : batch) {
+                try {
+                    insert(p.message());
+                    p.done().complete(null);
+                } catch (RuntimeException rowError) {
+                    log.error("Failed to store message from '{}' to '{}': {}",
+                            p.message().getSender(), p.message().getReceiver(), rowError.getMessage());
+                    p.done().completeExceptionally(rowError);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Journal append-only cho tin nhắn offline, chia shard theo người nhận.
+ * - Mỗi shard là một thư mục gồm các segment kích thước cố định được ánh xạ bộ nhớ:
+ *   ghi một tin nhắn chỉ là copy vào page cache, không có system call.
+ * - Bản ghi: [độ dài][CRC32C][trạng thái][dữ liệu]. Độ dài được ghi sau cùng nên bản ghi ghi dở bị bỏ qua khi khôi phục;
+ *   CRC tính cả số thứ tự segment nên bản ghi cũ còn sót trong segment tái sử dụng không bao giờ hợp lệ.
+ * - Đánh dấu đã nhận bằng cách đổi byte trạng thái tại chỗ. Index trong bộ nhớ giữ vị trí các bản ghi chưa nhận của từng người nhận.
+ * - Tin nhắn gửi lại cùng (sender, clientMessageId) với một bản ghi chưa nhận không được ghi thêm:
+ *   tin nhắn offline chưa có trong bảng message nên unique index (sender, client_message_id) chưa chặn được.
+ * - Segment không còn bản ghi chưa nhận (trừ segment đang ghi) được giữ lại làm segment dự phòng hoặc xoá.
+ * - Khởi động lại: quét các segment theo thứ tự để dựng lại index.
+ * Mỗi shard có một khoá riêng; force() (fsync) được gọi theo lô từ thread bên ngoài.
+ */
+@Slf4j
+final class OfflineJournal {
+
+    private static final long MAGIC = 0x4348_4154_4A52_4E31L;
+    // magic + số thứ tự segment
+    private static final int SEGMENT_HEADER = 16;
+    // độ dài + CRC + trạng thái
+    private static final int RECORD_HEADER = 9;
+    private static final byte PENDING = 1;
+    private static final byte DELIVERED = 2;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SPARE_SUFFIX = ".spare";
+
+    /**
+     * Một tin nhắn chờ và vị trí bản ghi của nó: (số thứ tự segment << 32) | offset
+     */
+    record Entry(long position, Message message) {
+    }
+
+    private static final class Segment {
+        final long seq;
+        final Path file;
+        final MappedByteBuffer buffer;
+        int writePos = SEGMENT_HEADER;
+        // Số bản ghi chưa nhận trong segment
+        int live;
+        volatile boolean dirty;
+
+        Segment(long seq, Path file, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Shard {
+        final Path directory;
+        final TreeMap<Long, Segment> segments = new TreeMap<>();
+        final Deque<Path> spares = new ArrayDeque<>();
+        // Key: người nhận; Value: vị trí các bản ghi chưa nhận theo thứ tự ghi
+        final Map<String, LinkedHashSet<Long>> index = new HashMap<>();
+        // (sender, clientMessageId) của các bản ghi chưa commit trạng thái đã nhận (kể cả đang claim)
+        final Set<String> clientIds = new HashSet<>();
+        Segment active;
+        long nextSeq = 1;
+
+        Shard(Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int segmentSize;
+    private final int spareSegments;
+    // Tất cả segment đang mở, để force() không phải lấy khoá của shard
+    private final Set<Segment> openSegments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Mở journal trong thư mục, khôi phục các bản ghi chưa nhận từ lần chạy trước
+     */
+    OfflineJournal(Path directory, int shardCount, int segmentSize, int spareSegments) throws IOException {
+        if (shardCount <= 0 || segmentSize <= SEGMENT_HEADER + RECORD_HEADER) {
+            throw new IllegalArgumentException("Invalid journal configuration");
+        }
+        this.segmentSize = segmentSize;
+        this.spareSegments = spareSegments;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            Shard shard = new Shard(directory.resolve("shard-%03d".formatted(i)));
+            Files.createDirectories(shard.directory);
+            recover(shard);
+            shards[i] = shard;
+        }
+    }
+
+    private Shard shard(String receiver) {
+        return shards[Math.floorMod(receiver.hashCode(), shards.length)];
+    }
+
+    /**
+     * Ghi một tin nhắn chờ. Tin nhắn gửi lại trùng (sender, clientMessageId) với bản ghi chưa nhận được bỏ qua
+     * @return false nếu tin nhắn quá lớn so với một segment
+     */
+    boolean append(Message message) {
+        byte[] payload = encode(message);
+        int size = RECORD_HEADER + payload.length;
+        if (size > segmentSize - SEGMENT_HEADER) {
+            return false;
+        }
+        Shard shard = shard(message.getReceiver());
+        String clientId = clientId(message);
+        synchronized (shard) {
+            if (clientId != null && !shard.clientIds.add(clientId)) {
+                log.debug("Message '{}' from '{}' is already in the journal", message.getClientMessageId(), message.getSender());
+                return true;
+            }
+            Segment segment = shard.active;
+            if (segment.writePos + size > segment.buffer.capacity()) {
+                segment = roll(shard);
+            }
+            int offset = segment.writePos;
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.put(offset + 8, PENDING);
+            buffer.put(offset + RECORD_HEADER, payload);
+            buffer.putInt(offset + 4, crc(segment.seq, payload));
+            buffer.putInt(offset, payload.length);
+            segment.writePos += size;
+            segment.live++;
+            segment.dirty = true;
+            shard.index.computeIfAbsent(message.getReceiver(), k -> new LinkedHashSet<>())
+                    .add(position(segment.seq, offset));
+        }
+        return true;
+    }
+
+    /**
+     * Các tin nhắn chưa nhận của user theo thứ tự ghi (vẫn nằm trong journal đến khi markDelivered)
+     */
+    List<Entry> pending(String receiver) {
+        Shard shard = shard(receiver);
+        synchronized (shard) {
+            LinkedHashSet<Long> positions = shard.index.get(receiver);
+            if (positions == null) {
+                return List.of();
+            }
+            List<Entry> entries = new ArrayList<>(positions.size());
+            for (long position : positions) {
+                Segment segment = shard.segments.get(position >>> 32);
+                int offset = (int) position;
+                byte[] payload = new byte[segment.buffer.getInt(offset)];
+                segment.buffer.get(offset + RECORD_HEADER, payload);
+                entries.add(new Entry(position, decode(payload)));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Đánh dấu đã nhận. Bản ghi đã được thiết bị khác nhận trước đó bị bỏ qua.
+     * @return các tin nhắn vừa được đánh dấu bởi lần gọi này
+     */
+    List<Message> markDelivered(String receiver, List<Entry> entries) {
+        List<Entry> claimed = claim(receiver, entries);
+        commit(receiver, claimed);
+        return claimed.stream().map(Entry::message).toList();
+    }
+
+    /**
+     * Nhận các bản ghi cho lần gọi này: bỏ khỏi danh sách chờ nhưng chưa đổi trạng thái trên đĩa,
+     * để thiết bị khác không nhận lại. Sau đó gọi commit khi đã ghi vào lịch sử.
+     * @return các bản ghi chưa bị thiết bị khác nhận trước
+     */
+    List<Entry> claim(String receiver, List<Entry> entries) {
+        Shard shard = shard(receiver);
+        List<Entry> claimed = new ArrayList<>(entries.size());
+        synchronized (shard) {
+            LinkedHashSet<Long> positions = shard.index.get(receiver);
+            if (positions == null) {
+                return claimed;
+            }
+            for (Entry entry : entries) {
+                if (positions.remove(entry.position())) {
+                    claimed.add(entry);
+                }
+            }
+            if (positions.isEmpty()) {
+                shard.index.remove(receiver);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Ghi trạng thái đã nhận cho các bản ghi đã claim; segment không còn bản ghi chờ được thu hồi
+     */
+    void commit(String receiver, List<Entry> claimed) {
+        Shard shard = shard(receiver);
+        synchronized (shard) {
+            for (Entry entry : claimed) {
+                Segment segment = shard.segments.get(entry.position() >>> 32);
+                segment.buffer.put((int) entry.position() + 8, DELIVERED);
+                segment.dirty = true;
+                String clientId = clientId(entry.message());
+                if (clientId != null) {
+                    shard.clientIds.remove(clientId);
+                }
+                if (--segment.live == 0 && segment != shard.active) {
+                    recycle(shard, segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ghi xuống đĩa các segment có thay đổi từ lần force trước
+     */
+    void force() {
+        for (Segment segment : openSegments) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Tổng số tin nhắn chưa nhận
+     */
+    int pendingCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (LinkedHashSet<Long> positions : shard.index.values()) {
+                    count += positions.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Chuyển sang segment mới (lấy từ segment dự phòng nếu có); segment cũ không còn bản ghi chưa nhận thì được thu hồi
+     */
+    private Segment roll(Shard shard) {
+        Segment previous = shard.active;
+        long seq = shard.nextSeq++;
+        Path file = shard.directory.resolve(segmentName(seq, SEGMENT_SUFFIX));
+        try {
+            Path spare = shard.spares.poll();
+            if (spare != null) {
+                Files.move(spare, file);
+            }
+            Segment segment = new Segment(seq, file, map(file));
+            segment.buffer.putLong(0, MAGIC);
+            segment.buffer.putLong(8, seq);
+            // Segment tái sử dụng: xoá bản ghi đầu tiên để lần khôi phục sau không đọc tiếp dữ liệu cũ
+            segment.buffer.putInt(SEGMENT_HEADER, 0);
+            segment.dirty = true;
+            shard.segments.put(seq, segment);
+            shard.active = segment;
+            openSegments.add(segment);
+            if (previous != null && previous.live == 0) {
+                recycle(shard, previous);
+            }
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create journal segment " + file, e);
+        }
+    }
+
+    /**
+     * Thu hồi segment không còn bản ghi chưa nhận: giữ làm dự phòng (tránh cấp phát file mới) hoặc xoá
+     */
+    private void recycle(Shard shard, Segment segment) {
+        shard.segments.remove(segment.seq);
+        openSegments.remove(segment);
+        try {
+            if (shard.spares.size() < spareSegments && segment.buffer.capacity() == segmentSize) {
+                Path spare = segment.file.resolveSibling(segmentName(segment.seq, SPARE_SUFFIX));
+                Files.move(segment.file, spare);
+                shard.spares.add(spare);
+            } else {
+                Files.deleteIfExists(segment.file);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot recycle journal segment {}: {}", segment.file, e.getMessage());
+        }
+    }
+
+    /**
+     * Dựng lại index của shard từ các segment trên đĩa
+     */
+    private void recover(Shard shard) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(shard.directory)) {
+            files = list.sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(SPARE_SUFFIX)) {
+                if (shard.spares.size() < spareSegments && Files.size(file) == segmentSize) {
+                    shard.spares.add(file);
+                } else {
+                    Files.delete(file);
+                }
+                continue;
+            }
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(seq, file, map(file));
+            if (segment.buffer.getLong(0) != MAGIC || segment.buffer.getLong(8) != seq) {
+                log.warn("Ignoring journal segment {} with invalid header", file);
+                continue;
+            }
+            scan(shard, segment);
+            shard.segments.put(seq, segment);
+            openSegments.add(segment);
+            shard.nextSeq = seq + 1;
+        }
+
+        // Segment cuối tiếp tục được ghi từ sau bản ghi hợp lệ cuối cùng (bản ghi ghi dở bị ghi đè)
+        Segment last = shard.segments.isEmpty() ? null : shard.segments.lastEntry().getValue();
+        if (last == null || last.writePos + RECORD_HEADER >= last.buffer.capacity()) {
+            roll(shard);
+        } else {
+            shard.active = last;
+            last.buffer.putInt(last.writePos, 0);
+            last.dirty = true;
+        }
+        for (Segment segment : new ArrayList<>(shard.segments.values())) {
+            if (segment.live == 0 && segment != shard.active) {
+                recycle(shard, segment);
+            }
+        }
+    }
+
+    /**
+     * Đọc các bản ghi hợp lệ của segment, đưa bản ghi chưa nhận vào index
+     */
+    private void scan(Shard shard, Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = SEGMENT_HEADER;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(offset + RECORD_HEADER, payload);
+            if (buffer.getInt(offset + 4) != crc(segment.seq, payload)) {
+                break;
+            }
+            if (buffer.get(offset + 8) == PENDING) {
+                Message message = decode(payload);
+                shard.index.computeIfAbsent(message.getReceiver(), k -> new LinkedHashSet<>())
+                        .add(position(segment.seq, offset));
+                String clientId = clientId(message);
+                if (clientId != null) {
+                    shard.clientIds.add(clientId);
+                }
+                segment.live++;
+            }
+            offset += RECORD_HEADER + length;
+        }
+        segment.writePos = offset;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) {
+                channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+                size = segmentSize;
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static String segmentName(long seq, String suffix) {
+        return "%020d%s".formatted(seq, suffix);
+    }
+
+    private static long position(long seq, int offset) {
+        return (seq << 32) | offset;
+    }
+
+    private static int crc(long seq, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Dữ liệu bản ghi: thời gian (giây + nano, UTC), isFile, receiver, sender, nội dung dạng lưu DB, client message id
+     */
+    private static byte[] encode(Message m) {
+        byte[][] fields = {
+                bytes(m.getReceiver()), bytes(m.getSender()), bytes(m.storedContent()), bytes(m.getClientMessageId())
+        };
+        int size = 8 + 4 + 1;
+        for (byte[] field : fields) {
+            size += 4 + (field != null ? field.length : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(m.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(m.getTimestamp().getNano());
+        buffer.put((byte) (m.isFile() ? 1 : 0));
+        for (byte[] field : fields) {
+            buffer.putInt(field != null ? field.length : -1);
+            if (field != null) {
+                buffer.put(field);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static Message decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+        boolean isFile = buffer.get() == 1;
+        Message message = new Message();
+        message.setReceiver(string(buffer));
+        message.setSender(string(buffer));
+        message.restoreStoredContent(string(buffer));
+        message.setClientMessageId(string(buffer));
+        message.setFile(isFile);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    /**
+     * Khoá chống ghi trùng của tin nhắn, null nếu client không gửi clientMessageId
+     */
+    private static String clientId(Message m) {
+        return m.getClientMessageId() != null ? m.getSender() + '\0' + m.getClientMessageId() : null;
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
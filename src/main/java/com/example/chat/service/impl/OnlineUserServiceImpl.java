@@ -1,52 +1,172 @@
 package com.example.chat.service.impl;
 
 import com.example.chat.entity.Message;
+import com.example.chat.service.MessageWaiter;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore;
 import com.example.chat.service.OnlineUserService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 @Component
+@RequiredArgsConstructor
+@Slf4j
 public class OnlineUserServiceImpl implements OnlineUserService {
 
+    private final MessageWriteService messageWriteService;
+    private final OfflineMessageStore offlineMessageStore;
+    private final TaskScheduler taskScheduler;
+    private final DeliveryTracker deliveryTracker;
+
+    // Số tin nhắn tối đa giữ trong hộp thư khi không có thiết bị nào đang chờ
+    @Value("${chat.mailbox.capacity:64}")
+    private int mailboxCapacity = 64;
+
+    // Hộp thư không có thiết bị chờ quá thời gian này sẽ bị dọn, tin nhắn còn lại được lưu DB
+    @Value("${chat.mailbox.idle-timeout-ms:30000}")
+    private long idleTimeoutMs = 30000;
+
+    // > 0: sau tin nhắn đầu tiên, chờ thêm khoảng này để gom các tin nhắn tiếp theo vào cùng một response
+    @Value("${chat.mailbox.linger-ms:0}")
+    private long lingerMs = 0;
+
+    // Số stripe của registry (luỹ thừa của 2): mỗi stripe là một map riêng, giảm tranh chấp khi nhiều user đăng ký cùng lúc
+    private static final int REGISTRY_STRIPES = 16;
+
     /**
-     * Bản đồ chứa hàng đợi chờ tin nhắn cho từng user đang online.
+     * Registry chứa hộp thư của từng user đang online, chia theo hash của tên người dùng.
      * Key: tên người dùng
-     * Value: BlockingQueue dùng để chứa message mới gửi đến trong thời gian chờ long-polling
+     * Value: UserMailbox chứa các thiết bị đang chờ và tin nhắn đến giữa hai lần long-polling
      */
-    private final Map<String, BlockingQueue<Message>> userQueues = new ConcurrentHashMap<>();
+    private final List<Map<String, UserMailbox>> registry = Stream
+            .generate(() -> (Map<String, UserMailbox>) new ConcurrentHashMap<String, UserMailbox>())
+            .limit(REGISTRY_STRIPES)
+            .toList();
+
+    private static final MailboxListener NO_LISTENER = new MailboxListener() {
+        @Override
+        public void opened(String username) {
+        }
+
+        @Override
+        public void closed(String username) {
+        }
+    };
+
+    private volatile MailboxListener mailboxListener = NO_LISTENER;
+
+    @Override
+    public void setMailboxListener(MailboxListener listener) {
+        mailboxListener = listener != null ? listener : NO_LISTENER;
+    }
+
+    private Map<String, UserMailbox> stripe(String username) {
+        int h = username.hashCode();
+        return registry.get((h ^ (h >>> 16)) & (REGISTRY_STRIPES - 1));
+    }
 
     /**
-     * Khi một user gửi yêu cầu GET /messages, họ sẽ chờ tối đa 10 giây để nhận tin nhắn mới.
-     * Ta lưu queue của user vào danh sách đang chờ để khi có tin nhắn mới thì push vào hàng đợi này.
+     * Khi một user gửi yêu cầu GET /messages, thiết bị đó sẽ chờ tối đa 10 giây để nhận tin nhắn mới.
+     * Nếu hộp thư đang giữ tin nhắn đến trong lúc thiết bị chưa poll lại thì chúng được gửi ngay cho waiter.
+     * Hộp thư mới tạo được báo cho MailboxListener sau khi waiter đã đăng ký.
      * @param username tên người dùng đang chờ
-     * @param queue BlockingQueue sẽ nhận tin nhắn nếu có trong thời gian long-polling
+     * @param waiter MessageWaiter sẽ nhận tin nhắn nếu có trong thời gian long-polling
      */
     @Override
-    public void waitForMessages(String username, BlockingQueue<Message> queue) {
-        userQueues.put(username, queue);
+    public void waitForMessages(String username, MessageWaiter waiter) {
+        Map<String, UserMailbox> mailboxes = stripe(username);
+        while (true) {
+            UserMailbox mailbox = mailboxes.get(username);
+            boolean created = false;
+            if (mailbox == null) {
+                UserMailbox fresh = new UserMailbox(mailboxCapacity, messageWriteService, offlineMessageStore,
+                        deliveryTracker, System.currentTimeMillis());
+                mailbox = mailboxes.putIfAbsent(username, fresh);
+                if (mailbox == null) {
+                    mailbox = fresh;
+                    created = true;
+                }
+            }
+            if (mailbox.register(waiter)) {
+                if (created) {
+                    mailboxListener.opened(username);
+                }
+                return;
+            }
+            // Hộp thư vừa bị dọn → gỡ khỏi registry (nếu chưa) và tạo hộp thư mới
+            mailboxes.remove(username, mailbox);
+        }
     }
 
     /**
-     * Khi có tin nhắn mới, service gửi tin sẽ gọi method này để kiểm tra xem user có đang online không.
-     * Nếu có → gửi tin nhắn ngay thông qua queue.
+     * Khi có tin nhắn mới, service gửi tin sẽ gọi method này.
+     * Tin nhắn chỉ được đưa vào hàng đợi của hộp thư (không khoá), thread đang drain hộp thư
+     * gửi nó đến tất cả thiết bị đang chờ và lưu DB.
+     * - User offline hoặc hộp thư đầy → trả về OFFLINE để người gửi lưu DB.
+     * Ở chế độ linger, tin nhắn đầu tiên hẹn một lần flush, các tin nhắn đến sau được gửi chung lô đó.
      * @param username tên người nhận
-     * @return queue nếu người nhận đang chờ; null nếu không
+     * @param message tin nhắn mới
+     * @return trạng thái chuyển tin nhắn
      */
     @Override
-    public BlockingQueue<Message> getWaitingQueue(String username) {
-        return userQueues.get(username);
+    public DeliveryStatus deliver(String username, Message message) {
+        UserMailbox mailbox = stripe(username).get(username);
+        if (mailbox == null || !mailbox.offer(message)) {
+            log.debug("User '{}' is offline or mailbox is full, falling back to database", username);
+            return DeliveryStatus.OFFLINE;
+        }
+
+        if (lingerMs <= 0 || mailbox.isClosed()) {
+            // Hộp thư có thể vừa bị dọn sau khi nhận tin nhắn → drain sẽ lưu DB tin nhắn đó
+            mailbox.drain();
+        } else if (mailbox.requestFlush()) {
+            taskScheduler.schedule(mailbox::flush, Instant.now().plusMillis(lingerMs));
+        }
+        return DeliveryStatus.ACCEPTED;
     }
 
     /**
      * Sau khi long-polling kết thúc (dù có nhận được tin nhắn hay không),
-     * cần loại bỏ user khỏi danh sách đang chờ để tránh memory leak.
+     * cần gỡ thiết bị khỏi hộp thư. Chỉ gỡ đúng waiter của request này, các thiết bị khác vẫn tiếp tục chờ.
      * @param username tên người dùng đã ngắt kết nối long-polling
+     * @param waiter waiter của request vừa kết thúc
      */
     @Override
-    public void removeWaitingQueue(String username) {
-        userQueues.remove(username);
+    public void removeWaiter(String username, MessageWaiter waiter) {
+        UserMailbox mailbox = stripe(username).get(username);
+        if (mailbox != null) {
+            mailbox.removeWaiter(waiter, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Dọn các hộp thư không còn thiết bị nào chờ để tránh memory leak.
+     * Tin nhắn còn giữ trong hộp thư được lưu DB như tin nhắn offline.
+     * MailboxListener chỉ được báo khi chưa có hộp thư mới thay thế cho user đó.
+     */
+    @Scheduled(fixedDelayString = "${chat.mailbox.sweep-interval-ms:5000}")
+    public void evictIdleMailboxes() {
+        long idleBefore = System.currentTimeMillis() - idleTimeoutMs;
+        for (Map<String, UserMailbox> mailboxes : registry) {
+            mailboxes.forEach((username, mailbox) -> {
+                if (mailbox.closeIfIdle(idleBefore)) {
+                    mailboxes.remove(username, mailbox);
+                    if (!mailboxes.containsKey(username)) {
+                        mailboxListener.closed(username);
+                    }
+                    log.debug("Evicted idle mailbox of '{}'", username);
+                }
+            });
+        }
     }
 }
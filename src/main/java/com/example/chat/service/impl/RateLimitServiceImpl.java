@@ -0,0 +1,196 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.service.RateLimitService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Service
+@Slf4j
+public class RateLimitServiceImpl implements RateLimitService {
+
+    // Gửi tin nhắn: số lượt hồi lại mỗi giây và số lượt tối đa dồn được cho mỗi user
+    @Value("${chat.ratelimit.send.per-second:10}")
+    private int sendPerSecond = 10;
+
+    @Value("${chat.ratelimit.send.burst:30}")
+    private int sendBurst = 30;
+
+    // Long polling / SSE cho mỗi user (mỗi tin nhắn nhận được kết thúc một lần polling)
+    @Value("${chat.ratelimit.poll.per-second:10}")
+    private int pollPerSecond = 10;
+
+    @Value("${chat.ratelimit.poll.burst:30}")
+    private int pollBurst = 30;
+
+    // Tổng gửi + polling cho mỗi IP (nhiều user có thể dùng chung IP qua NAT)
+    @Value("${chat.ratelimit.ip.per-second:100}")
+    private int ipPerSecond = 100;
+
+    @Value("${chat.ratelimit.ip.burst:200}")
+    private int ipBurst = 200;
+
+    // Đăng nhập / refresh token cho mỗi IP
+    @Value("${chat.ratelimit.login.per-second:1}")
+    private int loginPerSecond = 1;
+
+    @Value("${chat.ratelimit.login.burst:10}")
+    private int loginBurst = 10;
+
+    // Số long polling / SSE treo đồng thời tối đa trên node
+    @Value("${chat.ratelimit.max-concurrent-polls:10000}")
+    private int maxConcurrentPolls = 10000;
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger activePolls = new AtomicInteger();
+
+    private TokenBuckets sendBuckets;
+    private TokenBuckets pollBuckets;
+    private TokenBuckets ipBuckets;
+    private TokenBuckets loginBuckets;
+
+    @PostConstruct
+    public void init() {
+        sendBuckets = new TokenBuckets(sendPerSecond, sendBurst);
+        pollBuckets = new TokenBuckets(pollPerSecond, pollBurst);
+        ipBuckets = new TokenBuckets(ipPerSecond, ipBurst);
+        loginBuckets = new TokenBuckets(loginPerSecond, loginBurst);
+        log.info("Rate limits: send {}/s (burst {}), poll {}/s (burst {}), ip {}/s (burst {}), login {}/s (burst {}), max {} concurrent polls",
+                sendPerSecond, sendBurst, pollPerSecond, pollBurst, ipPerSecond, ipBurst, loginPerSecond, loginBurst, maxConcurrentPolls);
+    }
+
+    @Override
+    public long tryAcquire(Endpoint endpoint, String clientIp, String username) {
+        return tryAcquire(endpoint, clientIp, username, now());
+    }
+
+    long tryAcquire(Endpoint endpoint, String clientIp, String username, long now) {
+        if (endpoint == Endpoint.LOGIN) {
+            return loginBuckets.tryAcquire(clientIp, now);
+        }
+        long wait = ipBuckets.tryAcquire(clientIp, now);
+        if (wait > 0 || username == null) {
+            return wait;
+        }
+        return (endpoint == Endpoint.SEND ? sendBuckets : pollBuckets).tryAcquire(username, now);
+    }
+
+    @Override
+    public boolean tryEnterPoll() {
+        while (true) {
+            int active = activePolls.get();
+            if (active >= maxConcurrentPolls) {
+                return false;
+            }
+            if (activePolls.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void exitPoll() {
+        activePolls.decrementAndGet();
+    }
+
+    int activePolls() {
+        return activePolls.get();
+    }
+
+    /**
+     * Dọn các bucket đã hồi đầy: bucket đầy tương đương bucket mới nên xoá đi không làm thay đổi giới hạn
+     */
+    @Scheduled(fixedDelayString = "${chat.ratelimit.sweep-interval-ms:60000}")
+    public void evictIdleBuckets() {
+        evictIdleBuckets(now());
+    }
+
+    void evictIdleBuckets(long now) {
+        int evicted = sendBuckets.evictFull(now) + pollBuckets.evictFull(now)
+                + ipBuckets.evictFull(now) + loginBuckets.evictFull(now);
+        if (evicted > 0) {
+            log.debug("Evicted {} idle rate limit bucket(s)", evicted);
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Token bucket theo key, không khoá.
+     * Trạng thái mỗi bucket gói trong một AtomicLong: 40 bit cao là thời điểm hồi gần nhất (ms),
+     * 24 bit thấp là số token tính theo phần nghìn lượt, cập nhật bằng CAS.
+     * Với perSecond lượt/giây thì mỗi ms hồi đúng perSecond phần nghìn lượt nên không bị sai số làm tròn.
+     */
+    static final class TokenBuckets {
+
+        private static final int TOKEN_BITS = 24;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+        private static final long PERMIT = 1000;
+
+        private final long perSecond;
+        private final long capacity;
+        private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+        TokenBuckets(int perSecond, int burst) {
+            if (perSecond <= 0 || burst <= 0 || burst * PERMIT > TOKEN_MASK) {
+                throw new IllegalArgumentException("Invalid rate limit: " + perSecond + "/s, burst " + burst);
+            }
+            this.perSecond = perSecond;
+            this.capacity = burst * PERMIT;
+        }
+
+        /**
+         * @return 0 nếu lấy được một lượt; ngược lại số ms đến khi bucket có lại một lượt
+         */
+        long tryAcquire(String key, long now) {
+            AtomicLong state = buckets.get(key);
+            if (state == null) {
+                state = buckets.computeIfAbsent(key, k -> new AtomicLong(pack(now, capacity)));
+            }
+            while (true) {
+                long current = state.get();
+                long last = current >>> TOKEN_BITS;
+                long tokens = available(current, now);
+                if (tokens < PERMIT) {
+                    // Bị từ chối thì không ghi lại trạng thái: request vượt giới hạn không gây tranh chấp CAS
+                    return (PERMIT - tokens + perSecond - 1) / perSecond;
+                }
+                if (state.compareAndSet(current, pack(Math.max(now, last), tokens - PERMIT))) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Xoá bucket đã hồi đầy. Request đang giữ bucket vừa bị xoá chỉ được hưởng thêm tối đa một lượt.
+         */
+        int evictFull(long now) {
+            int before = buckets.size();
+            buckets.values().removeIf(state -> available(state.get(), now) >= capacity);
+            return Math.max(0, before - buckets.size());
+        }
+
+        int size() {
+            return buckets.size();
+        }
+
+        private long available(long state, long now) {
+            long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+            return Math.min(capacity, (state & TOKEN_MASK) + elapsed * perSecond);
+        }
+
+        private static long pack(long now, long tokens) {
+            return now << TOKEN_BITS | tokens;
+        }
+    }
+}
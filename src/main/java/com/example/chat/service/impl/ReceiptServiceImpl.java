@@ -0,0 +1,222 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ConversationReceipt;
+import com.example.chat.entity.Message;
+import com.example.chat.entity.User;
+import com.example.chat.repository.ConversationReceiptRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.service.ReceiptService;
+import com.example.chat.util.JwtUtil;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ReceiptServiceImpl implements ReceiptService {
+
+    /**
+     * Ghi mốc theo lô: mốc chỉ tiến về phía trước (hai node / hai lô không làm mốc lùi lại)
+     */
+    static final String UPSERT_SQL =
+            "INSERT INTO conversation_receipt (reader, peer, delivered_up_to, read_up_to) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE delivered_up_to = GREATEST(delivered_up_to, VALUES(delivered_up_to)), " +
+            "read_up_to = GREATEST(read_up_to, VALUES(read_up_to))";
+
+    /**
+     * Id lớn nhất của tin nhắn 1:1 peer gửi cho reader đã được giao: đi lùi theo idx_message_receiver_sender_id
+     * chỉ trên tin nhắn của hội thoại này, dừng ở dòng đã giao đầu tiên (thường là dòng mới nhất)
+     */
+    static final String LAST_DELIVERED_SQL =
+            "SELECT id FROM message WHERE receiver = ? AND sender = ? AND group_id IS NULL AND delivered = TRUE " +
+            "ORDER BY id DESC LIMIT 1";
+
+    private final JwtUtil jwtUtil;
+    private final UserRepository userRepository;
+    private final ConversationReceiptRepository receiptRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final DeliveryBus deliveryBus;
+    private final ObjectMapper objectMapper;
+    private final DeliveryTracker deliveryTracker;
+
+    // Số hội thoại tối đa có mốc chờ ghi; vượt quá thì request xác nhận tự ghi lô ngay (backpressure)
+    @Value("${chat.receipt.max-pending:100000}")
+    private int maxPending = 100000;
+
+    // Hội thoại vừa được server giao tin nhắn chỉ được tính mốc DELIVERED sau khoảng này,
+    // khi lần ghi lịch sử của lô đã giao (write-behind, ack=accepted) đã xong
+    @Value("${chat.receipt.delivery-settle-ms:1000}")
+    private long deliverySettleMs = 1000;
+
+    /**
+     * Hội thoại: reader xác nhận tin nhắn của peer
+     */
+    record Key(String reader, String peer) {
+    }
+
+    /**
+     * Mốc chờ ghi của một hội thoại (0: chưa có xác nhận loại đó từ lần ghi trước)
+     */
+    record Watermark(long deliveredUpTo, long readUpTo) {
+        Watermark max(Watermark other) {
+            return new Watermark(Math.max(deliveredUpTo, other.deliveredUpTo), Math.max(readUpTo, other.readUpTo));
+        }
+    }
+
+    /**
+     * Key: hội thoại
+     * Value: mốc mới nhất chưa ghi DB; nhiều xác nhận liên tiếp của cùng hội thoại chỉ còn một dòng khi ghi
+     */
+    private final Map<Key, Watermark> pending = new ConcurrentHashMap<>();
+
+    private String extractUsername(String authHeader, String userAgent) {
+        return jwtUtil.validateToken(authHeader.replace("Bearer ", "").trim(), userAgent);
+    }
+
+    @Override
+    public void acknowledge(String authHeader, String userAgent, String peer, ConversationReceipt.Type type, long upTo)
+            throws IOException {
+        String reader = extractUsername(authHeader, userAgent);
+        if (type == null || upTo <= 0) {
+            throw new IllegalArgumentException("Receipt type and a positive message id are required");
+        }
+        // Chỉ bạn bè mới gửi được tin nhắn cho reader, nên cũng chỉ bạn bè mới nhận được xác nhận
+        User user = userRepository.findById(reader)
+                .orElseThrow(() -> new IllegalArgumentException("User not found"));
+        List<String> friends = objectMapper.readValue(user.getFriendsJson(), new TypeReference<>() {});
+        if (!friends.contains(peer)) {
+            throw new SecurityException("Not a friend");
+        }
+
+        // Đã đọc bao gồm đã nhận
+        Watermark watermark = type == ConversationReceipt.Type.READ
+                ? new Watermark(upTo, upTo)
+                : new Watermark(upTo, 0);
+        pending.merge(new Key(reader, peer), watermark, Watermark::max);
+        log.debug("User '{}' acknowledged {} up to {} from '{}'", reader, type, upTo, peer);
+
+        if (pending.size() >= maxPending) {
+            flush();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getReceipts(String authHeader, String userAgent, String peer) {
+        String sender = extractUsername(authHeader, userAgent);
+        Key key = new Key(peer, sender);
+        Watermark watermark = receiptRepository.findByReaderAndPeer(peer, sender)
+                .map(r -> new Watermark(r.getDeliveredUpTo(), r.getReadUpTo()))
+                .orElse(new Watermark(0, 0));
+        Watermark buffered = pending.get(key);
+        if (buffered != null) {
+            watermark = watermark.max(buffered);
+        }
+        return Map.of(
+                "peer", peer,
+                "deliveredUpTo", Math.max(watermark.deliveredUpTo(), watermark.readUpTo()),
+                "readUpTo", watermark.readUpTo()
+        );
+    }
+
+    /**
+     * Ghi định kỳ; lỗi DB chỉ được ghi log, các mốc được giữ lại cho lần ghi sau
+     */
+    @Scheduled(fixedDelayString = "${chat.receipt.flush-interval-ms:200}")
+    public void scheduledFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Flushing receipts failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public int flush() {
+        return flush(System.currentTimeMillis());
+    }
+
+    synchronized int flush(long now) {
+        resolveServerDeliveries(now - deliverySettleMs);
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        // Lấy từng hội thoại ra khỏi map: xác nhận đến sau thời điểm này tạo dòng mới cho lô sau
+        List<Map.Entry<Key, Watermark>> batch = new ArrayList<>(pending.size());
+        for (Key key : pending.keySet()) {
+            Watermark watermark = pending.remove(key);
+            if (watermark != null) {
+                batch.add(Map.entry(key, watermark));
+            }
+        }
+        try {
+            new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+                    jdbcTemplate.batchUpdate(UPSERT_SQL, batch, batch.size(), (ps, e) -> {
+                        ps.setString(1, e.getKey().reader());
+                        ps.setString(2, e.getKey().peer());
+                        ps.setLong(3, Math.max(e.getValue().deliveredUpTo(), e.getValue().readUpTo()));
+                        ps.setLong(4, e.getValue().readUpTo());
+                    }));
+        } catch (RuntimeException e) {
+            batch.forEach(entry -> pending.merge(entry.getKey(), entry.getValue(), Watermark::max));
+            throw e;
+        }
+
+        // Mỗi hội thoại chỉ một thông báo cho mỗi loại, dù reader đã xác nhận bao nhiêu lần
+        for (Map.Entry<Key, Watermark> entry : batch) {
+            notifySender(entry.getKey(), entry.getValue());
+        }
+        log.debug("Flushed receipts of {} conversation(s)", batch.size());
+        return batch.size();
+    }
+
+    /**
+     * Tin nhắn 1:1 không có id khi giao nên client không xác nhận được: với mỗi hội thoại server đã giao,
+     * mốc DELIVERED là id lớn nhất đã giao trong DB. Lỗi DB → hội thoại được giữ lại cho lần ghi sau.
+     */
+    private void resolveServerDeliveries(long settledBefore) {
+        List<DeliveryTracker.Conversation> conversations = deliveryTracker.takeSettled(settledBefore);
+        for (int i = 0; i < conversations.size(); i++) {
+            DeliveryTracker.Conversation conversation = conversations.get(i);
+            List<Long> ids;
+            try {
+                ids = jdbcTemplate.queryForList(LAST_DELIVERED_SQL, Long.class, conversation.reader(), conversation.peer());
+            } catch (RuntimeException e) {
+                deliveryTracker.restore(conversations.subList(i, conversations.size()), settledBefore);
+                throw e;
+            }
+            if (!ids.isEmpty()) {
+                pending.merge(new Key(conversation.reader(), conversation.peer()), new Watermark(ids.get(0), 0), Watermark::max);
+            }
+        }
+    }
+
+    /**
+     * Đẩy mốc mới cho người gửi qua hộp thư; người gửi không online thì đọc lại bằng getReceipts
+     */
+    private void notifySender(Key key, Watermark watermark) {
+        if (watermark.readUpTo() > 0) {
+            deliveryBus.deliver(key.peer(), Message.receiptNotice(
+                    key.reader(), key.peer(), ConversationReceipt.Type.READ, watermark.readUpTo()));
+        }
+        if (watermark.deliveredUpTo() > watermark.readUpTo()) {
+            deliveryBus.deliver(key.peer(), Message.receiptNotice(
+                    key.reader(), key.peer(), ConversationReceipt.Type.DELIVERED, watermark.deliveredUpTo()));
+        }
+    }
+}
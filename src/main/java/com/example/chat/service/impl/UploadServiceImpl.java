@@ -0,0 +1,422 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.User;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.FileStorageService;
+import com.example.chat.service.FileStorageService.StoredFile;
+import com.example.chat.service.MessageService;
+import com.example.chat.service.UploadService;
+import com.example.chat.util.JwtUtil;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Tải lên file lớn theo từng đoạn có kích thước cố định.
+ * File tạm được cấp phát trước đủ kích thước; mỗi đoạn được ghi bằng FileChannel.write(buffer, vị trí)
+ * nên các đoạn đến theo thứ tự bất kỳ và nhiều request song song ghi cùng file không cần khoá lẫn nhau.
+ * Khi đủ các đoạn, file tạm được đưa vào kho (đổi tên, không copy) và gửi như một tin nhắn file.
+ * Trạng thái lượt tải lên nằm trong bộ nhớ của node đã tạo nó (cùng nơi chứa file tạm);
+ * file tạm của các lượt mất khi node khởi động lại được lần dọn định kỳ xoá (lần đầu chạy ngay khi khởi động).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UploadServiceImpl implements UploadService {
+
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final JwtUtil jwtUtil;
+    private final UserRepository userRepository;
+    private final FileStorageService fileStorageService;
+    private final MessageService messageService;
+    private final ObjectMapper objectMapper;
+
+    // Dung lượng tối đa của file tải lên theo từng đoạn (lớn hơn giới hạn của /api/send)
+    @Value("${chat.upload.chunked.max-size-mb:2048}")
+    private long maxSizeMb = 2048;
+
+    @Value("${chat.upload.chunked.chunk-size-mb:4}")
+    private int chunkSizeMb = 4;
+
+    // Số lượt tải lên chưa hoàn tất tối đa của một người dùng (mỗi lượt giữ một file tạm đủ kích thước)
+    @Value("${chat.upload.chunked.max-per-user:4}")
+    private int maxPerUser = 4;
+
+    // Tổng dung lượng file tạm cấp phát trước cho các lượt chưa hoàn tất trên node (chặn lấp đầy đĩa)
+    @Value("${chat.upload.chunked.max-total-mb:20480}")
+    private long maxTotalMb = 20480;
+
+    // Lượt tải lên không có đoạn mới trong khoảng này bị huỷ; lượt đã hoàn tất được giữ để trả lại kết quả
+    @Value("${chat.upload.chunked.idle-timeout-ms:86400000}")
+    private long idleTimeoutMs = 86400000;
+
+    @Value("${chat.upload.buffer-size-kb:64}")
+    private int bufferSizeKb = 64;
+
+    /**
+     * Key: upload id
+     * Value: lượt tải lên
+     */
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Key: người gửi
+     * Value: số lượt chưa hoàn tất (kiểm tra và tăng trong một lần compute nên không vượt max-per-user)
+     */
+    private final Map<String, Integer> activeByUser = new ConcurrentHashMap<>();
+
+    // Tổng kích thước file tạm của các lượt chưa hoàn tất
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * Một lượt tải lên. Ghi đoạn giữ khoá đọc (nhiều đoạn cùng lúc), hoàn tất / huỷ giữ khoá ghi
+     * nên không có đoạn nào đang ghi khi file tạm được chuyển đi hoặc xoá.
+     */
+    static final class Upload {
+        final String id;
+        final String sender;
+        final String receiver;
+        final String filename;
+        final String sha256;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final Path file;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Các đoạn đã ghi xong (khoá bằng chính BitSet)
+        private final BitSet received;
+        volatile long lastActivity;
+        // Kết quả gửi tin nhắn sau khi hoàn tất (ghi khi giữ khoá ghi)
+        volatile Map<String, Object> result;
+        // Đã huỷ / hết hạn, hoặc hoàn tất lỗi
+        volatile boolean closed;
+        // Còn giữ một chỗ trong max-per-user và max-total-mb (trả lại đúng một lần khi hoàn tất hoặc huỷ)
+        final AtomicBoolean reserved = new AtomicBoolean(true);
+
+        Upload(String id, String sender, String receiver, String filename, String sha256, long size, int chunkSize,
+               Path file) {
+            this.id = id;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.filename = filename;
+            this.sha256 = sha256;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.file = file;
+            this.received = new BitSet(chunkCount);
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        long offset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        int length(int index) {
+            return (int) Math.min(chunkSize, size - offset(index));
+        }
+
+        int markReceived(int index) {
+            synchronized (received) {
+                received.set(index);
+                return chunkCount - received.cardinality();
+            }
+        }
+
+        List<Integer> missing() {
+            List<Integer> missing = new ArrayList<>();
+            synchronized (received) {
+                for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+                    missing.add(i);
+                }
+            }
+            return missing;
+        }
+    }
+
+    private String extractUsername(String authHeader, String userAgent) {
+        return jwtUtil.validateToken(authHeader.replace("Bearer ", "").trim(), userAgent);
+    }
+
+    @Override
+    public Map<String, Object> create(String authHeader, String userAgent, String username, String filename, long size,
+                                      String sha256) throws IOException {
+        String sender = extractUsername(authHeader, userAgent);
+        long maxBytes = maxSizeMb * 1024 * 1024;
+        if (size <= 0) {
+            throw new IllegalArgumentException("File is empty");
+        }
+        if (size > maxBytes) {
+            throw new FileStorageService.TooLargeException(maxBytes);
+        }
+        String expectedHash = sha256 != null ? sha256.toLowerCase(Locale.ROOT) : null;
+        if (expectedHash != null && !SHA256.matcher(expectedHash).matches()) {
+            throw new IllegalArgumentException("sha256 must be 64 hex characters");
+        }
+
+        // Kiểm tra người nhận trước khi nhận byte nào: lượt tải lên bị từ chối không chiếm đĩa
+        User receiver = userRepository.findById(username)
+                .orElseThrow(() -> new IllegalArgumentException("User not found"));
+        List<String> friends = objectMapper.readValue(receiver.getFriendsJson(), new TypeReference<>() {});
+        if (!friends.contains(sender)) {
+            throw new SecurityException("Not a friend");
+        }
+        reserve(sender, size);
+
+        int chunkSize = chunkSizeMb * 1024 * 1024;
+        Upload upload;
+        try {
+            upload = new Upload(UUID.randomUUID().toString(), sender, username, filename, expectedHash, size, chunkSize,
+                    fileStorageService.createTempFile(size));
+        } catch (IOException | RuntimeException e) {
+            unreserve(sender, size);
+            throw e;
+        }
+        uploads.put(upload.id, upload);
+        log.info("Started chunked upload {} from '{}' to '{}' ({} bytes, {} chunk(s))",
+                upload.id, sender, username, size, upload.chunkCount);
+        return Map.of("uploadId", upload.id, "chunkSize", chunkSize, "chunkCount", upload.chunkCount);
+    }
+
+    @Override
+    public Map<String, Object> writeChunk(String authHeader, String userAgent, String uploadId, int index, InputStream body,
+                                          long contentLength) throws IOException {
+        Upload upload = find(extractUsername(authHeader, userAgent), uploadId);
+        if (index < 0 || index >= upload.chunkCount) {
+            throw new IllegalArgumentException("Chunk index must be between 0 and " + (upload.chunkCount - 1));
+        }
+        long offset = upload.offset(index);
+        int length = upload.length(index);
+        if (contentLength >= 0 && contentLength != length) {
+            throw new IllegalArgumentException("Chunk " + index + " must be " + length + " bytes");
+        }
+
+        upload.lock.readLock().lock();
+        try {
+            if (upload.closed) {
+                throw new NoSuchElementException("Upload not found");
+            }
+            if (upload.result != null) {
+                throw new IllegalStateException("Upload is already completed");
+            }
+            byte[] buffer = new byte[Math.min(length, bufferSizeKb * 1024)];
+            long written = 0;
+            try (FileChannel out = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+                int n;
+                while (written < length && (n = body.read(buffer, 0, (int) Math.min(buffer.length, length - written))) != -1) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        written += out.write(chunk, offset + written);
+                    }
+                }
+            }
+            if (written < length) {
+                // Đoạn bị ngắt giữa chừng: phần đã ghi bị ghi đè khi client gửi lại
+                throw new IllegalArgumentException("Chunk " + index + " is incomplete (" + written + " of " + length + " bytes)");
+            }
+            if (body.read() != -1) {
+                throw new IllegalArgumentException("Chunk " + index + " must be " + length + " bytes");
+            }
+            upload.lastActivity = System.currentTimeMillis();
+            int remaining = upload.markReceived(index);
+            log.debug("Wrote chunk {} of upload {} ({} remaining)", index, uploadId, remaining);
+            return Map.of("index", index, "remaining", remaining);
+        } finally {
+            upload.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Object> status(String authHeader, String userAgent, String uploadId) {
+        Upload upload = find(extractUsername(authHeader, userAgent), uploadId);
+        Map<String, Object> status = new HashMap<>();
+        status.put("uploadId", upload.id);
+        status.put("size", upload.size);
+        status.put("chunkSize", upload.chunkSize);
+        status.put("chunkCount", upload.chunkCount);
+        status.put("missing", upload.missing());
+        status.put("completed", upload.result != null);
+        return status;
+    }
+
+    @Override
+    public Map<String, Object> complete(String authHeader, String userAgent, String uploadId, String clientMessageId)
+            throws IOException {
+        Upload upload = find(extractUsername(authHeader, userAgent), uploadId);
+        upload.lock.writeLock().lock();
+        try {
+            if (upload.closed) {
+                throw new NoSuchElementException("Upload not found");
+            }
+            if (upload.result != null) {
+                return upload.result;
+            }
+            List<Integer> missing = upload.missing();
+            if (!missing.isEmpty()) {
+                throw new IllegalStateException("Upload is missing " + missing.size() + " chunk(s)");
+            }
+
+            try {
+                StoredFile stored = fileStorageService.adopt(upload.file, upload.filename);
+                if (upload.sha256 != null && !upload.sha256.equals(stored.sha256())) {
+                    fileStorageService.release(stored.name());
+                    throw new IllegalArgumentException("File content does not match sha256");
+                }
+                upload.result = messageService.sendStoredFile(upload.sender, upload.receiver, stored, clientMessageId);
+                release(upload);
+                log.info("Completed chunked upload {} as '{}' ({} bytes)", uploadId, stored.name(), stored.size());
+            } finally {
+                if (upload.result == null) {
+                    // File tạm đã được chuyển vào kho hoặc xoá: lượt tải lên không dùng lại được
+                    upload.closed = true;
+                    uploads.remove(uploadId);
+                    release(upload);
+                }
+            }
+            upload.lastActivity = System.currentTimeMillis();
+            return upload.result;
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void abort(String authHeader, String userAgent, String uploadId) throws IOException {
+        Upload upload = find(extractUsername(authHeader, userAgent), uploadId);
+        upload.lock.writeLock().lock();
+        try {
+            close(upload);
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+        log.info("Aborted chunked upload {}", uploadId);
+    }
+
+    /**
+     * Huỷ các lượt tải lên bỏ dở và quên các lượt đã hoàn tất quá thời gian chờ
+     */
+    @Scheduled(fixedDelayString = "${chat.upload.chunked.sweep-interval-ms:60000}")
+    public void expireIdleUploads() {
+        expireIdleUploads(System.currentTimeMillis());
+    }
+
+    int expireIdleUploads(long now) {
+        int expired = 0;
+        for (Upload upload : uploads.values()) {
+            // Lượt đang có đoạn ghi dở được bỏ qua đến lần dọn sau
+            if (now - upload.lastActivity < idleTimeoutMs || !upload.lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                close(upload);
+                expired++;
+            } catch (IOException e) {
+                log.error("Failed to delete temporary file of upload {}: {}", upload.id, e.getMessage());
+            } finally {
+                upload.lock.writeLock().unlock();
+            }
+        }
+        if (expired > 0) {
+            log.info("Expired {} idle chunked upload(s)", expired);
+        }
+        try {
+            // File tạm mồ côi (lượt mất khi khởi động lại, request bị ngắt) lâu như một lượt bỏ dở
+            int orphaned = fileStorageService.deleteStaleTempFiles(now - idleTimeoutMs);
+            if (orphaned > 0) {
+                log.info("Deleted {} orphaned temporary upload file(s)", orphaned);
+            }
+        } catch (IOException e) {
+            log.error("Failed to sweep temporary upload files: {}", e.getMessage());
+        }
+        return expired;
+    }
+
+    /**
+     * Bỏ lượt tải lên (giữ khoá ghi); file tạm bị xoá nếu chưa được đưa vào kho
+     */
+    private void close(Upload upload) throws IOException {
+        boolean pending = !upload.closed && upload.result == null;
+        upload.closed = true;
+        uploads.remove(upload.id);
+        if (pending) {
+            release(upload);
+            Files.deleteIfExists(upload.file);
+        }
+    }
+
+    /**
+     * Giữ chỗ cho một lượt mới: số lượt của người gửi và tổng dung lượng cấp phát trước của node
+     * @throws IllegalArgumentException người gửi đã có đủ max-per-user lượt chưa hoàn tất
+     * @throws IllegalStateException node đã cấp phát đủ max-total-mb
+     */
+    private void reserve(String sender, long size) {
+        boolean[] accepted = new boolean[1];
+        activeByUser.compute(sender, (k, active) -> {
+            int count = active == null ? 0 : active;
+            if (count >= maxPerUser) {
+                return active;
+            }
+            accepted[0] = true;
+            return count + 1;
+        });
+        if (!accepted[0]) {
+            throw new IllegalArgumentException("Too many uploads in progress");
+        }
+        long maxTotalBytes = maxTotalMb * 1024 * 1024;
+        if (reservedBytes.addAndGet(size) > maxTotalBytes) {
+            unreserve(sender, size);
+            throw new IllegalStateException("Upload capacity is exhausted, try again later");
+        }
+    }
+
+    private void unreserve(String sender, long size) {
+        reservedBytes.addAndGet(-size);
+        activeByUser.computeIfPresent(sender, (k, active) -> active > 1 ? active - 1 : null);
+    }
+
+    /**
+     * Trả lại chỗ của lượt tải lên khi nó không còn giữ file tạm (hoàn tất, huỷ, hết hạn)
+     */
+    private void release(Upload upload) {
+        if (upload.reserved.compareAndSet(true, false)) {
+            unreserve(upload.sender, upload.size);
+        }
+    }
+
+    /**
+     * Lượt tải lên của người dùng; lượt của người khác được coi như không tồn tại
+     */
+    private Upload find(String sender, String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.sender.equals(sender)) {
+            throw new NoSuchElementException("Upload not found");
+        }
+        return upload;
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.MessageWaiter;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore;
+import com.example.chat.util.MpscRingBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hộp thư của một user đang online, không dùng khoá.
+ * - Người gửi chỉ đưa tin nhắn vào hàng đợi vòng MPSC (không cấp phát, không khoá) rồi báo hiệu drain.
+ * - Tại mỗi thời điểm chỉ một thread drain hộp thư (bộ đếm work-in-progress): thread đó lấy toàn bộ tin nhắn,
+ *   gửi đến tất cả thiết bị đang chờ (fan-out) và lưu DB lô đã giao. Thread khác báo hiệu trong lúc đó
+ *   chỉ tăng bộ đếm, thread đang drain sẽ chạy thêm một vòng.
+ * - Danh sách thiết bị chờ là mảng bất biến thay bằng CAS; mảng CLOSED đánh dấu hộp thư đã bị dọn
+ *   nên việc đăng ký và việc dọn hộp thư không thể chen nhau.
+ * - Khi không có thiết bị nào đang chờ (giữa hai lần polling), tin nhắn nằm trong hàng đợi (tối đa capacity).
+ *   Lô không thiết bị nào nhận (tất cả đã timeout) hoặc tin nhắn còn lại khi hộp thư bị dọn
+ *   được đưa vào hàng đợi tin nhắn offline. Tin nhắn đã có id (tin nhắn nhóm) không được lưu lại lần nữa.
+ */
+class UserMailbox {
+
+    private static final MessageWaiter[] NO_WAITERS = new MessageWaiter[0];
+    private static final MessageWaiter[] CLOSED = new MessageWaiter[0];
+
+    private final MessageWriteService messageWriteService;
+    private final OfflineMessageStore offlineMessageStore;
+    private final DeliveryTracker deliveryTracker;
+    private final MpscRingBuffer<Message> inbox;
+    private final AtomicReference<MessageWaiter[]> waiters = new AtomicReference<>(NO_WAITERS);
+    private final AtomicInteger wip = new AtomicInteger();
+    // Đã có một lần flush được hẹn lịch (chế độ linger)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Thời điểm thiết bị cuối cùng ngừng chờ, dùng để dọn hộp thư không còn hoạt động
+    private volatile long idleSince;
+
+    UserMailbox(int capacity, MessageWriteService messageWriteService, OfflineMessageStore offlineMessageStore,
+                DeliveryTracker deliveryTracker, long now) {
+        this.messageWriteService = messageWriteService;
+        this.offlineMessageStore = offlineMessageStore;
+        this.deliveryTracker = deliveryTracker;
+        this.inbox = new MpscRingBuffer<>(capacity);
+        this.idleSince = now;
+    }
+
+    /**
+     * Đăng ký một thiết bị chờ; tin nhắn đang giữ được gửi ngay cho thiết bị qua drain
+     * @return false nếu hộp thư đã bị dọn
+     */
+    boolean register(MessageWaiter waiter) {
+        while (true) {
+            MessageWaiter[] current = waiters.get();
+            if (current == CLOSED) {
+                return false;
+            }
+            MessageWaiter[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = waiter;
+            if (waiters.compareAndSet(current, next)) {
+                drain();
+                return true;
+            }
+        }
+    }
+
+    void removeWaiter(MessageWaiter waiter, long now) {
+        while (true) {
+            MessageWaiter[] current = waiters.get();
+            int index = indexOf(current, waiter);
+            if (index < 0) {
+                return;
+            }
+            MessageWaiter[] next = current.length == 1 ? NO_WAITERS : new MessageWaiter[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (waiters.compareAndSet(current, next)) {
+                if (next.length == 0) {
+                    idleSince = now;
+                }
+                return;
+            }
+        }
+    }
+
+    private static int indexOf(MessageWaiter[] array, MessageWaiter waiter) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == waiter) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Đưa tin nhắn vào hộp thư (người gọi cần báo hiệu drain hoặc hẹn flush sau đó)
+     * @return false nếu hộp thư đã đóng hoặc đầy
+     */
+    boolean offer(Message message) {
+        return waiters.get() != CLOSED && inbox.offer(message);
+    }
+
+    boolean isClosed() {
+        return waiters.get() == CLOSED;
+    }
+
+    /**
+     * Chế độ linger: tin nhắn đầu tiên khi có thiết bị đang chờ sẽ yêu cầu hẹn flush
+     * @return true nếu người gọi cần hẹn lịch flush
+     */
+    boolean requestFlush() {
+        return waiters.get().length > 0 && flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Lần flush đã hẹn đến hạn: gửi toàn bộ tin nhắn đã gom
+     */
+    void flush() {
+        flushScheduled.set(false);
+        drain();
+    }
+
+    /**
+     * Gửi tin nhắn đang có đến các thiết bị chờ. Chỉ một thread thực hiện tại một thời điểm,
+     * các lần gọi trong lúc đó được gộp vào vòng lặp của thread đang drain.
+     */
+    void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drainOnce();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        MessageWaiter[] targets = waiters.get();
+        if (targets == CLOSED) {
+            // Hộp thư đã bị dọn: mọi tin nhắn còn lại (kể cả tin nhắn vào sau khi đóng) được lưu DB
+            List<Message> remaining = new ArrayList<>();
+            inbox.drainTo(remaining);
+            store(remaining, false);
+            return;
+        }
+        if (targets.length == 0 || inbox.isEmpty()) {
+            return;
+        }
+
+        List<Message> batch = new ArrayList<>();
+        inbox.drainTo(batch);
+        List<Message> messages = Collections.unmodifiableList(batch);
+
+        boolean accepted = false;
+        long now = System.currentTimeMillis();
+        for (MessageWaiter waiter : targets) {
+            boolean received = waiter.offer(messages);
+            accepted |= received;
+            // Waiter một lần đã nhận, hoặc waiter không còn nhận được (đã timeout, kết nối đóng) → gỡ
+            if (!received || !waiter.isPersistent()) {
+                removeWaiter(waiter, now);
+            }
+        }
+
+        // Không thiết bị nào nhận → đưa vào hàng đợi tin nhắn offline, lần polling sau sẽ lấy từ đó
+        store(batch, accepted);
+    }
+
+    /**
+     * Lưu các tin nhắn chưa có id: lô đã giao vào DB, lô không ai nhận vào hàng đợi tin nhắn offline.
+     * Tin nhắn đã có id (tin nhắn nhóm) đã được lưu trước khi fan-out, thành viên chưa nhận sẽ lấy lại theo con trỏ đọc của nhóm.
+     */
+    private void store(List<Message> messages, boolean delivered) {
+        List<Message> unsaved = new ArrayList<>(messages.size());
+        for (Message m : messages) {
+            // Thông báo xác nhận không được lưu: mốc đã nằm trong conversation_receipt
+            if (m.getId() == null && m.getReceipt() == null) {
+                m.setDelivered(delivered);
+                unsaved.add(m);
+            }
+        }
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        if (delivered) {
+            messageWriteService.saveAll(unsaved);
+            // Tin nhắn đã có trong lịch sử → mốc DELIVERED của hội thoại được đẩy lên phía server
+            deliveryTracker.delivered(unsaved, System.currentTimeMillis());
+        } else {
+            offlineMessageStore.storeAll(unsaved);
+        }
+    }
+
+    /**
+     * Đóng hộp thư nếu không còn thiết bị chờ quá thời gian cho phép.
+     * Tin nhắn còn giữ được lưu DB bởi lần drain ngay sau khi đóng.
+     * @return true nếu hộp thư đã được đóng
+     */
+    boolean closeIfIdle(long idleBefore) {
+        MessageWaiter[] current = waiters.get();
+        if (current == CLOSED || current.length > 0 || idleSince > idleBefore) {
+            return false;
+        }
+        // CAS thất bại nghĩa là vừa có thiết bị đăng ký → hộp thư vẫn còn hoạt động
+        if (!waiters.compareAndSet(current, CLOSED)) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+}
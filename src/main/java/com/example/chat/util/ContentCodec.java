@@ -0,0 +1,102 @@
+package com.example.chat.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Nén nội dung tin nhắn dài trước khi lưu vào cột TEXT.
+ * Định dạng lưu: MARKER + mã codec + dữ liệu
+ * - 'D': Deflate (mức nhanh nhất) rồi Base64, dùng cho nội dung từ COMPRESS_THRESHOLD byte trở lên và nén có lợi
+ * - 'R': nội dung gốc không nén, chỉ dùng khi nội dung gốc tình cờ bắt đầu bằng MARKER
+ * Nội dung không bắt đầu bằng MARKER được lưu nguyên văn, nên các dòng cũ trong DB vẫn đọc được.
+ */
+public final class ContentCodec {
+
+    public static final char MARKER = '\u0001';
+    private static final char DEFLATE = 'D';
+    private static final char RAW = 'R';
+
+    // Nội dung ngắn hơn ngưỡng này (tính theo byte UTF-8) không đáng để nén
+    public static final int COMPRESS_THRESHOLD = 512;
+
+    private ContentCodec() {
+    }
+
+    /**
+     * Chuyển nội dung sang dạng lưu DB
+     */
+    public static String encode(String content) {
+        if (content == null) {
+            return null;
+        }
+        if (content.length() * 3 >= COMPRESS_THRESHOLD) {
+            byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+            if (raw.length >= COMPRESS_THRESHOLD) {
+                String compressed = Base64.getEncoder().encodeToString(deflate(raw));
+                if (compressed.length() + 2 < raw.length) {
+                    return new StringBuilder(compressed.length() + 2)
+                            .append(MARKER).append(DEFLATE).append(compressed).toString();
+                }
+            }
+        }
+        if (!content.isEmpty() && content.charAt(0) == MARKER) {
+            return MARKER + String.valueOf(RAW) + content;
+        }
+        return content;
+    }
+
+    /**
+     * Chuyển dạng lưu DB về nội dung gốc
+     */
+    public static String decode(String stored) {
+        if (stored == null || stored.length() < 2 || stored.charAt(0) != MARKER) {
+            return stored;
+        }
+        return switch (stored.charAt(1)) {
+            case DEFLATE -> new String(inflate(Base64.getDecoder().decode(stored.substring(2))), StandardCharsets.UTF_8);
+            case RAW -> stored.substring(2);
+            default -> stored;
+        };
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed message content");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed message content", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.chat.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Ghi file đính kèm ra response, hỗ trợ cache phía client và tải tiếp bằng header Range:
+ * - If-None-Match khớp ETag (hoặc If-Modified-Since khi không có If-None-Match): 304 không có body
+ * - không có Range (hoặc If-Range không khớp): 200 với toàn bộ file
+ * - một khoảng: 206 + Content-Range
+ * - nhiều khoảng: 206 multipart/byteranges
+ * - khoảng không hợp lệ: 416 kèm Content-Range chứa độ dài file
+ * Nội dung được gửi bằng sendfile của Tomcat (kernel copy thẳng từ file ra socket) khi connector hỗ trợ,
+ * ngược lại bằng FileChannel.transferTo vào output stream của response.
+ * File đã lưu không bao giờ bị ghi đè nên ETag là ETag mạnh và response được đánh dấu immutable.
+ */
+@Component
+@Slf4j
+public class FileResponseWriter {
+
+    // Các attribute sendfile của Tomcat (NIO connector, không bật TLS)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Tên file nội dung trong kho theo mã băm
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    // Dùng sendfile khi connector hỗ trợ
+    @Value("${chat.download.sendfile:true}")
+    private boolean sendfile = true;
+
+    // Phần nhỏ hơn ngưỡng này ghi trực tiếp (sendfile không đáng với vài KB)
+    @Value("${chat.download.sendfile-min-kb:48}")
+    private int sendfileMinKb = 48;
+
+    // Thời gian client được dùng bản cache mà không hỏi lại server (mặc định 1 năm)
+    @Value("${chat.download.cache-max-age-seconds:31536000}")
+    private long cacheMaxAgeSeconds = 31536000;
+
+    /**
+     * Ghi file ra response theo các header điều kiện (If-None-Match, If-Modified-Since) và Range / If-Range của request
+     * @param file file cần gửi
+     * @param filename tên file trong link (xác định Content-Type)
+     * @param request request tải file
+     * @param response response (chưa được ghi gì)
+     * @throws IOException lỗi đọc file hoặc ghi response
+     */
+    public void write(Path file, String filename, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String contentType = MediaTypeFactory.getMediaType(filename)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+
+        String etag = etag(file, length, lastModified);
+        boolean head = "HEAD".equals(request.getMethod());
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        // private: file chỉ dành cho người có quyền, proxy dùng chung không được lưu
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + cacheMaxAgeSeconds + ", immutable");
+
+        if (notModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<long[]> ranges = requestedRanges(request, length, etag, lastModified);
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return;
+        }
+
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            if (!head) {
+                send(file, 0, length, request, response);
+            }
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long start = ranges.get(0)[0];
+            long end = ranges.get(0)[1];
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setContentType(contentType);
+            response.setContentLengthLong(end - start + 1);
+            if (!head) {
+                send(file, start, end - start + 1, request, response);
+            }
+            return;
+        }
+
+        // Nhiều khoảng: mỗi khoảng là một phần của multipart/byteranges, cùng mở file một lần
+        String boundary = UUID.randomUUID().toString();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength + closing.length);
+        if (head) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders.get(i));
+                transfer(channel, ranges.get(i)[0], ranges.get(i)[1] - ranges.get(i)[0] + 1, target);
+            }
+        }
+        out.write(closing);
+    }
+
+    /**
+     * Các khoảng byte được yêu cầu
+     * @return danh sách rỗng nếu gửi toàn bộ file, null nếu Range không thể đáp ứng
+     */
+    private List<long[]> requestedRanges(HttpServletRequest request, long length, String etag, long lastModified) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+        if (header == null || !ifRangeMatches(request, etag, lastModified)) {
+            return List.of();
+        }
+        try {
+            List<long[]> ranges = new ArrayList<>();
+            long total = 0;
+            for (HttpRange range : HttpRange.parseRanges(header)) {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start >= length || start > end) {
+                    return null;
+                }
+                ranges.add(new long[]{start, end});
+                total += end - start + 1;
+            }
+            // Các khoảng chồng lên nhau không được trả về nhiều hơn chính file
+            return ranges.isEmpty() || total > length ? null : ranges;
+        } catch (IllegalArgumentException e) {
+            log.debug("Unsatisfiable range '{}': {}", header, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * ETag mạnh: mã băm nội dung với file trong kho theo mã băm (tên file trên đĩa),
+     * thời điểm sửa + kích thước với file dạng cũ (tên {uuid}_{tên gốc}, cũng không bị ghi đè)
+     */
+    private static String etag(Path file, long length, long lastModified) {
+        String name = file.getFileName().toString();
+        if (SHA256.matcher(name).matches()) {
+            return "\"" + name + "\"";
+        }
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    }
+
+    /**
+     * Bản cache của client còn dùng được: If-None-Match chứa ETag (so sánh yếu) hoặc "*";
+     * If-Modified-Since chỉ được xét khi không có If-None-Match
+     */
+    private boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        Enumeration<String> ifNoneMatch = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.hasMoreElements()) {
+            while (ifNoneMatch.hasMoreElements()) {
+                for (String tag : ifNoneMatch.nextElement().split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        try {
+            long since = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            return since != -1 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring invalid If-Modified-Since: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * If-Range: chỉ trả về một phần khi file chưa thay đổi so với ETag (so sánh mạnh) hoặc mốc thời gian client gửi
+     */
+    private boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // ETag yếu không bao giờ khớp với If-Range
+            return ifRange.equals(etag);
+        }
+        try {
+            long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            // Không phải ngày hợp lệ → gửi lại toàn bộ file
+            return false;
+        }
+    }
+
+    /**
+     * Gửi một khoảng liên tục của file: giao cho sendfile của Tomcat nếu được, ngược lại transferTo vào response
+     */
+    private void send(Path file, long position, long count, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if (sendfile && count >= sendfileMinKb * 1024L && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // Tomcat ghi file sau khi request xử lý xong, bằng FileChannel.transferTo thẳng ra socket
+            request.setAttribute(SENDFILE_FILENAME, file.toRealPath().toString());
+            request.setAttribute(SENDFILE_START, position);
+            request.setAttribute(SENDFILE_END, position + count);
+            log.debug("Serving {} byte(s) of '{}' with sendfile", count, file);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(channel, position, count, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                throw new IOException("File was truncated while it was being sent");
+            }
+            position += n;
+        }
+    }
+}
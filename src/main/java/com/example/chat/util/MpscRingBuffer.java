@@ -0,0 +1,108 @@
+package com.example.chat.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hàng đợi vòng có giới hạn, nhiều producer - một consumer, không dùng khoá.
+ * - offer(): an toàn khi gọi đồng thời từ nhiều thread, không cấp phát bộ nhớ.
+ * - poll()/drainTo(): chỉ được gọi bởi một consumer tại một thời điểm
+ *   (người gọi phải tự đảm bảo, ví dụ bằng bộ đếm work-in-progress).
+ * Mỗi ô có một số thứ tự (sequence) cho biết ô đang trống hay đã có dữ liệu ở vòng hiện tại.
+ */
+public final class MpscRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+
+    // Chỉ consumer đọc/ghi; happens-before giữa các consumer kế tiếp do người gọi đảm bảo
+    private long head;
+
+    /**
+     * @param capacity dung lượng tối thiểu, được làm tròn lên luỹ thừa của 2
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Thêm phần tử vào cuối hàng đợi
+     * @return false nếu hàng đợi đầy
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, element);
+                    // Công bố phần tử cho consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            // diff > 0: producer khác vừa lấy vị trí này → thử lại
+        }
+    }
+
+    /**
+     * Lấy phần tử đầu hàng đợi (chỉ consumer)
+     * @return null nếu hàng đợi rỗng hoặc producer chưa công bố xong phần tử đầu
+     */
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = slots.get(index);
+        slots.lazySet(index, null);
+        // Trả ô lại cho producer ở vòng tiếp theo
+        sequences.set(index, head + mask + 1);
+        head++;
+        return element;
+    }
+
+    /**
+     * Chuyển toàn bộ phần tử đang có sang collection (chỉ consumer)
+     * @return số phần tử đã chuyển
+     */
+    public int drainTo(Collection<? super E> target) {
+        int count = 0;
+        E element;
+        while ((element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Hàng đợi có đang rỗng không (chỉ consumer, kết quả chính xác tại thời điểm gọi)
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
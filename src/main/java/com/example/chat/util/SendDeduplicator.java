@@ -0,0 +1,153 @@
+package com.example.chat.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cửa sổ chống gửi trùng theo client message id.
+ * Client (thường là mobile) gửi lại cùng một tin nhắn khi bị timeout: lần gửi lại trong cửa sổ
+ * nhận đúng kết quả của lần đầu (hoặc chờ lần đầu xử lý xong) mà không lưu DB, copy file hay chuyển tin nhắn lần nữa.
+ * Số key có giới hạn; khi đầy hoặc đã hết cửa sổ thì chỉ còn unique constraint (sender, client_message_id) trong DB chặn trùng.
+ */
+@Component
+@Slf4j
+public class SendDeduplicator {
+
+    public static final int MAX_ID_LENGTH = 64;
+
+    // Thời gian giữ kết quả của một lần gửi
+    @Value("${chat.dedup.window-ms:600000}")
+    private long windowMs = 600000;
+
+    // Số key tối đa giữ trong bộ nhớ
+    @Value("${chat.dedup.max-entries:100000}")
+    private int maxEntries = 100000;
+
+    // Thời gian tối đa lần gửi lại chờ lần gửi đầu tiên đang xử lý
+    @Value("${chat.dedup.wait-ms:5000}")
+    private long waitMs = 5000;
+
+    /**
+     * Một thao tác gửi tin nhắn (có thể ném checked exception, ví dụ lỗi xử lý file)
+     */
+    @FunctionalInterface
+    public interface SendAction<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Lần gửi đầu tiên với cùng client message id vẫn chưa xử lý xong sau thời gian chờ
+     */
+    public static class InProgressException extends IllegalStateException {
+        public InProgressException(String clientMessageId) {
+            super("Message " + clientMessageId + " is still being processed");
+        }
+    }
+
+    /**
+     * Kết quả (hoặc lần xử lý đang chạy) của một lần gửi và thời điểm hết hạn
+     */
+    private record Entry(CompletableFuture<Object> result, long expiresAt) {
+    }
+
+    /**
+     * Key: người gửi + client message id
+     * Value: kết quả của lần gửi đầu tiên
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Thực hiện thao tác gửi một lần cho mỗi (sender, clientMessageId) trong cửa sổ
+     * @param sender người gửi đã xác thực
+     * @param clientMessageId id do client sinh (null: không chống trùng)
+     * @param action thao tác gửi
+     * @return kết quả của lần gửi đầu tiên
+     * @throws InProgressException nếu lần gửi đầu tiên vẫn chưa xử lý xong sau thời gian chờ
+     */
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T execute(String sender, String clientMessageId, SendAction<T, E> action) throws E {
+        if (clientMessageId == null) {
+            return action.run();
+        }
+        if (clientMessageId.isBlank() || clientMessageId.length() > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("clientMessageId must be 1-" + MAX_ID_LENGTH + " characters");
+        }
+
+        String key = sender + '\u0000' + clientMessageId;
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry existing = entries.get(key);
+            if (existing != null && existing.expiresAt() > now) {
+                Object result = await(existing, clientMessageId);
+                if (result != null) {
+                    log.info("Duplicate send '{}' from '{}' answered from dedup window", clientMessageId, sender);
+                    return (T) result;
+                }
+                // Lần gửi đầu tiên lỗi và đã bị gỡ khỏi cửa sổ → thử lại từ đầu
+                continue;
+            }
+            if (existing == null && entries.size() >= maxEntries) {
+                log.warn("Dedup window full ({} entries), relying on the unique constraint for '{}'", maxEntries, clientMessageId);
+                return action.run();
+            }
+
+            Entry mine = new Entry(new CompletableFuture<>(), now + windowMs);
+            boolean claimed = existing == null
+                    ? entries.putIfAbsent(key, mine) == null
+                    : entries.replace(key, existing, mine);
+            if (!claimed) {
+                continue;
+            }
+            try {
+                T result = action.run();
+                mine.result().complete(result);
+                return result;
+            } catch (Exception e) {
+                // Lỗi không được ghi nhớ: lần gửi lại sẽ được xử lý lại
+                entries.remove(key, mine);
+                mine.result().complete(null);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Chờ kết quả của lần gửi đầu tiên
+     * @return kết quả, hoặc null nếu lần gửi đó lỗi
+     */
+    private Object await(Entry entry, String clientMessageId) {
+        try {
+            return entry.result().get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for message " + clientMessageId, e);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            throw new InProgressException(clientMessageId);
+        }
+    }
+
+    /**
+     * Dọn các key đã hết cửa sổ
+     */
+    @Scheduled(fixedDelayString = "${chat.dedup.sweep-interval-ms:30000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        int before = entries.size();
+        entries.values().removeIf(entry -> entry.expiresAt() <= now && entry.result().isDone());
+        int evicted = before - entries.size();
+        if (evicted > 0) {
+            log.debug("Evicted {} expired dedup entries", evicted);
+        }
+    }
+}
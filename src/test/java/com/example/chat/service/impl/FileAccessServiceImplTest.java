@@ -0,0 +1,116 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ArchivedMessage;
+import com.example.chat.entity.Message;
+import com.example.chat.repository.ArchivedMessageRepository;
+import com.example.chat.repository.FileAccessRepository;
+import com.example.chat.repository.FileBlobRepository;
+import com.example.chat.repository.MessageRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class FileAccessServiceImplTest {
+
+    private FileAccessRepository fileAccessRepository;
+    private MessageRepository messageRepository;
+    private ArchivedMessageRepository archivedMessageRepository;
+    private JdbcTemplate jdbcTemplate;
+    private FileAccessServiceImpl fileAccessService;
+
+    @BeforeEach
+    void setUp() {
+        fileAccessRepository = mock(FileAccessRepository.class);
+        messageRepository = mock(MessageRepository.class);
+        archivedMessageRepository = mock(ArchivedMessageRepository.class);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        FileStorageServiceImpl fileStorageService = new FileStorageServiceImpl(mock(FileBlobRepository.class));
+        fileAccessService = new FileAccessServiceImpl(fileAccessRepository, messageRepository, archivedMessageRepository,
+                fileStorageService, jdbcTemplate);
+        ReflectionTestUtils.setField(fileAccessService, "cacheSize", 2);
+    }
+
+    // ✅ Test cấp quyền cho người gửi và người nhận: ghi DB và kiểm tra sau đó không cần truy vấn
+    @Test
+    void testGrantIsCached() {
+        fileAccessService.grant("f1", "alice", "bob");
+
+        assertTrue(fileAccessService.canAccess("alice", "f1"));
+        assertTrue(fileAccessService.canAccess("bob", "f1"));
+        verify(fileAccessRepository).grant("f1", "alice");
+        verify(fileAccessRepository).grant("f1", "bob");
+        verify(fileAccessRepository, never()).existsByFileIdAndUsername(anyString(), anyString());
+    }
+
+    // ✅ Test từ chối không được cache: quyền cấp sau đó có hiệu lực ngay
+    @Test
+    void testDenialIsNotCached() {
+        when(fileAccessRepository.existsByFileIdAndUsername("f1", "carol")).thenReturn(false, true);
+
+        assertFalse(fileAccessService.canAccess("carol", "f1"));
+        assertTrue(fileAccessService.canAccess("carol", "f1"));
+        assertTrue(fileAccessService.canAccess("carol", "f1"));
+
+        verify(fileAccessRepository, times(2)).existsByFileIdAndUsername("f1", "carol");
+    }
+
+    // ✅ Test cache có giới hạn: mục ít dùng nhất bị bỏ, lần kiểm tra sau tra cứu lại DB
+    @Test
+    void testCacheEvictsLeastRecentlyUsed() {
+        when(fileAccessRepository.existsByFileIdAndUsername(anyString(), eq("alice"))).thenReturn(true);
+
+        fileAccessService.canAccess("alice", "f1");
+        fileAccessService.canAccess("alice", "f2");
+        fileAccessService.canAccess("alice", "f1");
+        fileAccessService.canAccess("alice", "f3"); // Bỏ f2
+        fileAccessService.canAccess("alice", "f1");
+        fileAccessService.canAccess("alice", "f2");
+
+        verify(fileAccessRepository, times(1)).existsByFileIdAndUsername("f1", "alice");
+        verify(fileAccessRepository, times(2)).existsByFileIdAndUsername("f2", "alice");
+    }
+
+    // ✅ Test backfill: người gửi và người nhận của mọi tin nhắn file (kể cả đã lưu trữ) được ghi quyền theo khoá nội dung
+    @Test
+    @SuppressWarnings("unchecked")
+    void testBackfillGrantsSendersAndReceivers() throws Exception {
+        String sha256 = "ab".repeat(32);
+        String legacy = "123e4567-e89b-12d3-a456-426614174000_old.txt";
+        LocalDateTime now = LocalDateTime.now();
+        when(messageRepository.findByIsFileTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any(Limit.class))).thenReturn(List.of(
+                new Message(5L, "alice", "bob", "/api/file/" + sha256 + "_a.txt", true, now, true)));
+        when(archivedMessageRepository.findByIsFileTrueAndIdGreaterThanOrderByIdAsc(eq(0L), any(Limit.class))).thenReturn(List.of(
+                new ArchivedMessage(2L, "carol", "alice", "/api/file/" + legacy, true, now, true, null, null)));
+
+        assertEquals(2, fileAccessService.backfill());
+
+        ArgumentCaptor<Collection<String[]>> rows = ArgumentCaptor.forClass(Collection.class);
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<String[]>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        verify(jdbcTemplate, times(2)).batchUpdate(eq(FileAccessServiceImpl.GRANT_SQL), rows.capture(), anyInt(), setter.capture());
+        List<String> granted = new ArrayList<>();
+        for (Collection<String[]> batch : rows.getAllValues()) {
+            for (String[] row : batch) {
+                PreparedStatement ps = mock(PreparedStatement.class);
+                setter.getValue().setValues(ps, row);
+                verify(ps).setString(1, row[0]);
+                granted.add(row[0] + "/" + row[1]);
+            }
+        }
+        assertEquals(List.of(sha256 + "/alice", sha256 + "/bob", legacy + "/carol", legacy + "/alice"), granted);
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.repository.FileBlobRepository;
+import com.example.chat.service.FileStorageService.StoredFile;
+import com.example.chat.service.FileStorageService.TooLargeException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class FileStorageServiceImplTest {
+
+    @TempDir
+    Path dir;
+
+    private FileBlobRepository fileBlobRepository;
+    private FileStorageServiceImpl storage;
+
+    @BeforeEach
+    void setUp() {
+        fileBlobRepository = mock(FileBlobRepository.class);
+        storage = new FileStorageServiceImpl(fileBlobRepository);
+        ReflectionTestUtils.setField(storage, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(storage, "maxSizeMb", 1L);
+        ReflectionTestUtils.setField(storage, "bufferSizeKb", 4);
+    }
+
+    // ✅ Test lưu file nhiều đoạn: nội dung, kích thước và SHA-256 khớp với dữ liệu gửi lên
+    @Test
+    void testStoreComputesSizeAndHash() throws Exception {
+        byte[] content = new byte[100_000];
+        new Random(1).nextBytes(content);
+
+        StoredFile stored = storage.store(new ByteArrayInputStream(content), "photo.jpg", -1);
+
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        assertEquals(sha256 + "_photo.jpg", stored.name());
+        assertEquals(content.length, stored.size());
+        assertEquals(sha256, stored.sha256());
+        assertEquals(dir.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256),
+                storage.resolve(stored.name()));
+        assertArrayEquals(content, Files.readAllBytes(storage.resolve(stored.name())));
+        verify(fileBlobRepository).insertOrAddReference(eq(sha256), eq((long) content.length), any());
+    }
+
+    // ✅ Test tải lên cùng nội dung hai lần: nội dung chỉ lưu một file, lần sau chỉ tăng số tham chiếu
+    @Test
+    void testStoreSameContentTwiceKeepsOneCopy() throws IOException {
+        StoredFile first = storage.store(new ByteArrayInputStream("same".getBytes()), "a.txt", -1);
+        StoredFile second = storage.store(new ByteArrayInputStream("same".getBytes()), "b.txt", -1);
+
+        assertEquals(first.sha256(), second.sha256());
+        assertTrue(second.name().endsWith("_b.txt"));
+        assertEquals(storage.resolve(first.name()), storage.resolve(second.name()));
+        verify(fileBlobRepository, times(2)).insertOrAddReference(eq(first.sha256()), eq(4L), any());
+        try (var files = Files.walk(dir)) {
+            assertEquals(1, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    // ✅ Test tham chiếu nội dung đã lưu theo mã băm mà không tải lên lại
+    @Test
+    void testReferenceExistingContent() throws IOException {
+        StoredFile stored = storage.store(new ByteArrayInputStream("forward me".getBytes()), "a.txt", -1);
+        when(fileBlobRepository.addReference(stored.sha256())).thenReturn(1);
+
+        StoredFile reused = storage.reference(stored.sha256(), "fwd.txt").orElseThrow();
+
+        assertEquals(stored.sha256() + "_fwd.txt", reused.name());
+        assertEquals(stored.size(), reused.size());
+        assertTrue(storage.reference("0".repeat(64), "x.txt").isEmpty());
+        assertTrue(storage.reference("not-a-hash", "x.txt").isEmpty());
+    }
+
+    // ✅ Test bỏ tham chiếu cuối cùng: nội dung bị xoá khỏi đĩa
+    @Test
+    void testReleaseDeletesUnreferencedContent() throws IOException {
+        StoredFile stored = storage.store(new ByteArrayInputStream("temp".getBytes()), "a.txt", -1);
+        when(fileBlobRepository.deleteIfUnreferenced(stored.sha256())).thenReturn(1);
+
+        storage.release(stored.name());
+
+        verify(fileBlobRepository).removeReference(stored.sha256());
+        assertFalse(Files.exists(storage.resolve(stored.name())));
+    }
+
+    // ✅ Test tên file dạng cũ {uuid}_{tên gốc}: đọc ở thư mục gốc khi chưa chuyển, ở thư mục chia sau khi chuyển
+    @Test
+    void testMigrateLayoutMovesFlatFiles() throws IOException {
+        String legacy = "0a1b2c3d-0000-4000-8000-000000000000_test.txt";
+        Path flat = Files.writeString(dir.resolve(legacy), "old");
+        Files.writeString(dir.resolve("readme.txt"), "not sharded");
+        assertEquals(flat, storage.resolve(legacy));
+
+        assertEquals(1, storage.migrateLayout());
+
+        Path sharded = dir.resolve("0a").resolve("1b").resolve(legacy);
+        assertEquals(sharded, storage.resolve(legacy));
+        assertEquals("old", Files.readString(sharded));
+        assertFalse(Files.exists(flat));
+        assertEquals(dir.resolve("readme.txt"), storage.resolve("readme.txt"));
+        assertEquals(0, storage.migrateLayout()); // Chạy lại không ảnh hưởng
+    }
+
+    // ✅ Test nội dung đã lưu ở thư mục gốc (trước khi chia thư mục) không bị lưu lần thứ hai
+    @Test
+    void testStoreFindsUnmigratedContent() throws Exception {
+        byte[] content = "before sharding".getBytes();
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        Files.write(dir.resolve(sha256), content);
+
+        StoredFile stored = storage.store(new ByteArrayInputStream(content), "a.txt", -1);
+
+        assertEquals(dir.resolve(sha256), storage.resolve(stored.name()));
+        assertFalse(Files.exists(dir.resolve(sha256.substring(0, 2))));
+    }
+
+    // ✅ Test chế độ fsync async / sync: file vẫn được lưu đúng, thread nền fsync hết hàng đợi khi dừng
+    @Test
+    void testStoreWithFsyncModes() throws Exception {
+        ReflectionTestUtils.setField(storage, "fsync", "async");
+        storage.start();
+        StoredFile async = storage.store(new ByteArrayInputStream("async".getBytes()), "a.txt", -1);
+        storage.stop();
+
+        ReflectionTestUtils.setField(storage, "fsync", "sync");
+        StoredFile sync = storage.store(new ByteArrayInputStream("sync".getBytes()), "b.txt", -1);
+
+        assertEquals("async", Files.readString(storage.resolve(async.name())));
+        assertEquals("sync", Files.readString(storage.resolve(sync.name())));
+    }
+
+    private long countTmpFiles() throws IOException {
+        try (var files = Files.list(dir.resolve(".tmp"))) {
+            return files.count();
+        }
+    }
+
+    // ✅ Test vượt quá dung lượng trong lúc đọc (không khai báo Content-Length): phần đã ghi bị xoá
+    @Test
+    void testStoreTooLargeDeletesPartialFile() throws IOException {
+        InputStream body = new ByteArrayInputStream(new byte[1024 * 1024 + 1]);
+
+        assertThrows(TooLargeException.class, () -> storage.store(body, "big.bin", -1));
+
+        assertEquals(0, countTmpFiles());
+        verifyNoInteractions(fileBlobRepository);
+    }
+
+    // ✅ Test Content-Length vượt quá giới hạn: từ chối trước khi đọc body
+    @Test
+    void testStoreRejectsDeclaredSizeWithoutReading() {
+        ByteArrayInputStream body = new ByteArrayInputStream(new byte[10]);
+
+        assertThrows(TooLargeException.class, () -> storage.store(body, "big.bin", 2L * 1024 * 1024));
+
+        assertEquals(10, body.available());
+    }
+
+    // ✅ Test file tạm cấp phát trước, ghi theo vị trí rồi đưa vào kho: đổi tên, không còn file tạm
+    @Test
+    void testAdoptPreallocatedFile() throws Exception {
+        Path tmp = storage.createTempFile(6);
+        assertEquals(6, Files.size(tmp));
+        try (var channel = java.nio.channels.FileChannel.open(tmp, java.nio.file.StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.wrap("def".getBytes()), 3);
+            channel.write(java.nio.ByteBuffer.wrap("abc".getBytes()), 0);
+        }
+
+        StoredFile stored = storage.adopt(tmp, "letters.txt");
+
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest("abcdef".getBytes()));
+        assertEquals(sha256 + "_letters.txt", stored.name());
+        assertEquals(6, stored.size());
+        assertEquals("abcdef", Files.readString(storage.resolve(stored.name())));
+        assertEquals(0, countTmpFiles());
+        verify(fileBlobRepository).insertOrAddReference(eq(sha256), eq(6L), any());
+    }
+
+    // ✅ Test tên file chứa đường dẫn: chỉ giữ phần tên, file nằm trong thư mục lưu trữ
+    @Test
+    void testStoreStripsPathFromFilename() throws IOException {
+        StoredFile stored = storage.store(new ByteArrayInputStream("x".getBytes()), "../../etc/passwd", 1);
+
+        assertEquals(stored.sha256() + "_passwd", stored.name());
+        assertTrue(Files.exists(storage.resolve(stored.name())));
+        assertTrue(storage.resolve(stored.name()).startsWith(dir));
+    }
+}
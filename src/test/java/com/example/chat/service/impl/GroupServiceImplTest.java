@@ -0,0 +1,198 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ChatGroup;
+import com.example.chat.entity.GroupMember;
+import com.example.chat.entity.Message;
+import com.example.chat.entity.User;
+import com.example.chat.repository.ChatGroupRepository;
+import com.example.chat.repository.GroupMemberRepository;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.util.JwtUtil;
+import com.example.chat.util.SendDeduplicator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.data.domain.Limit;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class GroupServiceImplTest {
+
+    @Mock
+    private JwtUtil jwtUtil;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private ChatGroupRepository chatGroupRepository;
+
+    @Mock
+    private GroupMemberRepository groupMemberRepository;
+
+    @Mock
+    private MessageRepository messageRepository;
+
+    @Mock
+    private DeliveryBus deliveryBus;
+
+    private GroupServiceImpl groupService;
+
+    private final String TOKEN = "Bearer token";
+    private final String USER_AGENT = "Mozilla/5.0";
+    private final Long GROUP_ID = 7L;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        groupService = new GroupServiceImpl(jwtUtil, userRepository, chatGroupRepository, groupMemberRepository,
+                messageRepository, deliveryBus, new ObjectMapper(), new SendDeduplicator());
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn("alice");
+    }
+
+    private GroupMember member(String username, long cursor) {
+        return GroupMember.builder().groupId(GROUP_ID).username(username).lastReadMessageId(cursor).build();
+    }
+
+    // ✅ Test tạo nhóm với bạn bè → người tạo cũng là thành viên
+    @Test
+    @SuppressWarnings("unchecked")
+    void testCreateGroupWithFriends() throws IOException {
+        when(userRepository.findById("alice")).thenReturn(Optional.of(
+                User.builder().username("alice").friendsJson("[\"bob\",\"carol\"]").build()));
+        when(chatGroupRepository.save(any(ChatGroup.class))).thenAnswer(invocation -> {
+            ChatGroup group = invocation.getArgument(0);
+            group.setId(GROUP_ID);
+            return group;
+        });
+
+        Map<String, Object> result = groupService.createGroup(TOKEN, USER_AGENT, "Team", List.of("bob", "carol", "alice"));
+
+        assertEquals(GROUP_ID, result.get("id"));
+        assertEquals(List.of("alice", "bob", "carol"), result.get("members"));
+        ArgumentCaptor<List<GroupMember>> rows = ArgumentCaptor.forClass(List.class);
+        verify(groupMemberRepository).saveAll(rows.capture());
+        assertEquals(3, rows.getValue().size());
+    }
+
+    // ✅ Test không thể thêm người không phải bạn bè vào nhóm
+    @Test
+    void testCreateGroupRejectsNonFriends() {
+        when(userRepository.findById("alice")).thenReturn(Optional.of(
+                User.builder().username("alice").friendsJson("[\"bob\"]").build()));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> groupService.createGroup(TOKEN, USER_AGENT, "Team", List.of("bob", "mallory")));
+        verify(chatGroupRepository, never()).save(any());
+    }
+
+    // ✅ Test gửi tin nhắn nhóm: lưu đúng một bản ghi và fan-out đến các thành viên còn lại
+    @Test
+    void testSendGroupMessageStoresOnceAndFansOut() {
+        when(groupMemberRepository.findByGroupId(GROUP_ID))
+                .thenReturn(List.of(member("alice", 0), member("bob", 0), member("carol", 0)));
+        when(messageRepository.save(any(Message.class))).thenAnswer(invocation -> {
+            Message message = invocation.getArgument(0);
+            message.setId(100L);
+            return message;
+        });
+
+        Map<String, Object> result = groupService.sendGroupMessage(TOKEN, USER_AGENT, GROUP_ID, "Hello team", null);
+
+        assertEquals(1, result.get("status"));
+        assertEquals(100L, result.get("id"));
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository, times(1)).save(saved.capture());
+        assertEquals(GROUP_ID, saved.getValue().getGroupId());
+        assertNull(saved.getValue().getReceiver());
+        verify(deliveryBus).deliverAll(List.of("bob", "carol"), saved.getValue());
+    }
+
+    // ✅ Test gửi lại tin nhắn nhóm với cùng clientMessageId → không lưu và fan-out lần nữa, trả về cùng id
+    @Test
+    void testGroupRetryWithSameClientMessageId() {
+        when(groupMemberRepository.findByGroupId(GROUP_ID)).thenReturn(List.of(member("alice", 0), member("bob", 0)));
+        when(messageRepository.save(any(Message.class))).thenAnswer(invocation -> {
+            Message message = invocation.getArgument(0);
+            message.setId(100L);
+            return message;
+        });
+
+        Map<String, Object> first = groupService.sendGroupMessage(TOKEN, USER_AGENT, GROUP_ID, "Hello team", "c-1");
+        Map<String, Object> retry = groupService.sendGroupMessage(TOKEN, USER_AGENT, GROUP_ID, "Hello team", "c-1");
+
+        assertEquals(first, retry);
+        verify(messageRepository, times(1)).save(any(Message.class));
+        verify(deliveryBus, times(1)).deliverAll(anyCollection(), any(Message.class));
+    }
+
+    // ✅ Test người ngoài nhóm không gửi được tin nhắn nhóm
+    @Test
+    void testSendGroupMessageRequiresMembership() {
+        when(groupMemberRepository.findByGroupId(GROUP_ID)).thenReturn(List.of(member("bob", 0)));
+
+        assertThrows(SecurityException.class,
+                () -> groupService.sendGroupMessage(TOKEN, USER_AGENT, GROUP_ID, "Hello", null));
+        verify(messageRepository, never()).save(any());
+        verifyNoInteractions(deliveryBus);
+    }
+
+    // ✅ Test lấy tin nhắn nhóm từ con trỏ đọc đã lưu và tiến con trỏ
+    @Test
+    void testGetGroupMessagesFromStoredCursor() {
+        when(groupMemberRepository.findByGroupIdAndUsername(GROUP_ID, "alice")).thenReturn(Optional.of(member("alice", 10)));
+        Message m11 = new Message(11L, "bob", null, "a", false, LocalDateTime.now().minusMinutes(1), false, GROUP_ID);
+        Message m12 = new Message(12L, "carol", null, "b", false, LocalDateTime.now().minusMinutes(1), false, GROUP_ID);
+        when(messageRepository.findByGroupIdAndIdGreaterThanOrderByIdAsc(GROUP_ID, 10L, Limit.of(50)))
+                .thenReturn(List.of(m11, m12));
+
+        Map<String, Object> result = groupService.getGroupMessages(TOKEN, USER_AGENT, GROUP_ID, null, 50);
+
+        assertEquals(2, ((List<?>) result.get("messages")).size());
+        assertEquals(12L, result.get("nextCursor"));
+        assertEquals(false, result.get("hasMore"));
+        verify(groupMemberRepository).advanceCursor(GROUP_ID, "alice", 12L);
+    }
+
+    // ✅ Test id nhỏ commit sau id lớn: con trỏ đọc dừng trước tin nhắn còn trong khoảng an toàn, không bỏ sót id nhỏ
+    @Test
+    void testGroupCursorHoldsBackRecentMessagesCommittedOutOfOrder() {
+        LocalDateTime now = LocalDateTime.now();
+        when(groupMemberRepository.findByGroupIdAndUsername(GROUP_ID, "alice")).thenReturn(Optional.of(member("alice", 10)));
+        Message m11 = new Message(11L, "bob", null, "Old", false, now.minusMinutes(1), false, GROUP_ID);
+        Message m12 = new Message(12L, "carol", null, "Late commit", false, now, false, GROUP_ID);
+        Message m13 = new Message(13L, "bob", null, "Early commit", false, now, false, GROUP_ID);
+        when(messageRepository.findByGroupIdAndIdGreaterThanOrderByIdAsc(GROUP_ID, 10L, Limit.of(2)))
+                .thenReturn(List.of(m11, m13));
+
+        Map<String, Object> first = groupService.getGroupMessages(TOKEN, USER_AGENT, GROUP_ID, null, 2);
+
+        assertEquals(1, ((List<?>) first.get("messages")).size());
+        assertEquals(11L, first.get("nextCursor"));
+        assertEquals(true, first.get("hasMore"));
+        verify(groupMemberRepository).advanceCursor(GROUP_ID, "alice", 11L);
+
+        // Sau khi id 12 commit và ra khỏi khoảng an toàn, lần lấy sau trả về cả hai theo thứ tự
+        m12.setTimestamp(now.minusSeconds(5));
+        m13.setTimestamp(now.minusSeconds(5));
+        when(messageRepository.findByGroupIdAndIdGreaterThanOrderByIdAsc(GROUP_ID, 11L, Limit.of(2)))
+                .thenReturn(List.of(m12, m13));
+
+        Map<String, Object> second = groupService.getGroupMessages(TOKEN, USER_AGENT, GROUP_ID, 11L, 2);
+
+        List<?> messages = (List<?>) second.get("messages");
+        assertEquals(2, messages.size());
+        assertEquals(12L, ((Map<?, ?>) messages.get(0)).get("id"));
+        assertEquals(13L, second.get("nextCursor"));
+        verify(groupMemberRepository).advanceCursor(GROUP_ID, "alice", 13L);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.entity.UserPresence;
+import com.example.chat.repository.UserPresenceRepository;
+import com.example.chat.service.OnlineUserService;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestClient;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class HttpDeliveryBusTest {
+
+    @Mock
+    private OnlineUserService onlineUserService;
+
+    @Mock
+    private UserPresenceRepository userPresenceRepository;
+
+    private HttpDeliveryBus deliveryBus;
+    private MockRestServiceServer peers;
+
+    private final String RECEIVER = "bob";
+    private final String SECRET = "bus-secret";
+    private final String NODE_B = "http://node-b:8080";
+    private final String NODE_C = "http://node-c:8080";
+    private final String SELF = "http://node-a:8080";
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        deliveryBus = new HttpDeliveryBus(onlineUserService, userPresenceRepository, RestClient.builder());
+        ReflectionTestUtils.setField(deliveryBus, "peerList", SELF + ", " + NODE_B + ", " + NODE_C + "/");
+        ReflectionTestUtils.setField(deliveryBus, "selfUrl", SELF + "/");
+        ReflectionTestUtils.setField(deliveryBus, "secret", SECRET);
+        deliveryBus.init();
+
+        // Thay client thật bằng client gắn với server giả lập các node khác
+        RestClient.Builder builder = RestClient.builder();
+        peers = MockRestServiceServer.bindTo(builder).build();
+        ReflectionTestUtils.setField(deliveryBus, "restClient", builder.build());
+    }
+
+    private Message message(String content) {
+        return new Message(null, "alice", RECEIVER, content, false, LocalDateTime.now(), false);
+    }
+
+    private void present(String username, String node) {
+        when(userPresenceRepository.findById(username)).thenReturn(Optional.of(
+                UserPresence.builder().username(username).node(node).build()));
+    }
+
+    private void expectPeer(String peer, DeliveryStatus status) {
+        peers.expect(requestTo(peer + "/internal/bus/deliver"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(header("X-Bus-Secret", SECRET))
+                .andRespond(withSuccess("{\"status\":\"" + status + "\"}", MediaType.APPLICATION_JSON));
+    }
+
+    // ✅ Test người nhận có hộp thư ở node này → không tra presence, không gọi sang node khác
+    @Test
+    void testLocalMailboxTakesPriority() {
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.ACCEPTED);
+
+        assertEquals(DeliveryStatus.ACCEPTED, deliveryBus.deliver(RECEIVER, message("Hello")));
+        verify(userPresenceRepository, never()).findById(any());
+        peers.verify();
+    }
+
+    // ✅ Test người nhận ở node khác → chỉ một lần chuyển đến node giữ hộp thư, lần sau dùng route cache
+    @Test
+    void testForwardsOnlyToNodeHoldingMailbox() {
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+        present(RECEIVER, NODE_C);
+        expectPeer(NODE_C, DeliveryStatus.ACCEPTED);
+        expectPeer(NODE_C, DeliveryStatus.ACCEPTED);
+
+        assertEquals(DeliveryStatus.ACCEPTED, deliveryBus.deliver(RECEIVER, message("1")));
+        assertEquals(DeliveryStatus.ACCEPTED, deliveryBus.deliver(RECEIVER, message("2")));
+        verify(userPresenceRepository, times(1)).findById(RECEIVER);
+        peers.verify();
+    }
+
+    // ✅ Test không có presence, hoặc presence trỏ đến node không thuộc cấu hình → OFFLINE, không gọi node nào
+    @Test
+    void testNoPresenceIsOffline() {
+        when(onlineUserService.deliver(any(), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+        when(userPresenceRepository.findById(RECEIVER)).thenReturn(Optional.empty());
+        present("carol", "http://retired-node:8080");
+
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver(RECEIVER, message("Hello")));
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver("carol", message("Hello")));
+        peers.verify();
+    }
+
+    // ✅ Test hộp thư đã rời node được trỏ tới → OFFLINE và tin nhắn sau tra lại presence
+    @Test
+    void testStaleRouteIsLookedUpAgain() {
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+        present(RECEIVER, NODE_B);
+        expectPeer(NODE_B, DeliveryStatus.OFFLINE);
+        expectPeer(NODE_B, DeliveryStatus.ACCEPTED);
+
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver(RECEIVER, message("1")));
+        assertEquals(DeliveryStatus.ACCEPTED, deliveryBus.deliver(RECEIVER, message("2")));
+        verify(userPresenceRepository, times(2)).findById(RECEIVER);
+        peers.verify();
+    }
+
+    // ✅ Test node lỗi → OFFLINE, và bị bỏ qua (không gọi lại) trong khoảng backoff
+    @Test
+    void testFailedPeerIsSkippedDuringBackoff() {
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+        present(RECEIVER, NODE_B);
+        peers.expect(requestTo(NODE_B + "/internal/bus/deliver")).andRespond(withServerError());
+
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver(RECEIVER, message("1")));
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver(RECEIVER, message("2")));
+        peers.verify();
+
+        // Hết backoff → thử lại node đó
+        ReflectionTestUtils.setField(deliveryBus, "peerBackoffMs", 0L);
+        peers.reset();
+        peers.expect(requestTo(NODE_B + "/internal/bus/deliver")).andRespond(withServerError());
+        assertEquals(DeliveryStatus.OFFLINE, deliveryBus.deliver(RECEIVER, message("3")));
+        peers.verify();
+    }
+
+    // ✅ Test hộp thư tạo / dọn ở node này được ghi vào bảng presence; khởi động xoá presence cũ của node
+    @Test
+    void testMailboxPresence() {
+        verify(userPresenceRepository).deleteByNode(SELF);
+        verify(onlineUserService).setMailboxListener(deliveryBus);
+
+        deliveryBus.opened(RECEIVER);
+        deliveryBus.closed(RECEIVER);
+
+        verify(userPresenceRepository).publish(eq(RECEIVER), eq(SELF), any(LocalDateTime.class));
+        verify(userPresenceRepository).withdraw(RECEIVER, SELF);
+    }
+
+    // ✅ Test tin nhắn từ node khác chỉ được chuyển vào hộp thư của node này
+    @Test
+    void testAcceptRemoteDeliversLocally() {
+        Message remote = new Message(null, "alice", RECEIVER, "Hi", false, LocalDateTime.now(), true);
+        when(onlineUserService.deliver(RECEIVER, remote)).thenReturn(DeliveryStatus.ACCEPTED);
+
+        assertEquals(DeliveryStatus.ACCEPTED, deliveryBus.acceptRemote(remote));
+        assertFalse(remote.isDelivered());
+        peers.verify();
+    }
+
+    // ✅ Test fan-out tin nhắn nhóm: người nhận ở node khác được gom vào một request cho mỗi node giữ hộp thư
+    @Test
+    void testDeliverAllBatchesRemainingReceiversPerPeer() {
+        Message group = new Message(5L, "alice", null, "Hi team", false, LocalDateTime.now(), false, 9L);
+        when(onlineUserService.deliver(any(), eq(group))).thenReturn(DeliveryStatus.OFFLINE);
+        when(onlineUserService.deliver("bob", group)).thenReturn(DeliveryStatus.ACCEPTED);
+        when(userPresenceRepository.findAllById(List.of("carol", "dave", "erin", "frank"))).thenReturn(List.of(
+                UserPresence.builder().username("carol").node(NODE_B).build(),
+                UserPresence.builder().username("dave").node(NODE_C).build(),
+                UserPresence.builder().username("erin").node(NODE_B).build()));
+
+        peers.expect(requestTo(NODE_B + "/internal/bus/fanout"))
+                .andExpect(jsonPath("$.usernames.length()").value(2))
+                .andExpect(jsonPath("$.usernames[1]").value("erin"))
+                .andRespond(withSuccess("{\"accepted\":[\"carol\"]}", MediaType.APPLICATION_JSON));
+        peers.expect(requestTo(NODE_C + "/internal/bus/fanout"))
+                .andExpect(jsonPath("$.usernames[0]").value("dave"))
+                .andRespond(withSuccess("{\"accepted\":[]}", MediaType.APPLICATION_JSON));
+
+        deliveryBus.deliverAll(List.of("bob", "carol", "dave", "erin", "frank"), group);
+        peers.verify();
+    }
+
+    // ✅ Test node nhận fan-out chỉ chấp nhận tin nhắn đã lưu DB
+    @Test
+    void testAcceptFanoutRequiresStoredMessage() {
+        Message unsaved = new Message(null, "alice", null, "Hi", false, LocalDateTime.now(), false, 9L);
+        assertThrows(IllegalArgumentException.class,
+                () -> deliveryBus.acceptFanout(new HttpDeliveryBus.Fanout(List.of("bob"), unsaved)));
+
+        Message stored = new Message(5L, "alice", null, "Hi", false, LocalDateTime.now(), false, 9L);
+        when(onlineUserService.deliver("bob", stored)).thenReturn(DeliveryStatus.ACCEPTED);
+        when(onlineUserService.deliver("carol", stored)).thenReturn(DeliveryStatus.OFFLINE);
+        assertEquals(List.of("bob"), deliveryBus.acceptFanout(new HttpDeliveryBus.Fanout(List.of("bob", "carol"), stored)));
+    }
+
+    // ✅ Test kiểm tra secret giữa các node
+    @Test
+    void testSecretCheck() {
+        assertTrue(deliveryBus.isTrusted(SECRET));
+        assertFalse(deliveryBus.isTrusted("wrong"));
+        assertFalse(deliveryBus.isTrusted(null));
+    }
+
+    // ✅ Test chế độ http bắt buộc phải cấu hình secret và địa chỉ của node
+    @Test
+    void testInitRequiresSecretAndSelfUrl() {
+        HttpDeliveryBus unconfigured = new HttpDeliveryBus(onlineUserService, userPresenceRepository, RestClient.builder());
+        assertThrows(IllegalStateException.class, unconfigured::init);
+
+        ReflectionTestUtils.setField(unconfigured, "secret", SECRET);
+        assertThrows(IllegalStateException.class, unconfigured::init);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OfflineMessageStore.Pending;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class JournalOfflineMessageStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageWriteService messageWriteService;
+    private JournalOfflineMessageStore store;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        messageWriteService = mock(MessageWriteService.class);
+        store = new JournalOfflineMessageStore(messageWriteService);
+        ReflectionTestUtils.setField(store, "path", directory.toString());
+        ReflectionTestUtils.setField(store, "shards", 1);
+        ReflectionTestUtils.setField(store, "segmentSizeMb", 1);
+        store.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        store.stop();
+    }
+
+    private Message message(String content) {
+        return new Message(null, "alice", "bob", content, false, LocalDateTime.now(), false);
+    }
+
+    // ✅ Test ghi lịch sử thất bại: tin nhắn đã giao không được giao lại, chỉ ghi lại lịch sử theo chu kỳ
+    @Test
+    void testHistoryFailureRetriesWriteWithoutRedelivery() {
+        store.store(message("Hello"));
+        doThrow(new IllegalStateException("DB down")).doThrow(new IllegalStateException("DB down")).doNothing()
+                .when(messageWriteService).saveAll(anyList());
+
+        store.pending("bob").markDelivered();
+        assertTrue(store.pending("bob").isEmpty());
+
+        store.retryHistoryWrites();
+        store.retryHistoryWrites();
+        store.retryHistoryWrites();
+
+        verify(messageWriteService, times(3)).saveAll(anyList());
+        assertTrue(store.pending("bob").isEmpty());
+    }
+
+    // ✅ Test client gửi lại cùng clientMessageId khi tin nhắn trước còn chờ trong journal: người nhận chỉ nhận một lần
+    @Test
+    void testRetriedSendIsJournaledOnce() {
+        Message first = message("Hello");
+        first.setClientMessageId("c1");
+        Message retry = message("Hello");
+        retry.setClientMessageId("c1");
+
+        store.store(first);
+        store.storeAll(List.of(retry));
+
+        assertEquals(1, store.pending("bob").messages().size());
+    }
+
+    // ✅ Test hai thiết bị cùng lấy một lô: chỉ một lần ghi vào lịch sử
+    @Test
+    void testConcurrentDevicesStoreHistoryOnce() {
+        store.store(message("Hello"));
+
+        Pending firstDevice = store.pending("bob");
+        Pending secondDevice = store.pending("bob");
+        firstDevice.markDelivered();
+        secondDevice.markDelivered();
+
+        verify(messageWriteService, times(1)).saveAll(anyList());
+        assertTrue(store.pending("bob").isEmpty());
+    }
+}
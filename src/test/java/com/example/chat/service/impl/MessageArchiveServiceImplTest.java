@@ -0,0 +1,80 @@
+package com.example.chat.service.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class MessageArchiveServiceImplTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private TransactionStatus transactionStatus;
+
+    private MessageArchiveServiceImpl archiveService;
+
+    private final LocalDateTime cutoff = LocalDateTime.now().minusDays(30);
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(transactionManager.getTransaction(any())).thenReturn(transactionStatus);
+        archiveService = new MessageArchiveServiceImpl(jdbcTemplate, transactionManager);
+        ReflectionTestUtils.setField(archiveService, "batchSize", 2);
+    }
+
+    // ✅ Test chuyển theo từng lô: mỗi lô một transaction copy rồi xoá, dừng khi lô cuối không đầy
+    @Test
+    void testCompactMovesInBatches() {
+        when(jdbcTemplate.queryForList(MessageArchiveServiceImpl.SELECT_BATCH_SQL, Long.class, cutoff, 2))
+                .thenReturn(List.of(1L, 2L), List.of(5L));
+        when(jdbcTemplate.update(startsWith("INSERT INTO message_archive"), any(Object[].class))).thenReturn(2, 1);
+        when(jdbcTemplate.update(startsWith("DELETE FROM message"), any(Object[].class))).thenReturn(2, 1);
+
+        assertEquals(3, archiveService.compact(cutoff));
+
+        verify(jdbcTemplate).update(MessageArchiveServiceImpl.COPY_SQL.formatted("?,?"), 1L, 2L);
+        verify(jdbcTemplate).update(MessageArchiveServiceImpl.DELETE_SQL.formatted("?"), 5L);
+        verify(transactionManager, times(2)).commit(transactionStatus);
+    }
+
+    // ✅ Test không còn tin nhắn cần lưu trữ → không ghi gì
+    @Test
+    void testCompactNothingToArchive() {
+        when(jdbcTemplate.queryForList(MessageArchiveServiceImpl.SELECT_BATCH_SQL, Long.class, cutoff, 2))
+                .thenReturn(List.of());
+
+        assertEquals(0, archiveService.compact(cutoff));
+
+        verify(jdbcTemplate, never()).update(anyString(), any(Object[].class));
+    }
+
+    // ✅ Test số dòng copy và xoá không khớp → rollback cả lô
+    @Test
+    void testMismatchedBatchIsRolledBack() {
+        when(jdbcTemplate.queryForList(MessageArchiveServiceImpl.SELECT_BATCH_SQL, Long.class, cutoff, 2))
+                .thenReturn(List.of(1L, 2L));
+        when(jdbcTemplate.update(startsWith("INSERT INTO message_archive"), any(Object[].class))).thenReturn(2);
+        when(jdbcTemplate.update(startsWith("DELETE FROM message"), any(Object[].class))).thenReturn(1);
+
+        assertThrows(IllegalStateException.class, () -> archiveService.compact(cutoff));
+
+        verify(transactionManager).rollback(transactionStatus);
+        verify(transactionManager, never()).commit(any());
+    }
+}
@@ -1,15 +1,33 @@
 package com.example.chat.service.impl;
 
+import com.example.chat.dto.MessageBatch;
+import com.example.chat.entity.ArchivedMessage;
 import com.example.chat.entity.Message;
 import com.example.chat.entity.User;
+import com.example.chat.repository.ArchivedMessageRepository;
+import com.example.chat.repository.FileAccessRepository;
+import com.example.chat.repository.FileBlobRepository;
 import com.example.chat.repository.MessageRepository;
 import com.example.chat.repository.UserRepository;
+import com.example.chat.service.MessageWaiter;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
 import com.example.chat.util.JwtUtil;
+import com.example.chat.util.SendDeduplicator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.*;
 import org.springframework.core.io.Resource;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.io.IOException;
 import java.time.LocalDateTime;
@@ -32,9 +50,24 @@ class MessageServiceImplTest {
     @Mock
     private MessageRepository messageRepository;
 
+    @Mock
+    private ArchivedMessageRepository archivedMessageRepository;
+
     @Mock
     private OnlineUserServiceImpl onlineUserService;
 
+    @Mock
+    private FileBlobRepository fileBlobRepository;
+
+    @Mock
+    private FileAccessRepository fileAccessRepository;
+
+    private FileStorageServiceImpl fileStorageService;
+
+    // Thư mục lưu trữ riêng của mỗi test, không ghi vào storage/ của project
+    @TempDir
+    java.nio.file.Path storageDir;
+
     private final String VALID_TOKEN = "Bearer mocktoken";
     private final String SENDER = "alice";
     private final String RECEIVER = "bob";
@@ -43,7 +76,23 @@ class MessageServiceImplTest {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        messageService = new MessageServiceImpl(jwtUtil, userRepository, messageRepository, onlineUserService);
+        fileStorageService = new FileStorageServiceImpl(fileBlobRepository);
+        ReflectionTestUtils.setField(fileStorageService, "storagePath", storageDir.toString());
+        // Ghi tin nhắn ở chế độ sync mặc định → INSERT qua messageRepository
+        MessageWriteServiceImpl messageWriteService = new MessageWriteServiceImpl(
+                messageRepository, mock(JdbcTemplate.class), mock(PlatformTransactionManager.class));
+        messageService = new MessageServiceImpl(jwtUtil, userRepository, messageRepository, archivedMessageRepository, onlineUserService,
+                new JpaOfflineMessageStore(messageRepository, messageWriteService),
+                new LoopbackDeliveryBus(onlineUserService), new SendDeduplicator(), fileStorageService,
+                new FileAccessServiceImpl(fileAccessRepository, messageRepository, archivedMessageRepository,
+                        fileStorageService, mock(JdbcTemplate.class)), new DeliveryTracker());
+    }
+
+    // ✅ Tạo file dạng cũ (tên không theo mã băm) trong thư mục lưu trữ mà service đang dùng
+    private void writeStoredFile(String filename) throws IOException {
+        java.nio.file.Path filePath = fileStorageService.resolve(filename);
+        java.nio.file.Files.createDirectories(filePath.getParent());
+        java.nio.file.Files.writeString(filePath, "dummy content");
     }
 
     // ✅ Tạo user test với friendsJson
@@ -62,9 +111,9 @@ class MessageServiceImplTest {
 
         when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
         when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
-        when(onlineUserService.getWaitingQueue(RECEIVER)).thenReturn(null);
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
 
-        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT);
+        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, null);
 
         assertEquals(2, result.get("status"));
         verify(messageRepository, times(1)).save(any(Message.class));
@@ -78,7 +127,7 @@ class MessageServiceImplTest {
         when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
         when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
 
-        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT);
+        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, null);
 
         assertEquals(3, result.get("status"));
         verify(messageRepository, never()).save(any());
@@ -92,23 +141,118 @@ class MessageServiceImplTest {
 
         when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
         when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
-        when(onlineUserService.getWaitingQueue(RECEIVER)).thenReturn(null);
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
 
-        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, null, file, USER_AGENT);
+        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, null, file, USER_AGENT, null);
 
         assertEquals(2, result.get("status"));
         verify(messageRepository, times(1)).save(any(Message.class));
     }
 
-    // ✅ Test lấy file thành công khi đúng người nhận
+    // ✅ Test gửi file dạng stream: trả về kích thước và mã băm, tin nhắn trỏ đến file đã lưu
+    @Test
+    void testSendStreamedFile() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"alice\"]");
+        byte[] content = "streamed content".getBytes();
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+
+        Map<String, Object> result = messageService.sendFile(VALID_TOKEN, RECEIVER, "notes.txt", null,
+                new java.io.ByteArrayInputStream(content), content.length, USER_AGENT, null);
+
+        assertEquals(2, result.get("status"));
+        assertEquals((long) content.length, result.get("size"));
+        assertEquals(64, ((String) result.get("sha256")).length());
+
+        verify(fileAccessRepository).grant((String) result.get("sha256"), SENDER);
+        verify(fileAccessRepository).grant((String) result.get("sha256"), RECEIVER);
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository).save(saved.capture());
+        assertTrue(saved.getValue().isFile());
+        String name = saved.getValue().getContent().substring("/api/file/".length());
+        assertEquals(result.get("sha256") + "_notes.txt", name);
+        assertArrayEquals(content, java.nio.file.Files.readAllBytes(fileStorageService.resolve(name)));
+    }
+
+    // ✅ Test chuyển tiếp file đã nhận bằng mã băm: dùng lại nội dung đã lưu, không đọc body
+    @Test
+    void testSendStreamedFileReusesContentByHash() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"alice\"]");
+        byte[] content = "forwarded content".getBytes();
+        java.io.ByteArrayInputStream body = new java.io.ByteArrayInputStream(content);
+        String sha256 = fileStorageService.store(new java.io.ByteArrayInputStream(content), "orig.txt", -1).sha256();
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+        when(fileAccessRepository.existsByFileIdAndUsername(sha256, SENDER)).thenReturn(true);
+        when(fileBlobRepository.addReference(sha256)).thenReturn(1);
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+
+        Map<String, Object> result = messageService.sendFile(VALID_TOKEN, RECEIVER, "fwd.txt", sha256.toUpperCase(),
+                body, content.length, USER_AGENT, null);
+
+        assertEquals(2, result.get("status"));
+        assertEquals(sha256, result.get("sha256"));
+        assertEquals(content.length, body.available()); // Body không được đọc
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository).save(saved.capture());
+        assertEquals("/api/file/" + sha256 + "_fwd.txt", saved.getValue().getContent());
+    }
+
+    // ✅ Test mã băm của file người gửi chưa từng gửi/nhận: phải tải lên nội dung, nội dung sai mã băm bị từ chối
+    @Test
+    void testSendStreamedFileWithUnknownHashReadsBodyAndVerifiesIt() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"alice\"]");
+        String sha256 = fileStorageService.store(new java.io.ByteArrayInputStream("someone else's".getBytes()), "x.txt", -1).sha256();
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+
+        assertThrows(IllegalArgumentException.class, () -> messageService.sendFile(VALID_TOKEN, RECEIVER, "x.txt", sha256,
+                new java.io.ByteArrayInputStream("different".getBytes()), -1, USER_AGENT, null));
+
+        verify(fileBlobRepository, never()).addReference(anyString());
+        verify(messageRepository, never()).save(any());
+    }
+
+    // ✅ Test gửi file dạng stream cho người không phải bạn bè: không đọc body, không ghi gì xuống đĩa
+    @Test
+    void testSendStreamedFileNotFriendDoesNotReadBody() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"charlie\"]");
+        java.io.ByteArrayInputStream body = new java.io.ByteArrayInputStream("secret".getBytes());
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+
+        Map<String, Object> result = messageService.sendFile(VALID_TOKEN, RECEIVER, "x.txt", null, body, 6, USER_AGENT, null);
+
+        assertEquals(3, result.get("status"));
+        assertEquals(6, body.available());
+        verify(messageRepository, never()).save(any());
+    }
+
+    // ✅ Test gửi file đã lưu cho người không phải bạn bè: tham chiếu đến file được bỏ
+    @Test
+    void testSendStoredFileNotFriendReleasesReference() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"charlie\"]");
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+        String sha256 = "ab".repeat(32);
+
+        Map<String, Object> result = messageService.sendStoredFile(SENDER, RECEIVER,
+                new com.example.chat.service.FileStorageService.StoredFile(sha256 + "_big.mp4", 10, sha256), null);
+
+        assertEquals(3, result.get("status"));
+        verify(fileBlobRepository).removeReference(sha256);
+        verify(messageRepository, never()).save(any());
+    }
+
     @Test
     void testGetFileAuthorizedWithUserAgent() throws IOException {
         // Tạo file test.txt giả trong thư mục storage
-        String filename = "test.txt";
-        String storagePath = "storage";
-        java.nio.file.Path filePath = java.nio.file.Paths.get(storagePath, filename);
-        java.nio.file.Files.createDirectories(filePath.getParent());
-        java.nio.file.Files.writeString(filePath, "dummy content");
+        String filename = "123e4567-e89b-12d3-a456-426614174000_test.txt";
+        writeStoredFile(filename);
 
         Message message = new Message(
                 1L,
@@ -121,7 +265,7 @@ class MessageServiceImplTest {
         );
 
         when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
-        when(messageRepository.findByReceiver(RECEIVER)).thenReturn(List.of(message));
+        when(messageRepository.existsFileMessage(RECEIVER, message.getContent())).thenReturn(true);
 
         Resource res = messageService.getFile(VALID_TOKEN, filename, USER_AGENT);
 
@@ -130,6 +274,56 @@ class MessageServiceImplTest {
     }
 
 
+    // ✅ Test quyền tải file theo bảng file_access: một lần tra cứu theo index, không quét tin nhắn, lần sau dùng cache
+    @Test
+    void testGetFileAuthorizedByAccessTable() throws IOException {
+        String sha256 = fileStorageService.store(new java.io.ByteArrayInputStream("acl".getBytes()), "a.txt", -1).sha256();
+        String filename = sha256 + "_a.txt";
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(fileAccessRepository.existsByFileIdAndUsername(sha256, RECEIVER)).thenReturn(true);
+
+        assertTrue(messageService.getFile(VALID_TOKEN, filename, USER_AGENT).exists());
+        assertTrue(messageService.getFile(VALID_TOKEN, filename, USER_AGENT).exists());
+
+        verify(fileAccessRepository, times(1)).existsByFileIdAndUsername(sha256, RECEIVER);
+        verify(messageRepository, never()).existsFileMessage(anyString(), anyString());
+    }
+
+    // ✅ Test file gửi trước khi có bảng file_access: kiểm tra theo tin nhắn một lần rồi ghi quyền vào bảng
+    @Test
+    void testGetFileLegacyAccessIsBackfilled() throws IOException {
+        String filename = "123e4567-e89b-12d3-a456-426614174001_legacy.txt";
+        writeStoredFile(filename);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.existsFileMessage(RECEIVER, "/api/file/" + filename)).thenReturn(true);
+
+        assertTrue(messageService.getFile(VALID_TOKEN, filename, USER_AGENT).exists());
+        assertTrue(messageService.getFile(VALID_TOKEN, filename, USER_AGENT).exists());
+
+        verify(fileAccessRepository).grant(filename, RECEIVER);
+        verify(messageRepository, times(1)).existsFileMessage(RECEIVER, "/api/file/" + filename);
+    }
+
+    // ✅ Test từ chối không quét tin nhắn: file theo mã băm chỉ kiểm tra bảng, file dạng cũ nhớ kết quả từ chối
+    @Test
+    void testDeniedFileAccessDoesNotRescanMessages() throws IOException {
+        String sha256 = fileStorageService.store(new java.io.ByteArrayInputStream("private".getBytes()), "p.txt", -1).sha256();
+        String legacy = "123e4567-e89b-12d3-a456-426614174003_old.txt";
+        writeStoredFile(legacy);
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn("someoneElse");
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(SecurityException.class, () -> messageService.getFile(VALID_TOKEN, sha256 + "_p.txt", USER_AGENT));
+            assertThrows(SecurityException.class, () -> messageService.getFile(VALID_TOKEN, legacy, USER_AGENT));
+            assertThrows(SecurityException.class, () -> messageService.getFile(VALID_TOKEN, "other.txt", USER_AGENT));
+        }
+
+        verify(messageRepository, times(1)).existsFileMessage(anyString(), anyString());
+        verify(archivedMessageRepository, times(1)).existsFileMessage(anyString(), anyString());
+    }
+
     // ✅ Test lấy file khi không có quyền truy cập
     @Test
     void testGetFileUnauthorizedWithUserAgent() {
@@ -144,9 +338,252 @@ class MessageServiceImplTest {
         );
 
         when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn("someoneElse");
-        when(messageRepository.findByReceiver("someoneElse")).thenReturn(List.of(message));
+        when(messageRepository.existsFileMessage(RECEIVER, message.getContent())).thenReturn(true);
 
         assertThrows(SecurityException.class, () ->
                 messageService.getFile(VALID_TOKEN, "test.txt", USER_AGENT));
     }
+
+    // ✅ Test long polling bất đồng bộ trả ngay tin nhắn đang chờ trong DB
+    @Test
+    void testGetMessagesAsyncReturnsPendingImmediately() {
+        Message pending = new Message(1L, SENDER, RECEIVER, "Hello", false, LocalDateTime.now(), false);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.findByReceiverAndDeliveredFalse(RECEIVER)).thenReturn(List.of(pending));
+
+        DeferredResult<MessageBatch> result = messageService.getMessagesAsync(VALID_TOKEN, USER_AGENT);
+
+        assertTrue(result.hasResult());
+        assertEquals(1, ((MessageBatch) result.getResult()).size());
+        assertTrue(pending.isDelivered());
+        verify(messageRepository).markDelivered(List.of(1L));
+    }
+
+    // ✅ Test JSON của lô tin nhắn: gom theo người gửi (giữ thứ tự), thời gian giống LocalDateTime.toString()
+    @Test
+    void testMessageBatchJsonGroupsBySender() throws IOException {
+        LocalDateTime[] times = {
+                LocalDateTime.of(2026, 1, 2, 3, 4),
+                LocalDateTime.of(2026, 1, 2, 3, 4, 5, 120_000_000),
+                LocalDateTime.of(2026, 1, 2, 3, 4, 5, 123_456_000),
+                LocalDateTime.of(2026, 1, 2, 3, 4, 0, 7)
+        };
+        Message group = new Message(9L, "carol", null, "Team", false, times[3], false, 4L);
+        group.setClientMessageId("c-9");
+        List<Message> messages = List.of(
+                new Message(1L, SENDER, RECEIVER, "A1", false, times[0], false),
+                new Message(2L, "carol", RECEIVER, "C1", false, times[1], false),
+                new Message(3L, SENDER, RECEIVER, "A2", false, times[2], false),
+                group);
+
+        List<Map<String, Object>> json = new ObjectMapper().readValue(
+                new ObjectMapper().writeValueAsString(new MessageBatch(messages)), new TypeReference<>() {});
+
+        assertEquals(List.of(SENDER, "carol"), json.stream().map(g -> g.get("sender")).toList());
+        List<?> fromAlice = (List<?>) json.get(0).get("messages");
+        assertEquals(List.of(
+                Map.of("time", times[0].toString(), "message", "A1"),
+                Map.of("time", times[2].toString(), "message", "A2")), fromAlice);
+        List<?> fromCarol = (List<?>) json.get(1).get("messages");
+        assertEquals(Map.of("time", times[1].toString(), "message", "C1"), fromCarol.get(0));
+        assertEquals(Map.of("time", times[3].toString(), "message", "Team", "groupId", 4, "id", 9, "clientMessageId", "c-9"),
+                fromCarol.get(1));
+        assertEquals("[]", new ObjectMapper().writeValueAsString(MessageBatch.EMPTY));
+    }
+
+    // ✅ Test long polling bất đồng bộ được hoàn tất khi có tin nhắn mới chuyển đến
+    @Test
+    void testGetMessagesAsyncCompletedByNewMessage() {
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.findByReceiverAndDeliveredFalse(RECEIVER)).thenReturn(List.of());
+
+        DeferredResult<MessageBatch> result = messageService.getMessagesAsync(VALID_TOKEN, USER_AGENT);
+        assertFalse(result.hasResult());
+
+        ArgumentCaptor<MessageWaiter> waiter = ArgumentCaptor.forClass(MessageWaiter.class);
+        verify(onlineUserService).waitForMessages(eq(RECEIVER), waiter.capture());
+
+        Message message = new Message(null, SENDER, RECEIVER, "Hi", false, LocalDateTime.now(), false);
+        assertTrue(waiter.getValue().offer(List.of(message)));
+        assertTrue(result.hasResult());
+
+        // Request đã hoàn tất → không nhận thêm tin nhắn
+        assertFalse(waiter.getValue().offer(List.of(new Message(null, SENDER, RECEIVER, "Again", false, LocalDateTime.now(), false))));
+    }
+
+    // ✅ Test gửi tin nhắn khi người nhận online → hộp thư nhận tin nhắn và tự lưu DB, người gửi không lưu
+    @Test
+    void testSendMessageAcceptedByOnlineMailbox() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"alice\"]");
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.ACCEPTED);
+
+        Map<String, Object> result = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, null);
+
+        assertEquals(1, result.get("status"));
+        verify(messageRepository, never()).save(any(Message.class));
+    }
+
+    // ✅ Test client gửi lại cùng clientMessageId → trả lại kết quả lần đầu, không lưu và không chuyển tin nhắn lần nữa
+    @Test
+    void testRetryWithSameClientMessageIdIsNotSentTwice() throws IOException {
+        User receiver = createUser(RECEIVER, "[\"alice\"]");
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(receiver));
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+
+        Map<String, Object> first = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, "c-1");
+        Map<String, Object> retry = messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, "c-1");
+        messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello again", null, USER_AGENT, "c-2");
+
+        assertEquals(first, retry);
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository, times(2)).save(saved.capture());
+        assertEquals(List.of("c-1", "c-2"), saved.getAllValues().stream().map(Message::getClientMessageId).toList());
+        verify(onlineUserService, times(2)).deliver(eq(RECEIVER), any(Message.class));
+    }
+
+    // ✅ Test lần gửi đầu lỗi → lần gửi lại với cùng clientMessageId được xử lý lại
+    @Test
+    void testFailedSendIsNotRemembered() throws IOException {
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(createUser(RECEIVER, "[\"alice\"]")));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> messageService.sendMessage(VALID_TOKEN, RECEIVER, " ", null, USER_AGENT, "c-1"));
+
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.ACCEPTED);
+        assertEquals(1, messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, "c-1").get("status"));
+    }
+
+    // ✅ Test gửi lại sau khi hết cửa sổ chống trùng → unique constraint chặn, tin nhắn đã lưu được coi là thành công
+    @Test
+    void testDuplicateRowRejectedByConstraintIsTreatedAsStored() throws IOException {
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(userRepository.findById(RECEIVER)).thenReturn(Optional.of(createUser(RECEIVER, "[\"alice\"]")));
+        when(onlineUserService.deliver(eq(RECEIVER), any(Message.class))).thenReturn(DeliveryStatus.OFFLINE);
+        when(messageRepository.save(any(Message.class))).thenThrow(new DataIntegrityViolationException("Duplicate entry"));
+        when(messageRepository.findBySenderAndClientMessageId(SENDER, "c-1"))
+                .thenReturn(Optional.of(new Message(5L, SENDER, RECEIVER, "Hello", false, LocalDateTime.now(), false)));
+
+        assertEquals(2, messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, "c-1").get("status"));
+        assertThrows(DataIntegrityViolationException.class,
+                () -> messageService.sendMessage(VALID_TOKEN, RECEIVER, "Hello", null, USER_AGENT, null));
+    }
+
+    // ✅ Test đồng bộ theo con trỏ: trả về tin nhắn sau con trỏ, không ghi DB
+    @Test
+    void testSyncMessagesAfterCursor() {
+        LocalDateTime sent = LocalDateTime.now().minusMinutes(1);
+        Message m1 = new Message(11L, SENDER, RECEIVER, "Hello", false, sent, true);
+        Message m2 = new Message(12L, SENDER, RECEIVER, "Hi", false, sent, false);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(RECEIVER, 10L, Limit.of(2)))
+                .thenReturn(List.of(m1, m2));
+
+        Map<String, Object> result = messageService.syncMessages(VALID_TOKEN, USER_AGENT, 10L, 2);
+
+        assertEquals(2, ((List<?>) result.get("messages")).size());
+        assertEquals(12L, result.get("nextCursor"));
+        assertEquals(true, result.get("hasMore"));
+        verify(messageRepository, never()).save(any());
+        verify(messageRepository, never()).saveAll(any());
+        verify(messageRepository, never()).markDelivered(any());
+    }
+
+    // ✅ Test id commit không theo thứ tự: id 13 đã thấy nhưng id 12 chưa commit → con trỏ không vượt qua tin nhắn mới
+    @Test
+    void testSyncHoldsBackRecentMessagesCommittedOutOfOrder() {
+        LocalDateTime now = LocalDateTime.now();
+        Message m11 = new Message(11L, SENDER, RECEIVER, "Old", false, now.minusMinutes(1), true);
+        Message m12 = new Message(12L, SENDER, RECEIVER, "Late commit", false, now, false);
+        Message m13 = new Message(13L, SENDER, RECEIVER, "Early commit", false, now, false);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(RECEIVER, 10L, Limit.of(10)))
+                .thenReturn(List.of(m11, m13));
+
+        Map<String, Object> first = messageService.syncMessages(VALID_TOKEN, USER_AGENT, 10L, 10);
+
+        assertEquals(1, ((List<?>) first.get("messages")).size());
+        assertEquals(11L, first.get("nextCursor"));
+        assertEquals(false, first.get("hasMore"));
+
+        // Sau khi id 12 commit và ra khỏi khoảng an toàn, lần đồng bộ sau trả về cả hai theo thứ tự
+        m12.setTimestamp(now.minusSeconds(5));
+        m13.setTimestamp(now.minusSeconds(5));
+        when(messageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(RECEIVER, 11L, Limit.of(10)))
+                .thenReturn(List.of(m12, m13));
+
+        Map<String, Object> second = messageService.syncMessages(VALID_TOKEN, USER_AGENT, 11L, 10);
+
+        List<?> messages = (List<?>) second.get("messages");
+        assertEquals(2, messages.size());
+        assertEquals(12L, ((Map<?, ?>) messages.get(0)).get("id"));
+        assertEquals(13L, second.get("nextCursor"));
+    }
+
+    // ✅ Test lịch sử hội thoại: trộn hai chiều theo (timestamp, id) giảm dần và trả về vị trí trang tiếp theo
+    @Test
+    void testGetHistoryMergesBothDirections() {
+        LocalDateTime now = LocalDateTime.now();
+        Message sent1 = new Message(1L, SENDER, RECEIVER, "a", false, now.minusMinutes(3), true);
+        Message sent3 = new Message(3L, SENDER, RECEIVER, "c", false, now.minusMinutes(1), true);
+        Message received2 = new Message(2L, RECEIVER, SENDER, "b", false, now.minusMinutes(2), true);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(SENDER);
+        when(messageRepository.findConversationPage(eq(SENDER), eq(RECEIVER), any(), any(), any(Pageable.class)))
+                .thenReturn(List.of(sent3, sent1));
+        when(messageRepository.findConversationPage(eq(RECEIVER), eq(SENDER), any(), any(), any(Pageable.class)))
+                .thenReturn(List.of(received2));
+
+        Map<String, Object> result = messageService.getHistory(VALID_TOKEN, USER_AGENT, RECEIVER, null, null, 2);
+
+        List<?> messages = (List<?>) result.get("messages");
+        assertEquals(2, messages.size());
+        assertEquals(3L, ((Map<?, ?>) messages.get(0)).get("id"));
+        assertEquals(2L, ((Map<?, ?>) messages.get(1)).get("id"));
+        assertEquals(true, result.get("hasMore"));
+        assertEquals(2L, result.get("nextBeforeId"));
+    }
+
+    // ✅ Test đồng bộ theo con trỏ cũ: tin nhắn đã lưu trữ được trộn theo id với tin nhắn trong bảng message
+    @Test
+    void testSyncMessagesIncludesArchived() {
+        LocalDateTime old = LocalDateTime.now().minusDays(60);
+        ArchivedMessage a1 = new ArchivedMessage(11L, SENDER, RECEIVER, "Old", false, old, true, null, null);
+        ArchivedMessage a3 = new ArchivedMessage(13L, SENDER, RECEIVER, "Newer", false, old, true, null, null);
+        Message m2 = new Message(12L, SENDER, RECEIVER, "Pending", false, old, false);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(messageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(RECEIVER, 10L, Limit.of(2)))
+                .thenReturn(List.of(m2));
+        when(archivedMessageRepository.findByReceiverAndIdGreaterThanOrderByIdAsc(RECEIVER, 10L, Limit.of(2)))
+                .thenReturn(List.of(a1, a3));
+
+        Map<String, Object> result = messageService.syncMessages(VALID_TOKEN, USER_AGENT, 10L, 2);
+
+        List<?> messages = (List<?>) result.get("messages");
+        assertEquals(2, messages.size());
+        assertEquals("Old", ((Map<?, ?>) messages.get(0)).get("message"));
+        assertEquals(12L, result.get("nextCursor"));
+        assertEquals(true, result.get("hasMore"));
+    }
+
+    // ✅ Test quyền tải file vẫn còn sau khi tin nhắn file đã được lưu trữ
+    @Test
+    void testGetFileAuthorizedByArchivedMessage() throws IOException {
+        String filename = "123e4567-e89b-12d3-a456-426614174002_archived.txt";
+        writeStoredFile(filename);
+
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn(RECEIVER);
+        when(archivedMessageRepository.existsFileMessage(RECEIVER, "/api/file/" + filename)).thenReturn(true);
+
+        assertTrue(messageService.getFile(VALID_TOKEN, filename, USER_AGENT).exists());
+    }
 }
@@ -0,0 +1,207 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.util.ContentCodec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MessageWriteServiceImplTest {
+
+    @Mock
+    private MessageRepository messageRepository;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private MessageWriteServiceImpl messageWriteService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        messageWriteService = new MessageWriteServiceImpl(messageRepository, jdbcTemplate, transactionManager);
+    }
+
+    private Message message(String content) {
+        return new Message(null, "alice", "bob", content, false, LocalDateTime.now(), false);
+    }
+
+    private void useWriteBehind(String ack) {
+        ReflectionTestUtils.setField(messageWriteService, "mode", "write-behind");
+        ReflectionTestUtils.setField(messageWriteService, "ack", ack);
+        ReflectionTestUtils.setField(messageWriteService, "flushIntervalMs", 50L);
+        messageWriteService.start();
+    }
+
+    // ✅ Test chế độ sync mặc định: INSERT ngay qua JPA
+    @Test
+    void testSyncModeSavesThroughRepository() {
+        Message msg = message("Hello");
+
+        messageWriteService.save(msg);
+
+        verify(messageRepository).save(msg);
+        verifyNoInteractions(jdbcTemplate);
+    }
+
+    // ✅ Test chế độ write-behind: nhiều tin nhắn được ghi bằng một JDBC batch
+    @Test
+    @SuppressWarnings("unchecked")
+    void testWriteBehindBatchesInserts() throws Exception {
+        useWriteBehind("durable");
+        List<Message> messages = List.of(message("1"), message("2"), message("3"));
+
+        messageWriteService.saveAll(messages);
+        messageWriteService.stop();
+
+        ArgumentCaptor<Collection<Message>> rows = ArgumentCaptor.forClass(Collection.class);
+        verify(jdbcTemplate, atLeastOnce()).batchUpdate(eq(MessageWriteServiceImpl.INSERT_SQL), rows.capture(),
+                anyInt(), any(ParameterizedPreparedStatementSetter.class));
+        assertEquals(3, rows.getAllValues().stream().mapToInt(Collection::size).sum());
+        verify(messageRepository, never()).save(any());
+    }
+
+    // ✅ Test chế độ ack accepted: trả về ngay, tin nhắn vẫn được ghi khi writer dừng
+    @Test
+    @SuppressWarnings("unchecked")
+    void testAcceptedAckFlushesOnStop() throws Exception {
+        useWriteBehind("accepted");
+
+        messageWriteService.save(message("Hello"));
+        messageWriteService.stop();
+
+        verify(jdbcTemplate).batchUpdate(eq(MessageWriteServiceImpl.INSERT_SQL), any(Collection.class),
+                anyInt(), any(ParameterizedPreparedStatementSetter.class));
+    }
+
+    // ✅ Test hết thời gian chờ xác nhận khi writer chưa nhận tin nhắn: tin nhắn bị huỷ, không được ghi sau đó
+    @Test
+    @SuppressWarnings("unchecked")
+    void testAckTimeoutCancelsQueuedWrite() throws Exception {
+        ReflectionTestUtils.setField(messageWriteService, "mode", "write-behind");
+        ReflectionTestUtils.setField(messageWriteService, "flushIntervalMs", 500L);
+        ReflectionTestUtils.setField(messageWriteService, "ackTimeoutMs", 50L);
+        messageWriteService.start();
+
+        MessageWriteService.WriteTimeoutException e = assertThrows(MessageWriteService.WriteTimeoutException.class,
+                () -> messageWriteService.save(message("Hello")));
+        messageWriteService.stop();
+
+        assertFalse(e.mayBeStored());
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class));
+        verify(messageRepository, never()).save(any());
+    }
+
+    // ✅ Test hết thời gian chờ khi lô đang được ghi: báo cho client tin nhắn có thể vẫn được lưu
+    @Test
+    @SuppressWarnings("unchecked")
+    void testAckTimeoutDuringWriteMayBeStored() throws Exception {
+        ReflectionTestUtils.setField(messageWriteService, "mode", "write-behind");
+        ReflectionTestUtils.setField(messageWriteService, "flushIntervalMs", 1L);
+        ReflectionTestUtils.setField(messageWriteService, "ackTimeoutMs", 50L);
+        when(jdbcTemplate.batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(300);
+                    return new int[1][1];
+                });
+        messageWriteService.start();
+
+        MessageWriteService.WriteTimeoutException e = assertThrows(MessageWriteService.WriteTimeoutException.class,
+                () -> messageWriteService.save(message("Hello")));
+        messageWriteService.stop();
+
+        assertTrue(e.mayBeStored());
+        verify(jdbcTemplate).batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class));
+    }
+
+    // ✅ Test lô bị lỗi → ghi lại từng tin nhắn qua JPA
+    @Test
+    @SuppressWarnings("unchecked")
+    void testFailedBatchFallsBackToSingleInserts() throws Exception {
+        useWriteBehind("durable");
+        when(jdbcTemplate.batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenThrow(new org.springframework.dao.DataIntegrityViolationException("boom"));
+        Message msg = message("Hello");
+
+        messageWriteService.save(msg);
+        messageWriteService.stop();
+
+        verify(messageRepository).save(msg);
+    }
+
+    // ✅ Test nội dung dài được nén khi ghi bằng JDBC batch và giải nén khi đọc lại; nội dung ngắn giữ nguyên
+    @Test
+    @SuppressWarnings("unchecked")
+    void testLongContentIsStoredCompressed() throws Exception {
+        useWriteBehind("durable");
+        String log = "ERROR connection reset by peer at 10.0.0.1:8080\n".repeat(200);
+        String tricky = ContentCodec.MARKER + "D not really compressed";
+
+        messageWriteService.saveAll(List.of(message(log), message("Hello"), message(tricky)));
+        messageWriteService.stop();
+
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<Message>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        ArgumentCaptor<Collection<Message>> rows = ArgumentCaptor.forClass(Collection.class);
+        verify(jdbcTemplate).batchUpdate(eq(MessageWriteServiceImpl.INSERT_SQL), rows.capture(), anyInt(), setter.capture());
+
+        List<String> stored = new ArrayList<>();
+        for (Message row : rows.getValue()) {
+            PreparedStatement ps = mock(PreparedStatement.class);
+            setter.getValue().setValues(ps, row);
+            ArgumentCaptor<String> content = ArgumentCaptor.forClass(String.class);
+            verify(ps).setString(eq(3), content.capture());
+            stored.add(content.getValue());
+        }
+        assertTrue(stored.get(0).length() < log.length() / 10);
+        assertEquals("Hello", stored.get(1));
+
+        // Đọc lại từ DB: chỉ có dạng lưu, nội dung gốc được giải nén khi gọi getContent
+        for (int i = 0; i < stored.size(); i++) {
+            Message loaded = new Message();
+            ReflectionTestUtils.setField(loaded, "storedContent", stored.get(i));
+            assertEquals(List.of(log, "Hello", tricky).get(i), loaded.getContent());
+        }
+    }
+
+    // ✅ Test tin nhắn nhóm đi qua writer giữ nguyên group_id, tin nhắn 1-1 ghi group_id = NULL
+    @Test
+    @SuppressWarnings("unchecked")
+    void testGroupIdIsStored() throws Exception {
+        useWriteBehind("durable");
+        Message group = new Message(null, "alice", null, "Hi team", false, LocalDateTime.now(), false, 9L);
+
+        messageWriteService.saveAll(List.of(group, message("Hello")));
+        messageWriteService.stop();
+
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<Message>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        ArgumentCaptor<Collection<Message>> rows = ArgumentCaptor.forClass(Collection.class);
+        verify(jdbcTemplate).batchUpdate(eq(MessageWriteServiceImpl.INSERT_SQL), rows.capture(), anyInt(), setter.capture());
+
+        List<Message> written = new ArrayList<>(rows.getValue());
+        PreparedStatement groupRow = mock(PreparedStatement.class);
+        setter.getValue().setValues(groupRow, written.get(0));
+        verify(groupRow).setObject(8, 9L, Types.BIGINT);
+        PreparedStatement directRow = mock(PreparedStatement.class);
+        setter.getValue().setValues(directRow, written.get(1));
+        verify(directRow).setObject(8, null, Types.BIGINT);
+    }
+}
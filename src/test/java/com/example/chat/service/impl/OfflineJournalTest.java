@@ -0,0 +1,166 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OfflineJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private final LocalDateTime time = LocalDateTime.of(2026, 3, 4, 5, 6, 7, 890_000_000);
+
+    private Message message(String receiver, String content) {
+        Message m = new Message(null, "alice", receiver, content, false, time, false);
+        m.setClientMessageId("c-" + content);
+        return m;
+    }
+
+    // ✅ Test ghi rồi đọc lại tin nhắn chờ theo thứ tự gửi, giữ nguyên nội dung (kể cả nội dung nén)
+    @Test
+    void testAppendAndReadPending() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 4, 64 * 1024, 1);
+        String longText = "Tiếng Việt ".repeat(200);
+
+        assertTrue(journal.append(message("bob", "Hello")));
+        assertTrue(journal.append(message("bob", longText)));
+        assertTrue(journal.append(message("carol", "Hi")));
+
+        List<OfflineJournal.Entry> pending = journal.pending("bob");
+        assertEquals(2, pending.size());
+        Message first = pending.get(0).message();
+        assertEquals("Hello", first.getContent());
+        assertEquals("alice", first.getSender());
+        assertEquals("bob", first.getReceiver());
+        assertEquals(time, first.getTimestamp());
+        assertEquals("c-Hello", first.getClientMessageId());
+        assertEquals(longText, pending.get(1).message().getContent());
+        assertEquals(1, journal.pending("carol").size());
+        assertTrue(journal.pending("dave").isEmpty());
+    }
+
+    // ✅ Test tin nhắn chỉ được đánh dấu đã nhận một lần, kể cả khi hai thiết bị cùng lấy
+    @Test
+    void testMarkDeliveredOnlyOnce() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 2, 64 * 1024, 1);
+        journal.append(message("bob", "Hello"));
+
+        List<OfflineJournal.Entry> firstDevice = journal.pending("bob");
+        List<OfflineJournal.Entry> secondDevice = journal.pending("bob");
+
+        assertEquals(1, journal.markDelivered("bob", firstDevice).size());
+        assertTrue(journal.markDelivered("bob", secondDevice).isEmpty());
+        assertTrue(journal.pending("bob").isEmpty());
+    }
+
+    // ✅ Test tin nhắn đã claim nhưng chưa commit: thiết bị khác không nhận lại, trên đĩa vẫn là chờ
+    @Test
+    void testClaimedEntriesStayClaimedUntilCommit() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 1, 64 * 1024, 1);
+        journal.append(message("bob", "first"));
+        journal.append(message("bob", "second"));
+
+        List<OfflineJournal.Entry> claimed = journal.claim("bob", journal.pending("bob"));
+        assertEquals(2, claimed.size());
+        assertTrue(journal.pending("bob").isEmpty());
+        journal.append(message("bob", "third"));
+        assertEquals(List.of("third"), journal.pending("bob").stream().map(e -> e.message().getContent()).toList());
+
+        // Chưa commit thì bản ghi vẫn là chờ trên đĩa
+        journal.force();
+        assertEquals(3, new OfflineJournal(directory, 1, 64 * 1024, 1).pendingCount());
+
+        journal.commit("bob", claimed);
+        assertEquals(1, journal.pendingCount());
+    }
+
+    // ✅ Test gửi lại cùng clientMessageId khi tin nhắn trước còn trong journal (kể cả sau khởi động lại) không tạo bản ghi mới
+    @Test
+    void testDuplicateClientMessageIdIsStoredOnce() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 1, 64 * 1024, 1);
+        assertTrue(journal.append(message("bob", "Hello")));
+        assertTrue(journal.append(message("bob", "Hello")));
+        assertEquals(1, journal.pending("bob").size());
+
+        journal.force();
+        OfflineJournal reopened = new OfflineJournal(directory, 1, 64 * 1024, 1);
+        reopened.append(message("bob", "Hello"));
+        List<OfflineJournal.Entry> pending = reopened.pending("bob");
+        assertEquals(1, pending.size());
+
+        // Đang claim (chờ ghi lịch sử) vẫn chặn gửi lại; sau khi commit, bảng message chịu trách nhiệm chống trùng
+        List<OfflineJournal.Entry> claimed = reopened.claim("bob", pending);
+        reopened.append(message("bob", "Hello"));
+        assertTrue(reopened.pending("bob").isEmpty());
+        reopened.commit("bob", claimed);
+        reopened.append(message("bob", "Hello"));
+        assertEquals(1, reopened.pending("bob").size());
+    }
+
+    // ✅ Test khởi động lại: chỉ tin nhắn chưa nhận được khôi phục, bản ghi ghi dở bị bỏ qua
+    @Test
+    void testRecoveryAfterRestart() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 1, 64 * 1024, 1);
+        journal.append(message("bob", "delivered"));
+        journal.append(message("bob", "pending"));
+        journal.markDelivered("bob", journal.pending("bob").subList(0, 1));
+        journal.force();
+
+        // Giả lập bản ghi ghi dở: có độ dài nhưng dữ liệu không khớp CRC
+        Path segment;
+        try (Stream<Path> files = Files.list(directory.resolve("shard-000"))) {
+            segment = files.filter(f -> f.toString().endsWith(".seg")).findFirst().orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = 16;
+        while (bytes[end] != 0 || bytes[end + 1] != 0 || bytes[end + 2] != 0 || bytes[end + 3] != 0) {
+            end += 9 + java.nio.ByteBuffer.wrap(bytes, end, 4).getInt();
+        }
+        bytes[end + 3] = 40;
+        bytes[end + 20] = 7;
+        Files.write(segment, bytes);
+
+        OfflineJournal reopened = new OfflineJournal(directory, 1, 64 * 1024, 1);
+        List<OfflineJournal.Entry> pending = reopened.pending("bob");
+        assertEquals(1, pending.size());
+        assertEquals("pending", pending.get(0).message().getContent());
+
+        // Ghi tiếp sau bản ghi hợp lệ cuối cùng
+        reopened.append(message("bob", "after restart"));
+        assertEquals(2, new OfflineJournal(directory, 1, 64 * 1024, 1).pending("bob").size());
+    }
+
+    // ✅ Test segment không còn tin nhắn chờ được thu hồi làm segment dự phòng, bản ghi cũ không bị đọc lại
+    @Test
+    void testSegmentRecycling() throws IOException {
+        OfflineJournal journal = new OfflineJournal(directory, 1, 1024, 1);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(journal.append(message("bob", "message " + round + "-" + i)));
+            }
+            List<OfflineJournal.Entry> pending = journal.pending("bob");
+            assertEquals(20, pending.size());
+            assertEquals(20, journal.markDelivered("bob", pending).size());
+        }
+        journal.force();
+
+        try (Stream<Path> files = Files.list(directory.resolve("shard-000"))) {
+            assertTrue(files.count() <= 3);
+        }
+        assertEquals(0, new OfflineJournal(directory, 1, 1024, 1).pendingCount());
+        // Tin nhắn lớn hơn một segment (nội dung ngẫu nhiên không nén được) không được ghi vào journal
+        StringBuilder tooLarge = new StringBuilder();
+        new java.util.Random(1).ints(2000, 'a', 'z' + 1).forEach(c -> tooLarge.append((char) c));
+        assertFalse(journal.append(message("bob", tooLarge.toString())));
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.Message;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.service.MessageWaiter;
+import com.example.chat.service.MessageWriteService;
+import com.example.chat.service.OnlineUserService;
+import com.example.chat.service.OnlineUserService.DeliveryStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class OnlineUserServiceImplTest {
+
+    @Mock
+    private MessageWriteService messageWriteService;
+
+    @Mock
+    private TaskScheduler taskScheduler;
+
+    private OnlineUserServiceImpl onlineUserService;
+
+    private final String RECEIVER = "bob";
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        onlineUserService = new OnlineUserServiceImpl(messageWriteService,
+                new JpaOfflineMessageStore(mock(MessageRepository.class), messageWriteService), taskScheduler,
+                new DeliveryTracker());
+    }
+
+    private Message message(String content) {
+        return new Message(null, "alice", RECEIVER, content, false, LocalDateTime.now(), false);
+    }
+
+    // Waiter giả lập một thiết bị: nhận một lần duy nhất như một request long polling
+    private static class DeviceWaiter implements MessageWaiter {
+        private List<Message> received;
+
+        @Override
+        public synchronized boolean offer(List<Message> messages) {
+            if (received != null) {
+                return false;
+            }
+            received = messages;
+            return true;
+        }
+    }
+
+    // ✅ Test người nhận chưa từng polling → OFFLINE
+    @Test
+    void testDeliverToOfflineUser() {
+        assertEquals(DeliveryStatus.OFFLINE, onlineUserService.deliver(RECEIVER, message("Hello")));
+    }
+
+    // ✅ Test tin nhắn được gửi đến tất cả thiết bị đang chờ và hộp thư lưu DB với trạng thái đã nhận
+    @Test
+    void testDeliverFansOutToAllDevices() {
+        DeviceWaiter phone = new DeviceWaiter();
+        DeviceWaiter laptop = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, phone);
+        onlineUserService.waitForMessages(RECEIVER, laptop);
+
+        Message msg = message("Hello");
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, msg));
+
+        assertEquals(List.of(msg), phone.received);
+        assertEquals(List.of(msg), laptop.received);
+        assertTrue(msg.isDelivered());
+        verify(messageWriteService, times(1)).saveAll(List.of(msg));
+    }
+
+    // ✅ Test một thiết bị ngừng chờ không gỡ waiter của thiết bị khác
+    @Test
+    void testRemoveWaiterKeepsOtherDevices() {
+        DeviceWaiter phone = new DeviceWaiter();
+        DeviceWaiter laptop = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, phone);
+        onlineUserService.waitForMessages(RECEIVER, laptop);
+
+        onlineUserService.removeWaiter(RECEIVER, phone);
+
+        Message msg = message("Hello");
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, msg));
+        assertNull(phone.received);
+        assertEquals(List.of(msg), laptop.received);
+    }
+
+    // ✅ Test tin nhắn đến giữa hai lần polling được giữ lại và gửi ngay khi thiết bị polling lại
+    @Test
+    void testBufferedMessagesReturnedOnNextPoll() {
+        DeviceWaiter first = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, first);
+        onlineUserService.deliver(RECEIVER, message("1"));
+
+        Message second = message("2");
+        Message third = message("3");
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, second));
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, third));
+        assertFalse(second.isDelivered());
+
+        DeviceWaiter next = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, next);
+        assertEquals(List.of(second, third), next.received);
+        verify(messageWriteService).saveAll(List.of(second, third));
+    }
+
+    // ✅ Test hộp thư đầy → OFFLINE để người gửi lưu DB
+    @Test
+    void testFullMailboxOverflowsToDatabase() {
+        ReflectionTestUtils.setField(onlineUserService, "mailboxCapacity", 2);
+        DeviceWaiter waiter = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, waiter);
+        onlineUserService.removeWaiter(RECEIVER, waiter);
+
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, message("1")));
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, message("2")));
+        assertEquals(DeliveryStatus.OFFLINE, onlineUserService.deliver(RECEIVER, message("3")));
+    }
+
+    // ✅ Test hộp thư không còn hoạt động bị dọn, tin nhắn còn giữ được lưu DB
+    @Test
+    void testEvictIdleMailboxStoresBufferedMessages() {
+        ReflectionTestUtils.setField(onlineUserService, "idleTimeoutMs", -1L);
+        DeviceWaiter waiter = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, waiter);
+        onlineUserService.removeWaiter(RECEIVER, waiter);
+        Message buffered = message("Hello");
+        onlineUserService.deliver(RECEIVER, buffered);
+
+        onlineUserService.evictIdleMailboxes();
+
+        verify(messageWriteService).saveAll(List.of(buffered));
+        assertFalse(buffered.isDelivered());
+        assertEquals(DeliveryStatus.OFFLINE, onlineUserService.deliver(RECEIVER, message("Later")));
+    }
+
+    // ✅ Test listener được báo một lần khi hộp thư được tạo (không báo cho thiết bị thứ hai) và khi bị dọn
+    @Test
+    void testMailboxListenerNotifiedOnOpenAndEvict() {
+        ReflectionTestUtils.setField(onlineUserService, "idleTimeoutMs", -1L);
+        OnlineUserService.MailboxListener listener = mock(OnlineUserService.MailboxListener.class);
+        onlineUserService.setMailboxListener(listener);
+        DeviceWaiter phone = new DeviceWaiter();
+        DeviceWaiter laptop = new DeviceWaiter();
+
+        onlineUserService.waitForMessages(RECEIVER, phone);
+        onlineUserService.waitForMessages(RECEIVER, laptop);
+        verify(listener, times(1)).opened(RECEIVER);
+
+        onlineUserService.removeWaiter(RECEIVER, phone);
+        onlineUserService.removeWaiter(RECEIVER, laptop);
+        onlineUserService.evictIdleMailboxes();
+        verify(listener).closed(RECEIVER);
+    }
+
+    // ✅ Test chế độ linger: các tin nhắn đến trong khoảng chờ được gửi chung một lần và lưu một lần
+    @Test
+    void testLingerBatchesMessagesIntoOneDelivery() {
+        ReflectionTestUtils.setField(onlineUserService, "lingerMs", 20L);
+        DeviceWaiter phone = new DeviceWaiter();
+        DeviceWaiter laptop = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, phone);
+        onlineUserService.waitForMessages(RECEIVER, laptop);
+
+        Message first = message("1");
+        Message second = message("2");
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, first));
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, second));
+        assertNull(phone.received);
+
+        // Chỉ hẹn một lần flush cho cả khoảng linger
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler, times(1)).schedule(flush.capture(), any(Instant.class));
+        flush.getValue().run();
+
+        assertEquals(List.of(first, second), phone.received);
+        assertEquals(List.of(first, second), laptop.received);
+        assertTrue(first.isDelivered() && second.isDelivered());
+        verify(messageWriteService, times(1)).saveAll(List.of(first, second));
+    }
+
+    // ✅ Test chế độ linger: tất cả thiết bị đã timeout → tin nhắn được lưu DB là chưa nhận
+    @Test
+    void testLingerFlushWithoutReceiverStoresUndelivered() {
+        ReflectionTestUtils.setField(onlineUserService, "lingerMs", 20L);
+        onlineUserService.waitForMessages(RECEIVER, messages -> false);
+
+        Message msg = message("1");
+        onlineUserService.deliver(RECEIVER, msg);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler).schedule(flush.capture(), any(Instant.class));
+        flush.getValue().run();
+
+        assertFalse(msg.isDelivered());
+        verify(messageWriteService).saveAll(List.of(msg));
+    }
+
+    // ✅ Test kênh push: waiter lâu dài vẫn được giữ sau mỗi lần nhận và bị gỡ khi kết nối đóng
+    @Test
+    void testPersistentWaiterReceivesEveryMessage() {
+        List<Message> pushed = new ArrayList<>();
+        boolean[] open = {true};
+        MessageWaiter stream = new MessageWaiter() {
+            @Override
+            public boolean offer(List<Message> messages) {
+                if (!open[0]) {
+                    return false;
+                }
+                pushed.addAll(messages);
+                return true;
+            }
+
+            @Override
+            public boolean isPersistent() {
+                return true;
+            }
+        };
+        onlineUserService.waitForMessages(RECEIVER, stream);
+
+        onlineUserService.deliver(RECEIVER, message("1"));
+        onlineUserService.deliver(RECEIVER, message("2"));
+        assertEquals(2, pushed.size());
+
+        // Kết nối đóng → waiter bị gỡ, tin nhắn được lưu DB là chưa nhận
+        open[0] = false;
+        Message missed = message("3");
+        onlineUserService.deliver(RECEIVER, missed);
+        assertEquals(2, pushed.size());
+        assertFalse(missed.isDelivered());
+        verify(messageWriteService).saveAll(List.of(missed));
+
+        // Không còn thiết bị nào chờ → tin nhắn tiếp theo nằm trong hộp thư
+        Message next = message("4");
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, next));
+        verify(messageWriteService, never()).saveAll(List.of(next));
+    }
+
+    // ✅ Test tin nhắn đã lưu DB trước khi fan-out (tin nhắn nhóm) không bị hộp thư lưu lại lần nữa
+    @Test
+    void testStoredMessageIsNotSavedAgain() {
+        DeviceWaiter phone = new DeviceWaiter();
+        onlineUserService.waitForMessages(RECEIVER, phone);
+
+        Message group = new Message(5L, "alice", null, "Hi team", false, LocalDateTime.now(), false, 9L);
+        assertEquals(DeliveryStatus.ACCEPTED, onlineUserService.deliver(RECEIVER, group));
+
+        assertEquals(List.of(group), phone.received);
+        verify(messageWriteService, never()).saveAll(anyList());
+    }
+
+    // ✅ Test đồng thời: nhiều người gửi, nhiều thiết bị polling liên tục và hộp thư bị dọn liên tục,
+    // mỗi tin nhắn được lưu DB đúng một lần và không thiết bị nào nhận trùng
+    @Test
+    void testConcurrentDeliveryLosesAndDuplicatesNothing() throws Exception {
+        ReflectionTestUtils.setField(onlineUserService, "mailboxCapacity", 16);
+        ReflectionTestUtils.setField(onlineUserService, "idleTimeoutMs", -1L);
+
+        int senders = 4;
+        int perSender = 5000;
+        int devices = 3;
+
+        // Tin nhắn do hộp thư lưu DB (kèm trạng thái lúc lưu) và tin nhắn người gửi tự lưu khi OFFLINE
+        Map<String, Boolean> storedByMailbox = new ConcurrentHashMap<>();
+        Set<String> duplicates = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            List<Message> batch = invocation.getArgument(0);
+            batch.forEach(m -> {
+                if (storedByMailbox.put(m.getContent(), m.isDelivered()) != null) {
+                    duplicates.add(m.getContent());
+                }
+            });
+            return null;
+        }).when(messageWriteService).saveAll(anyList());
+        Set<String> storedBySender = ConcurrentHashMap.newKeySet();
+
+        AtomicBoolean sending = new AtomicBoolean(true);
+        List<Set<String>> receivedByDevice = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(senders + devices + 1);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        for (int d = 0; d < devices; d++) {
+            Set<String> received = ConcurrentHashMap.newKeySet();
+            receivedByDevice.add(received);
+            tasks.add(pool.submit(() -> {
+                while (sending.get()) {
+                    CompletableFuture<List<Message>> slot = new CompletableFuture<>();
+                    MessageWaiter waiter = slot::complete;
+                    onlineUserService.waitForMessages(RECEIVER, waiter);
+                    try {
+                        slot.get(1, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ignored) {
+                        // Polling hết hạn, polling lại
+                    } finally {
+                        slot.complete(Collections.emptyList());
+                        onlineUserService.removeWaiter(RECEIVER, waiter);
+                    }
+                    for (Message m : slot.join()) {
+                        if (!received.add(m.getContent())) {
+                            duplicates.add(m.getContent());
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        tasks.add(pool.submit(() -> {
+            while (sending.get()) {
+                onlineUserService.evictIdleMailboxes();
+                Thread.sleep(1);
+            }
+            return null;
+        }));
+
+        List<Future<?>> producers = new ArrayList<>();
+        for (int p = 0; p < senders; p++) {
+            int sender = p;
+            producers.add(pool.submit(() -> {
+                for (int i = 0; i < perSender; i++) {
+                    Message m = message(sender + "-" + i);
+                    if (onlineUserService.deliver(RECEIVER, m) == DeliveryStatus.OFFLINE) {
+                        storedBySender.add(m.getContent());
+                    }
+                    // Giãn nhịp gửi để phần lớn tin nhắn đi qua hộp thư thay vì tràn sang DB
+                    if (i % 20 == 0) {
+                        Thread.sleep(1);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> producer : producers) {
+            producer.get(30, TimeUnit.SECONDS);
+        }
+        sending.set(false);
+        for (Future<?> task : tasks) {
+            task.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        // Dọn hộp thư cuối cùng → tin nhắn còn giữ được lưu DB
+        onlineUserService.evictIdleMailboxes();
+
+        assertTrue(duplicates.isEmpty(), "Duplicated: " + duplicates);
+        assertEquals(senders * perSender, storedByMailbox.size() + storedBySender.size());
+        storedBySender.forEach(content -> assertFalse(storedByMailbox.containsKey(content)));
+
+        // Tin nhắn được lưu là đã nhận ⇔ có ít nhất một thiết bị nhận được
+        Set<String> received = new HashSet<>();
+        receivedByDevice.forEach(received::addAll);
+        storedByMailbox.forEach((content, delivered) -> assertEquals(delivered, received.contains(content), content));
+        assertTrue(storedBySender.stream().noneMatch(received::contains));
+    }
+}
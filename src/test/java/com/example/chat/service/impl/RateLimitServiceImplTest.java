@@ -0,0 +1,122 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.service.RateLimitService.Endpoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimitServiceImplTest {
+
+    private RateLimitServiceImpl rateLimitService;
+
+    private final String IP = "10.0.0.1";
+
+    @BeforeEach
+    void setUp() {
+        rateLimitService = new RateLimitServiceImpl();
+        ReflectionTestUtils.setField(rateLimitService, "sendPerSecond", 2);
+        ReflectionTestUtils.setField(rateLimitService, "sendBurst", 3);
+        ReflectionTestUtils.setField(rateLimitService, "loginPerSecond", 1);
+        ReflectionTestUtils.setField(rateLimitService, "loginBurst", 2);
+        ReflectionTestUtils.setField(rateLimitService, "maxConcurrentPolls", 2);
+        rateLimitService.init();
+    }
+
+    // ✅ Test user dùng hết burst → bị từ chối kèm thời gian chờ, sau đó hồi lại theo tốc độ cấu hình
+    @Test
+    void testSendBurstThenRefill() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 1000));
+        }
+        assertEquals(500, rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 1000));
+        assertEquals(250, rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 1250));
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 1500));
+        assertTrue(rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 1500) > 0);
+    }
+
+    // ✅ Test mỗi user có bucket riêng, gửi tin và polling không dùng chung lượt
+    @Test
+    void testBucketsArePerUserAndEndpoint() {
+        for (int i = 0; i < 3; i++) {
+            rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 0);
+        }
+        assertTrue(rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 0) > 0);
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.SEND, IP, "bob", 0));
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.POLL, IP, "alice", 0));
+    }
+
+    // ✅ Test đăng nhập chỉ giới hạn theo IP
+    @Test
+    void testLoginLimitedPerIp() {
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.LOGIN, IP, null, 0));
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.LOGIN, IP, null, 0));
+        assertEquals(1000, rateLimitService.tryAcquire(Endpoint.LOGIN, IP, null, 0));
+        assertEquals(0, rateLimitService.tryAcquire(Endpoint.LOGIN, "10.0.0.2", null, 0));
+    }
+
+    // ✅ Test giới hạn số long polling treo đồng thời
+    @Test
+    void testConcurrentPollCap() {
+        assertTrue(rateLimitService.tryEnterPoll());
+        assertTrue(rateLimitService.tryEnterPoll());
+        assertFalse(rateLimitService.tryEnterPoll());
+
+        rateLimitService.exitPoll();
+        assertTrue(rateLimitService.tryEnterPoll());
+        assertEquals(2, rateLimitService.activePolls());
+    }
+
+    // ✅ Test chỉ dọn bucket đã hồi đầy, bucket đang thiếu lượt vẫn được giữ
+    @Test
+    void testEvictOnlyFullBuckets() {
+        rateLimitService.tryAcquire(Endpoint.SEND, IP, "alice", 0);
+        RateLimitServiceImpl.TokenBuckets sendBuckets =
+                (RateLimitServiceImpl.TokenBuckets) ReflectionTestUtils.getField(rateLimitService, "sendBuckets");
+
+        rateLimitService.evictIdleBuckets(100);
+        assertEquals(1, sendBuckets.size());
+
+        rateLimitService.evictIdleBuckets(500);
+        assertEquals(0, sendBuckets.size());
+    }
+
+    // ✅ Test nhiều thread cùng lấy lượt trên một bucket → số request được phép đúng bằng burst
+    @Test
+    void testConcurrentAcquireAdmitsExactlyBurst() throws Exception {
+        RateLimitServiceImpl.TokenBuckets buckets = new RateLimitServiceImpl.TokenBuckets(1, 1000);
+        AtomicInteger admitted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 500; i++) {
+                        if (buckets.tryAcquire("alice", 0) == 0) {
+                            admitted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1000, admitted.get());
+    }
+
+    // ✅ Test cấu hình không hợp lệ bị từ chối khi khởi động
+    @Test
+    void testInvalidConfigurationRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimitServiceImpl.TokenBuckets(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimitServiceImpl.TokenBuckets(10, 100000));
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.ConversationReceipt;
+import com.example.chat.entity.ConversationReceipt.Type;
+import com.example.chat.entity.Message;
+import com.example.chat.entity.User;
+import com.example.chat.repository.ConversationReceiptRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.DeliveryBus;
+import com.example.chat.util.JwtUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.PreparedStatement;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ReceiptServiceImplTest {
+
+    @Mock
+    private JwtUtil jwtUtil;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private ConversationReceiptRepository receiptRepository;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private DeliveryBus deliveryBus;
+
+    private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+
+    private ReceiptServiceImpl receiptService;
+
+    private final String TOKEN = "Bearer token";
+    private final String USER_AGENT = "Mozilla/5.0";
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        receiptService = new ReceiptServiceImpl(jwtUtil, userRepository, receiptRepository, jdbcTemplate,
+                transactionManager, deliveryBus, new ObjectMapper(), deliveryTracker);
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn("bob");
+        when(userRepository.findById("bob")).thenReturn(Optional.of(
+                User.builder().username("bob").friendsJson("[\"alice\"]").build()));
+    }
+
+    /**
+     * Các dòng (reader, peer, deliveredUpTo, readUpTo) được ghi trong lô
+     */
+    @SuppressWarnings("unchecked")
+    private List<List<Object>> writtenRows() throws Exception {
+        ArgumentCaptor<Collection<Object>> rows = ArgumentCaptor.forClass(Collection.class);
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<Object>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        verify(jdbcTemplate).batchUpdate(eq(ReceiptServiceImpl.UPSERT_SQL), rows.capture(), anyInt(), setter.capture());
+        List<List<Object>> written = new ArrayList<>();
+        for (Object row : rows.getValue()) {
+            PreparedStatement ps = mock(PreparedStatement.class);
+            setter.getValue().setValues(ps, row);
+            ArgumentCaptor<String> strings = ArgumentCaptor.forClass(String.class);
+            ArgumentCaptor<Long> longs = ArgumentCaptor.forClass(Long.class);
+            verify(ps, times(2)).setString(anyInt(), strings.capture());
+            verify(ps, times(2)).setLong(anyInt(), longs.capture());
+            written.add(List.of(strings.getAllValues().get(0), strings.getAllValues().get(1),
+                    longs.getAllValues().get(0), longs.getAllValues().get(1)));
+        }
+        return written;
+    }
+
+    // ✅ Test nhiều xác nhận của cùng hội thoại được gộp thành một dòng và một thông báo cho mỗi loại
+    @Test
+    void testAcknowledgementsAreCoalesced() throws Exception {
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.DELIVERED, 5);
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.DELIVERED, 9);
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.READ, 7);
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.DELIVERED, 8);
+
+        assertEquals(1, receiptService.flush());
+
+        assertEquals(List.of(List.of("bob", "alice", 9L, 7L)), writtenRows());
+        ArgumentCaptor<Message> notices = ArgumentCaptor.forClass(Message.class);
+        verify(deliveryBus, times(2)).deliver(eq("alice"), notices.capture());
+        Message read = notices.getAllValues().get(0);
+        assertEquals(Type.READ, read.getReceipt());
+        assertEquals(7L, read.getReceiptUpTo());
+        assertEquals("bob", read.getSender());
+        assertEquals(Type.DELIVERED, notices.getAllValues().get(1).getReceipt());
+        assertEquals(9L, notices.getAllValues().get(1).getReceiptUpTo());
+
+        // Không còn gì để ghi
+        assertEquals(0, receiptService.flush());
+    }
+
+    // ✅ Test chỉ bạn bè mới được xác nhận, mốc phải là id hợp lệ
+    @Test
+    void testAcknowledgeValidation() {
+        assertThrows(SecurityException.class,
+                () -> receiptService.acknowledge(TOKEN, USER_AGENT, "mallory", Type.READ, 3));
+        assertThrows(IllegalArgumentException.class,
+                () -> receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.READ, 0));
+        assertEquals(0, receiptService.flush());
+    }
+
+    // ✅ Test ghi DB lỗi → mốc được giữ lại cho lần ghi sau, chưa báo cho người gửi
+    @Test
+    void testFailedFlushKeepsWatermarks() throws Exception {
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.READ, 4);
+        when(jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenThrow(new DataAccessResourceFailureException("down"));
+
+        assertThrows(DataAccessResourceFailureException.class, () -> receiptService.flush());
+        verifyNoInteractions(deliveryBus);
+
+        reset(jdbcTemplate);
+        assertEquals(1, receiptService.flush());
+        assertEquals(List.of(List.of("bob", "alice", 4L, 4L)), writtenRows());
+    }
+
+    // ✅ Test tin nhắn 1:1 (không có id) server đã giao: mốc DELIVERED tự đẩy lên sau khi lô đã giao được ghi
+    @Test
+    void testServerDeliveryAdvancesWatermark() throws Exception {
+        long now = 1_000_000;
+        Message message = new Message(null, "alice", "bob", "Hi", false, null, true);
+        deliveryTracker.delivered(List.of(message, Message.receiptNotice("carol", "bob", Type.READ, 3)), now);
+        when(jdbcTemplate.queryForList(ReceiptServiceImpl.LAST_DELIVERED_SQL, Long.class, "bob", "alice"))
+                .thenReturn(List.of(42L));
+
+        // Chưa hết khoảng chờ ghi lịch sử
+        assertEquals(0, receiptService.flush(now + 10));
+        verify(jdbcTemplate, never()).queryForList(anyString(), eq(Long.class), any(Object[].class));
+
+        assertEquals(1, receiptService.flush(now + 1000));
+        assertEquals(List.of(List.of("bob", "alice", 42L, 0L)), writtenRows());
+        ArgumentCaptor<Message> notice = ArgumentCaptor.forClass(Message.class);
+        verify(deliveryBus).deliver(eq("alice"), notice.capture());
+        assertEquals(Type.DELIVERED, notice.getValue().getReceipt());
+        assertEquals(42L, notice.getValue().getReceiptUpTo());
+        assertEquals(0, receiptService.flush(now + 2000));
+    }
+
+    // ✅ Test đọc mốc đã giao lỗi → hội thoại được giữ lại cho lần ghi sau
+    @Test
+    void testServerDeliveryRetriedAfterFailure() throws Exception {
+        long now = 1_000_000;
+        deliveryTracker.delivered(List.of(new Message(null, "alice", "bob", "Hi", false, null, true)), now);
+        when(jdbcTemplate.queryForList(ReceiptServiceImpl.LAST_DELIVERED_SQL, Long.class, "bob", "alice"))
+                .thenThrow(new DataAccessResourceFailureException("down"))
+                .thenReturn(List.of(7L));
+
+        assertThrows(DataAccessResourceFailureException.class, () -> receiptService.flush(now + 1000));
+        assertEquals(1, receiptService.flush(now + 1000));
+        assertEquals(List.of(List.of("bob", "alice", 7L, 0L)), writtenRows());
+    }
+
+    // ✅ Test mốc trả về cho người gửi gộp giá trị trong DB với xác nhận chưa ghi
+    @Test
+    void testGetReceiptsIncludesBufferedAcknowledgements() throws Exception {
+        when(jwtUtil.validateToken(eq("alice-token"), eq(USER_AGENT))).thenReturn("alice");
+        when(receiptRepository.findByReaderAndPeer("bob", "alice"))
+                .thenReturn(Optional.of(new ConversationReceipt(1L, "bob", "alice", 6, 3)));
+        receiptService.acknowledge(TOKEN, USER_AGENT, "alice", Type.READ, 5);
+
+        Map<String, Object> receipts = receiptService.getReceipts("Bearer alice-token", USER_AGENT, "bob");
+
+        assertEquals(6L, receipts.get("deliveredUpTo"));
+        assertEquals(5L, receipts.get("readUpTo"));
+    }
+}
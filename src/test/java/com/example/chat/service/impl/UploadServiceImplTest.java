@@ -0,0 +1,201 @@
+package com.example.chat.service.impl;
+
+import com.example.chat.entity.User;
+import com.example.chat.repository.FileBlobRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.service.FileStorageService.StoredFile;
+import com.example.chat.service.FileStorageService.TooLargeException;
+import com.example.chat.service.MessageService;
+import com.example.chat.util.JwtUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UploadServiceImplTest {
+
+    private static final String TOKEN = "Bearer token";
+    private static final String USER_AGENT = "Mozilla/5.0";
+    private static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private FileBlobRepository fileBlobRepository;
+    private MessageService messageService;
+    private UploadServiceImpl uploadService;
+
+    @BeforeEach
+    void setUp() {
+        JwtUtil jwtUtil = mock(JwtUtil.class);
+        when(jwtUtil.validateToken(anyString(), eq(USER_AGENT))).thenReturn("alice");
+        UserRepository userRepository = mock(UserRepository.class);
+        when(userRepository.findById("bob")).thenReturn(Optional.of(
+                User.builder().username("bob").passwordHash("x").friendsJson("[\"alice\"]").build()));
+        when(userRepository.findById("carol")).thenReturn(Optional.of(
+                User.builder().username("carol").passwordHash("x").friendsJson("[]").build()));
+
+        fileBlobRepository = mock(FileBlobRepository.class);
+        FileStorageServiceImpl storage = new FileStorageServiceImpl(fileBlobRepository);
+        ReflectionTestUtils.setField(storage, "storagePath", dir.toString());
+        messageService = mock(MessageService.class);
+        uploadService = new UploadServiceImpl(jwtUtil, userRepository, storage, messageService, new ObjectMapper());
+        ReflectionTestUtils.setField(uploadService, "chunkSizeMb", 1);
+        ReflectionTestUtils.setField(uploadService, "maxSizeMb", 8L);
+    }
+
+    private String start(long size, String sha256) throws Exception {
+        return (String) uploadService.create(TOKEN, USER_AGENT, "bob", "video.mp4", size, sha256).get("uploadId");
+    }
+
+    private void put(String uploadId, byte[] content, int index) throws Exception {
+        int from = index * MB;
+        byte[] chunk = Arrays.copyOfRange(content, from, Math.min(content.length, from + MB));
+        uploadService.writeChunk(TOKEN, USER_AGENT, uploadId, index, new ByteArrayInputStream(chunk), chunk.length);
+    }
+
+    // ✅ Test các đoạn gửi song song, không theo thứ tự: file hoàn tất đúng nội dung và được gửi thành tin nhắn
+    @Test
+    void testParallelChunksAssembleFile() throws Exception {
+        byte[] content = new byte[2 * MB + 12345];
+        new Random(7).nextBytes(content);
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        when(messageService.sendStoredFile(eq("alice"), eq("bob"), any(), any())).thenReturn(Map.of("status", 1));
+
+        String uploadId = start(content.length, sha256.toUpperCase());
+        assertEquals(3, uploadService.status(TOKEN, USER_AGENT, uploadId).get("chunkCount"));
+        IntStream.of(2, 0, 1).parallel().forEach(i -> {
+            try {
+                put(uploadId, content, i);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(List.of(), uploadService.status(TOKEN, USER_AGENT, uploadId).get("missing"));
+
+        Map<String, Object> result = uploadService.complete(TOKEN, USER_AGENT, uploadId, "c1");
+
+        assertEquals(1, result.get("status"));
+        ArgumentCaptor<StoredFile> stored = ArgumentCaptor.forClass(StoredFile.class);
+        verify(messageService).sendStoredFile(eq("alice"), eq("bob"), stored.capture(), eq("c1"));
+        assertEquals(sha256 + "_video.mp4", stored.getValue().name());
+        Path blob = dir.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+        assertArrayEquals(content, Files.readAllBytes(blob));
+        try (var files = Files.list(dir.resolve(".tmp"))) {
+            assertEquals(0, files.count());
+        }
+
+        // Gọi lại complete (ví dụ mất response) trả về kết quả cũ, không gửi tin nhắn lần hai
+        assertEquals(result, uploadService.complete(TOKEN, USER_AGENT, uploadId, "c1"));
+        verify(messageService, times(1)).sendStoredFile(any(), any(), any(), any());
+    }
+
+    // ✅ Test hoàn tất khi còn thiếu đoạn: bị từ chối, trạng thái cho biết đoạn cần gửi tiếp
+    @Test
+    void testCompleteWithMissingChunks() throws Exception {
+        byte[] content = new byte[3 * MB];
+        String uploadId = start(content.length, null);
+        put(uploadId, content, 1);
+
+        assertThrows(IllegalStateException.class, () -> uploadService.complete(TOKEN, USER_AGENT, uploadId, null));
+        assertEquals(List.of(0, 2), uploadService.status(TOKEN, USER_AGENT, uploadId).get("missing"));
+        verifyNoInteractions(messageService);
+    }
+
+    // ✅ Test đoạn sai kích thước hoặc sai số thứ tự bị từ chối
+    @Test
+    void testInvalidChunkRejected() throws Exception {
+        String uploadId = start(MB + 10, null);
+
+        assertThrows(IllegalArgumentException.class, () -> uploadService.writeChunk(TOKEN, USER_AGENT, uploadId, 1,
+                new ByteArrayInputStream(new byte[5]), -1));
+        assertThrows(IllegalArgumentException.class, () -> uploadService.writeChunk(TOKEN, USER_AGENT, uploadId, 2,
+                new ByteArrayInputStream(new byte[10]), 10));
+        assertEquals(List.of(0, 1), uploadService.status(TOKEN, USER_AGENT, uploadId).get("missing"));
+    }
+
+    // ✅ Test tạo lượt tải lên: quá dung lượng, không phải bạn bè
+    @Test
+    void testCreateRejected() {
+        assertThrows(TooLargeException.class, () -> start(8L * MB + 1, null));
+        assertThrows(SecurityException.class, () ->
+                uploadService.create(TOKEN, USER_AGENT, "carol", "a.bin", 10, null));
+    }
+
+    // ✅ Test nội dung không khớp mã băm khai báo: tham chiếu bị bỏ, lượt tải lên bị huỷ
+    @Test
+    void testShaMismatchReleasesFile() throws Exception {
+        byte[] content = new byte[100];
+        String uploadId = start(content.length, "0".repeat(64));
+        put(uploadId, content, 0);
+
+        assertThrows(IllegalArgumentException.class, () -> uploadService.complete(TOKEN, USER_AGENT, uploadId, null));
+
+        verify(fileBlobRepository).removeReference(anyString());
+        assertThrows(NoSuchElementException.class, () -> uploadService.status(TOKEN, USER_AGENT, uploadId));
+        verifyNoInteractions(messageService);
+    }
+
+    // ✅ Test giới hạn số lượt mỗi người dùng khi tạo song song, và tổng dung lượng cấp phát trước của node
+    @Test
+    void testConcurrentCreateRespectsLimits() throws Exception {
+        ReflectionTestUtils.setField(uploadService, "maxPerUser", 3);
+        long created = IntStream.range(0, 16).parallel().filter(i -> {
+            try {
+                start(10, null);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).count();
+        assertEquals(3, created);
+        assertThrows(IllegalArgumentException.class, () -> start(10, null));
+
+        // Tổng dung lượng của node: 30 byte đang giữ, chỉ còn chỗ cho gần 5MB; huỷ lượt trả lại chỗ
+        ReflectionTestUtils.setField(uploadService, "maxPerUser", 10);
+        ReflectionTestUtils.setField(uploadService, "maxTotalMb", 5L);
+        assertThrows(IllegalStateException.class, () -> start(5L * MB, null));
+        String large = start(4L * MB, null);
+        assertThrows(IllegalStateException.class, () -> start(MB, null));
+        uploadService.abort(TOKEN, USER_AGENT, large);
+        assertNotNull(start(4L * MB, null));
+    }
+
+    // ✅ Test lượt tải lên bỏ dở quá thời gian chờ bị huỷ và xoá file tạm, kể cả file tạm mồ côi sau khi khởi động lại
+    @Test
+    void testExpireIdleUpload() throws Exception {
+        Files.createDirectories(dir.resolve(".tmp"));
+        Path orphan = Files.writeString(dir.resolve(".tmp").resolve("orphan"), "partial");
+        String uploadId = start(10, null);
+
+        assertEquals(0, uploadService.expireIdleUploads(System.currentTimeMillis()));
+        assertEquals(1, uploadService.expireIdleUploads(System.currentTimeMillis() + 86400000L));
+
+        assertThrows(NoSuchElementException.class, () -> uploadService.status(TOKEN, USER_AGENT, uploadId));
+        assertFalse(Files.exists(orphan));
+        try (var files = Files.list(dir.resolve(".tmp"))) {
+            assertEquals(0, files.count());
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.chat.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileResponseWriterTest {
+
+    @TempDir
+    Path dir;
+
+    private final FileResponseWriter writer = new FileResponseWriter();
+    private byte[] content;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        file = dir.resolve("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+        Files.write(file, content);
+    }
+
+    private MockHttpServletResponse get(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(file, "photo.png", request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/file/photo.png");
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        return request;
+    }
+
+    // ✅ Test không có Range: 200 với toàn bộ file
+    @Test
+    void testFullFile() throws IOException {
+        MockHttpServletResponse response = get(request(null));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertEquals("image/png", response.getContentType());
+        assertEquals(1000, response.getContentLengthLong());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    // ✅ Test một khoảng: 206 + Content-Range, chỉ gửi đúng các byte được yêu cầu
+    @Test
+    void testSingleRange() throws IOException {
+        MockHttpServletResponse response = get(request("bytes=100-199"));
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader("Content-Range"));
+        assertEquals(100, response.getContentLengthLong());
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+    }
+
+    // ✅ Test khoảng tính từ cuối file (bytes=-N)
+    @Test
+    void testSuffixRange() throws IOException {
+        MockHttpServletResponse response = get(request("bytes=-50"));
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 950-999/1000", response.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 950, 1000), response.getContentAsByteArray());
+    }
+
+    // ✅ Test nhiều khoảng: multipart/byteranges, Content-Length khớp đúng số byte của body
+    @Test
+    void testMultipleRanges() throws IOException {
+        MockHttpServletResponse response = get(request("bytes=0-9,500-519"));
+
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+        String boundary = response.getContentType().substring("multipart/byteranges; boundary=".length());
+        byte[] body = response.getContentAsByteArray();
+        assertEquals(body.length, response.getContentLengthLong());
+
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String first = "Content-Range: bytes 0-9/1000\r\n\r\n";
+        String second = "Content-Range: bytes 500-519/1000\r\n\r\n";
+        int firstStart = text.indexOf(first) + first.length();
+        int secondStart = text.indexOf(second) + second.length();
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), Arrays.copyOfRange(body, firstStart, firstStart + 10));
+        assertArrayEquals(Arrays.copyOfRange(content, 500, 520), Arrays.copyOfRange(body, secondStart, secondStart + 20));
+        assertTrue(text.startsWith("\r\n--" + boundary + "\r\nContent-Type: image/png\r\n"));
+        assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+    }
+
+    // ✅ Test khoảng không thể đáp ứng: 416 kèm độ dài file, không có body
+    @Test
+    void testUnsatisfiableRange() throws IOException {
+        for (String range : new String[]{"bytes=1000-1100", "bytes=500-100", "bytes=0-999,0-999", "pages=1"}) {
+            MockHttpServletResponse response = get(request(range));
+
+            assertEquals(416, response.getStatus(), range);
+            assertEquals("bytes */1000", response.getHeader("Content-Range"));
+            assertEquals(0, response.getContentAsByteArray().length);
+        }
+    }
+
+    // ✅ Test If-Range khớp ETag: trả về một phần; ETag cũ hoặc yếu: trả về toàn bộ file
+    @Test
+    void testIfRangeWithEtag() throws IOException {
+        String etag = get(request(null)).getHeader("ETag");
+
+        MockHttpServletRequest matching = request("bytes=0-9");
+        matching.addHeader("If-Range", etag);
+        assertEquals(206, get(matching).getStatus());
+
+        MockHttpServletRequest stale = request("bytes=0-9");
+        stale.addHeader("If-Range", "\"ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff\"");
+        MockHttpServletResponse response = get(stale);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+
+        MockHttpServletRequest weak = request("bytes=0-9");
+        weak.addHeader("If-Range", "W/" + etag);
+        assertEquals(200, get(weak).getStatus());
+    }
+
+    // ✅ Test If-Range theo ngày: file chưa sửa sau mốc → một phần, đã sửa → toàn bộ file
+    @Test
+    void testIfRangeWithDate() throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        MockHttpServletRequest current = request("bytes=0-9");
+        current.addHeader("If-Range", lastModified);
+        assertEquals(206, get(current).getStatus());
+
+        MockHttpServletRequest stale = request("bytes=0-9");
+        stale.addHeader("If-Range", lastModified - 60_000);
+        assertEquals(200, get(stale).getStatus());
+    }
+
+    // ✅ Test HEAD: chỉ gửi header
+    @Test
+    void testHeadSendsNoBody() throws IOException {
+        MockHttpServletRequest request = request("bytes=0-9");
+        request.setMethod("HEAD");
+
+        MockHttpServletResponse response = get(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(10, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    // ✅ Test connector hỗ trợ sendfile: giao khoảng byte cho Tomcat qua attribute, không tự ghi body
+    @Test
+    void testSendfileHandOff() throws IOException {
+        MockHttpServletRequest request = request("bytes=100-");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        ReflectionTestUtils.setField(writer, "sendfileMinKb", 0);
+
+        MockHttpServletResponse response = get(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(file.toRealPath().toString(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(100L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(1000L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    // ✅ Test phần nhỏ hơn ngưỡng sendfile: ghi trực tiếp vào response
+    @Test
+    void testSmallRangeIsWrittenDirectly() throws IOException {
+        MockHttpServletRequest request = request("bytes=0-9");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+
+        MockHttpServletResponse response = get(request);
+
+        assertNull(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), response.getContentAsByteArray());
+    }
+
+    // ✅ Test ETag: mã băm (tên file trong kho) với file theo mã băm, thời điểm sửa + kích thước với file dạng cũ
+    @Test
+    void testEtagChoice() throws IOException {
+        assertEquals("\"" + file.getFileName() + "\"", get(request(null)).getHeader("ETag"));
+
+        Path legacy = dir.resolve("6f1e2a40-1111-2222-3333-444455556666_old.txt");
+        Files.write(legacy, content);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(legacy, "old.txt", request(null), response);
+        long lastModified = Files.getLastModifiedTime(legacy).toMillis();
+        assertEquals("\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(1000) + "\"", response.getHeader("ETag"));
+    }
+
+    // ✅ Test If-None-Match khớp (chính ETag, dạng W/, trong danh sách, hoặc *): 304 không có body
+    @Test
+    void testIfNoneMatchReturnsNotModified() throws IOException {
+        String etag = get(request(null)).getHeader("ETag");
+
+        for (String ifNoneMatch : new String[]{etag, "W/" + etag, "\"other\", " + etag, "*"}) {
+            MockHttpServletRequest request = request("bytes=0-9");
+            request.addHeader("If-None-Match", ifNoneMatch);
+            MockHttpServletResponse response = get(request);
+
+            assertEquals(304, response.getStatus(), ifNoneMatch);
+            assertEquals(etag, response.getHeader("ETag"));
+            assertEquals(0, response.getContentAsByteArray().length);
+        }
+
+        MockHttpServletRequest other = request(null);
+        other.addHeader("If-None-Match", "\"other\"");
+        assertEquals(200, get(other).getStatus());
+    }
+
+    // ✅ Test If-Modified-Since: 304 khi file chưa sửa, bị bỏ qua khi có If-None-Match
+    @Test
+    void testIfModifiedSince() throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        MockHttpServletRequest current = request(null);
+        current.addHeader("If-Modified-Since", lastModified);
+        assertEquals(304, get(current).getStatus());
+
+        MockHttpServletRequest older = request(null);
+        older.addHeader("If-Modified-Since", lastModified - 60_000);
+        assertEquals(200, get(older).getStatus());
+
+        MockHttpServletRequest withEtag = request(null);
+        withEtag.addHeader("If-None-Match", "\"other\"");
+        withEtag.addHeader("If-Modified-Since", lastModified);
+        assertEquals(200, get(withEtag).getStatus());
+    }
+
+    // ✅ Test Cache-Control private, immutable và Last-Modified trên 200, 206 và 304
+    @Test
+    void testCacheHeadersOnEveryStatus() throws IOException {
+        MockHttpServletRequest notModified = request(null);
+        notModified.addHeader("If-None-Match", "*");
+
+        for (MockHttpServletRequest request : new MockHttpServletRequest[]{request(null), request("bytes=0-9"), notModified}) {
+            MockHttpServletResponse response = get(request);
+
+            assertEquals("private, max-age=31536000, immutable", response.getHeader("Cache-Control"));
+            assertEquals(Files.getLastModifiedTime(file).toMillis() / 1000 * 1000, response.getDateHeader("Last-Modified"));
+        }
+    }
+}